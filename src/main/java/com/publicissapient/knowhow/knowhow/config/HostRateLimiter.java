@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token-bucket rate limiter with one bucket per remote host. A host can additionally be
+ * paused until a point in time, e.g. when it answered 429 with a Retry-After header.
+ */
+public class HostRateLimiter {
+
+    private final double permitsPerSecond;
+    private final int burst;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong throttledRetries = new AtomicLong();
+
+    public HostRateLimiter(double permitsPerSecond, int burst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = Math.max(1, burst);
+    }
+
+    /**
+     * Block until a request to the host is allowed. A non-positive rate disables limiting.
+     */
+    public void acquire(String host) throws InterruptedException {
+        if (permitsPerSecond <= 0) {
+            return;
+        }
+        Bucket bucket = buckets.computeIfAbsent(host, h -> new Bucket());
+        long waitNanos;
+        while ((waitNanos = bucket.reserve()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Hold back all requests to the host until the given time.
+     */
+    public void pauseUntil(String host, long epochMillis) {
+        Bucket bucket = buckets.computeIfAbsent(host, h -> new Bucket());
+        bucket.pauseUntil(epochMillis);
+    }
+
+    /**
+     * Count a request that was rejected as throttled and is retried.
+     */
+    public void recordThrottledRetry() {
+        throttledRetries.incrementAndGet();
+    }
+
+    public long getThrottledRetries() {
+        return throttledRetries.get();
+    }
+
+    private class Bucket {
+        private double tokens = burst;
+        private long lastRefillNanos = System.nanoTime();
+        private long pausedUntilMillis;
+
+        /**
+         * Take a token if one is available. Returns 0 on success, otherwise the time to wait
+         * before trying again.
+         */
+        synchronized long reserve() {
+            long pausedFor = pausedUntilMillis - System.currentTimeMillis();
+            if (pausedFor > 0) {
+                return TimeUnit.MILLISECONDS.toNanos(pausedFor);
+            }
+
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * permitsPerSecond / 1_000_000_000.0);
+            lastRefillNanos = now;
+            if (tokens >= 1.0) {
+                tokens -= 1.0;
+                return 0;
+            }
+            return Math.max(1, (long) ((1.0 - tokens) * 1_000_000_000.0 / permitsPerSecond));
+        }
+
+        synchronized void pauseUntil(long epochMillis) {
+            pausedUntilMillis = Math.max(pausedUntilMillis, epochMillis);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.config;
+
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+
+@Configuration
+public class HttpClientConfig {
+
+    @Value("${gravity.confluence.http.max-connections-per-host:8}")
+    private int maxConnectionsPerHost;
+
+    @Value("${gravity.confluence.http.max-connections-total:32}")
+    private int maxConnectionsTotal;
+
+    @Value("${gravity.confluence.http.connect-timeout-seconds:10}")
+    private int connectTimeoutSeconds;
+
+    @Value("${gravity.confluence.http.response-timeout-seconds:120}")
+    private int responseTimeoutSeconds;
+
+    @Value("${gravity.confluence.http.requests-per-second:10}")
+    private double confluenceRequestsPerSecond;
+
+    @Value("${gravity.confluence.http.burst:20}")
+    private int confluenceBurst;
+
+    @Value("${gravity.llm.http.requests-per-second:2}")
+    private double llmRequestsPerSecond;
+
+    @Value("${gravity.llm.http.burst:4}")
+    private int llmBurst;
+
+    @Value("${gravity.http.max-retries:3}")
+    private int maxRetries;
+
+    /**
+     * Pooled HTTP client for Confluence. Connections are kept alive and reused across requests,
+     * and responses are requested and decoded with gzip/deflate (enabled by default in
+     * HttpClient 5).
+     */
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient confluenceHttpClient() {
+        PoolingHttpClientConnectionManager connectionManager = PoolingHttpClientConnectionManagerBuilder.create()
+                .setMaxConnPerRoute(maxConnectionsPerHost)
+                .setMaxConnTotal(maxConnectionsTotal)
+                .setDefaultConnectionConfig(ConnectionConfig.custom()
+                        .setConnectTimeout(Timeout.ofSeconds(connectTimeoutSeconds))
+                        .setSocketTimeout(Timeout.ofSeconds(responseTimeoutSeconds))
+                        .setTimeToLive(TimeValue.ofMinutes(5))
+                        .build())
+                .build();
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setResponseTimeout(Timeout.ofSeconds(responseTimeoutSeconds))
+                        .build())
+                .evictIdleConnections(TimeValue.ofSeconds(30))
+                .evictExpiredConnections()
+                .build();
+    }
+
+    @Bean
+    public HostRateLimiter confluenceRateLimiter() {
+        return new HostRateLimiter(confluenceRequestsPerSecond, confluenceBurst);
+    }
+
+    @Bean
+    public HostRateLimiter llmRateLimiter() {
+        return new HostRateLimiter(llmRequestsPerSecond, llmBurst);
+    }
+
+    /**
+     * Interceptor applying the Confluence rate limit and 429 Retry-After handling.
+     */
+    @Bean
+    public ClientHttpRequestInterceptor confluenceRateLimitingInterceptor() {
+        return new RateLimitingInterceptor(confluenceRateLimiter(), maxRetries);
+    }
+
+    /**
+     * Interceptor applying the LLM gateway rate limit and 429 Retry-After handling.
+     */
+    @Bean
+    public ClientHttpRequestInterceptor llmRateLimitingInterceptor() {
+        return new RateLimitingInterceptor(llmRateLimiter(), maxRetries);
+    }
+}
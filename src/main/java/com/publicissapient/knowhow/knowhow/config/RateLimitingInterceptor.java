@@ -0,0 +1,93 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.config;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.ClientHttpRequestExecution;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * RestTemplate interceptor that takes a token from the {@link HostRateLimiter} before every
+ * request and retries requests rejected with 429 Too Many Requests (or 503 with a Retry-After
+ * header), pausing the host for the time the server asked for.
+ */
+public class RateLimitingInterceptor implements ClientHttpRequestInterceptor {
+
+    private final HostRateLimiter rateLimiter;
+    private final int maxRetries;
+
+    public RateLimitingInterceptor(HostRateLimiter rateLimiter, int maxRetries) {
+        this.rateLimiter = rateLimiter;
+        this.maxRetries = maxRetries;
+    }
+
+    @Override
+    public ClientHttpResponse intercept(HttpRequest request, byte[] body, ClientHttpRequestExecution execution)
+            throws IOException {
+        String host = request.getURI().getHost();
+
+        for (int attempt = 0;; attempt++) {
+            try {
+                rateLimiter.acquire(host);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for rate limit of " + host);
+            }
+
+            ClientHttpResponse response = execution.execute(request, body);
+            String retryAfter = response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER);
+            boolean throttled = response.getStatusCode().value() == HttpStatus.TOO_MANY_REQUESTS.value()
+                    || (response.getStatusCode().value() == HttpStatus.SERVICE_UNAVAILABLE.value()
+                            && retryAfter != null);
+            if (!throttled || attempt >= maxRetries) {
+                return response;
+            }
+
+            long delayMillis = retryAfterMillis(retryAfter, attempt);
+            rateLimiter.recordThrottledRetry();
+            response.close();
+            rateLimiter.pauseUntil(host, System.currentTimeMillis() + delayMillis);
+        }
+    }
+
+    /**
+     * Parse Retry-After as delay-seconds or HTTP-date, falling back to exponential backoff.
+     */
+    private long retryAfterMillis(String retryAfter, int attempt) {
+        if (retryAfter != null) {
+            try {
+                return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                try {
+                    ZonedDateTime retryAt = ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME);
+                    return Math.max(0, retryAt.toInstant().toEpochMilli() - System.currentTimeMillis());
+                } catch (Exception ignored) {
+                    // fall through to backoff
+                }
+            }
+        }
+        return 1000L << Math.min(attempt, 6);
+    }
+}
@@ -16,6 +16,8 @@
 
 package com.publicissapient.knowhow.knowhow.config;
 
+import com.publicissapient.knowhow.knowhow.service.BatchingEmbeddingModel;
+import com.publicissapient.knowhow.knowhow.vector.QuantizedPgVectorStore;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.store.embedding.EmbeddingStore;
@@ -35,6 +37,12 @@ public class VectorStoreConfig {
     @Value("${gravity.vector-store.dimension}")
     private int dimension;
 
+    @Value("${gravity.vector-store.index-quantization:none}")
+    private String indexQuantization;
+
+    @Value("${gravity.vector-store.rescore-factor:8}")
+    private int rescoreFactor;
+
     @Value("${spring.datasource.url}")
     private String dbUrl;
 
@@ -44,13 +52,55 @@ public class VectorStoreConfig {
     @Value("${spring.datasource.password}")
     private String dbPassword;
 
-    @Bean
+    @Value("${gravity.embedding.model:all-minilm-l6-v2}")
+    private String embeddingModelName;
+
+    @Value("${gravity.embedding.runtime.sessions:1}")
+    private int embeddingSessions;
+
+    @Value("${gravity.embedding.runtime.intra-op-threads:0}")
+    private int embeddingIntraOpThreads;
+
+    @Value("${gravity.embedding.runtime.inter-op-threads:0}")
+    private int embeddingInterOpThreads;
+
+    @Value("${gravity.embedding.batch.size:32}")
+    private int embeddingBatchSize;
+
+    @Value("${gravity.embedding.batch.sort-window-batches:4}")
+    private int embeddingSortWindowBatches;
+
+    @Value("${gravity.embedding.batch.max-wait-millis:5}")
+    private long embeddingMaxWaitMillis;
+
+    @Value("${gravity.scheduler.background-min-share:0.2}")
+    private double backgroundMinShare;
+
+    /**
+     * all-MiniLM-L6-v2 (float or int8-quantized) run on shared micro-batches, so segments from
+     * concurrently embedded pages and simultaneous query embeddings go through the same
+     * forward passes.
+     */
+    @Bean(destroyMethod = "close")
     public EmbeddingModel embeddingModel() {
-        return new dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel();
+        BatchingEmbeddingModel.Settings settings = new BatchingEmbeddingModel.Settings();
+        settings.setModel(embeddingModelName);
+        settings.setSessions(embeddingSessions);
+        settings.setIntraOpThreads(embeddingIntraOpThreads);
+        settings.setInterOpThreads(embeddingInterOpThreads);
+        settings.setBatchSize(embeddingBatchSize);
+        settings.setSortWindowBatches(embeddingSortWindowBatches);
+        settings.setMaxWaitMillis(embeddingMaxWaitMillis);
+        settings.setBackgroundMinShare(backgroundMinShare);
+        return new BatchingEmbeddingModel(settings);
     }
 
+    /**
+     * pgvector store, optionally searched through a halfvec or binary quantized index with
+     * full-precision rescoring (gravity.vector-store.index-quantization).
+     */
     @Bean
-    public EmbeddingStore<TextSegment> embeddingStore() {
+    public EmbeddingStore<TextSegment> embeddingStore(DataSource dataSource) {
         // Parse database connection details from JDBC URL
         // Expected format: jdbc:postgresql://host:port/database
         String host = "localhost";
@@ -82,7 +132,7 @@ public class VectorStoreConfig {
             System.err.println("Error parsing DB URL in VectorStoreConfig: " + e.getMessage());
         }
 
-        return PgVectorEmbeddingStore.builder()
+        PgVectorEmbeddingStore store = PgVectorEmbeddingStore.builder()
                 .host(host)
                 .port(port)
                 .database(database)
@@ -91,5 +141,21 @@ public class VectorStoreConfig {
                 .table(tableName)
                 .dimension(dimension)
                 .build();
+
+        QuantizedPgVectorStore.Quantization quantization = QuantizedPgVectorStore.Quantization
+                .valueOf(indexQuantization.trim().toUpperCase());
+        if (quantization == QuantizedPgVectorStore.Quantization.NONE) {
+            return store;
+        }
+        QuantizedPgVectorStore quantized = new QuantizedPgVectorStore(store, dataSource, tableName, dimension,
+                quantization, rescoreFactor);
+        try {
+            quantized.createIndex();
+        } catch (Exception e) {
+            // Searches still work without the index, through a sequential scan of the expression
+            System.err.println("Error creating quantized vector index " + quantized.indexName() + ": "
+                    + e.getMessage());
+        }
+        return quantized;
     }
 }
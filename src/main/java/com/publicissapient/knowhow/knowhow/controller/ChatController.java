@@ -16,12 +16,20 @@
 
 package com.publicissapient.knowhow.knowhow.controller;
 
+import com.publicissapient.knowhow.knowhow.model.IngestionItem;
 import com.publicissapient.knowhow.knowhow.service.RAGService;
+import com.publicissapient.knowhow.knowhow.service.IngestionJob;
 import com.publicissapient.knowhow.knowhow.service.IngestionService;
+import com.publicissapient.knowhow.knowhow.service.PipelineStage;
+import com.publicissapient.knowhow.knowhow.service.PriorityGate;
+import com.publicissapient.knowhow.knowhow.service.PriorityScheduler;
+import com.publicissapient.knowhow.knowhow.service.QueryLatencyStats;
 import com.publicissapient.knowhow.knowhow.service.FeedbackService;
 import com.publicissapient.knowhow.knowhow.service.SupportEmailService;
+import com.publicissapient.knowhow.knowhow.vector.VectorSearchService;
 import lombok.Data;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 @RestController
@@ -41,6 +49,12 @@ public class ChatController {
     @Autowired
     private SupportEmailService supportEmailService;
 
+    @Autowired
+    private PriorityScheduler priorityScheduler;
+
+    @Autowired
+    private VectorSearchService vectorSearchService;
+
     @PostMapping
     public ChatResponse ask(@RequestBody ChatRequest request) {
         return ragService.askQuestion(
@@ -50,9 +64,51 @@ public class ChatController {
                 request.getConversationHistory());
     }
 
-    @GetMapping("/ingest")
-    public String ingest() {
-        return ingestionService.ingestAll();
+    @RequestMapping(value = "/ingest", method = { RequestMethod.GET, RequestMethod.POST })
+    public IngestionJob ingest(@RequestParam(defaultValue = "false") boolean fresh) {
+        return ingestionService.startIngestion(fresh);
+    }
+
+    @GetMapping("/ingest/jobs/{jobId}")
+    public ResponseEntity<IngestionJob> ingestStatus(@PathVariable String jobId) {
+        IngestionJob job = ingestionService.getJob(jobId);
+        return job == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(job);
+    }
+
+    @DeleteMapping("/ingest/jobs/{jobId}")
+    public ResponseEntity<IngestionJob> cancelIngest(@PathVariable String jobId) {
+        IngestionJob job = ingestionService.cancelJob(jobId);
+        return job == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(job);
+    }
+
+    @GetMapping("/ingest/pipeline")
+    public java.util.List<PipelineStage.StageStats> ingestPipelineStats() {
+        return ingestionService.getPipelineStats();
+    }
+
+    @GetMapping("/scheduler")
+    public java.util.List<PriorityGate.GateStats> schedulerStats() {
+        return priorityScheduler.getStats();
+    }
+
+    @GetMapping("/vector-index")
+    public VectorSearchService.IndexStats vectorIndexStats() {
+        return vectorSearchService.getStats();
+    }
+
+    @GetMapping("/vector-store")
+    public VectorSearchService.StoreStats vectorStoreStats() throws java.sql.SQLException {
+        return vectorSearchService.getStoreStats();
+    }
+
+    @GetMapping("/query-latency")
+    public java.util.List<QueryLatencyStats.StageLatency> queryLatency() {
+        return ragService.getLatencyStats();
+    }
+
+    @GetMapping("/ingest/dead-letters")
+    public java.util.List<IngestionItem> ingestDeadLetters() {
+        return ingestionService.getDeadLetters();
     }
 
     @PostMapping("/feedback")
@@ -75,8 +131,8 @@ public class ChatController {
     public java.util.List<String> debugSearch(@RequestParam String query) {
         dev.langchain4j.data.embedding.Embedding embedding = ingestionService.getEmbeddingModel().embed(query)
                 .content();
-        java.util.List<dev.langchain4j.store.embedding.EmbeddingMatch<dev.langchain4j.data.segment.TextSegment>> matches = ingestionService
-                .getEmbeddingStore().findRelevant(embedding, 20, 0.0);
+        java.util.List<dev.langchain4j.store.embedding.EmbeddingMatch<dev.langchain4j.data.segment.TextSegment>> matches = vectorSearchService
+                .findRelevant(embedding, 20, 0.0);
         return matches.stream().map(m -> "Score: " + m.score() + " | Content: " + m.embedded().text())
                 .collect(java.util.stream.Collectors.toList());
     }
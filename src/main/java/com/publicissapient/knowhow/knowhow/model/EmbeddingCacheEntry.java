@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.model;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+import java.time.LocalDateTime;
+
+/**
+ * Entity representing a cached segment embedding.
+ * The key is a SHA-256 hash of the embedding model id and the segment text, so
+ * unchanged segments and repeated boilerplate are only embedded once per model.
+ */
+@Entity
+@Table(name = "embedding_cache")
+public class EmbeddingCacheEntry {
+
+    @Id
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+
+    @Column(name = "model_id", nullable = false, length = 100)
+    private String modelId;
+
+    @Column(columnDefinition = "vector", nullable = false)
+    @JdbcTypeCode(SqlTypes.VECTOR)
+    private float[] embedding;
+
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+
+    public EmbeddingCacheEntry() {
+        this.createdAt = LocalDateTime.now();
+    }
+
+    public EmbeddingCacheEntry(String contentHash, String modelId, float[] embedding) {
+        this.contentHash = contentHash;
+        this.modelId = modelId;
+        this.embedding = embedding;
+        this.createdAt = LocalDateTime.now();
+    }
+
+    // Getters and Setters
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    public String getModelId() {
+        return modelId;
+    }
+
+    public void setModelId(String modelId) {
+        this.modelId = modelId;
+    }
+
+    public float[] getEmbedding() {
+        return embedding;
+    }
+
+    public void setEmbedding(float[] embedding) {
+        this.embedding = embedding;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+package com.publicissapient.knowhow.knowhow.model;
+
+import jakarta.persistence.*;
+
+/**
+ * Entity representing one text chunk of a cached attachment extraction.
+ * Chunks are stored in extraction order and replayed in the same order on a cache hit.
+ */
+@Entity
+@Table(name = "extraction_cache_chunk", indexes = @Index(name = "idx_extraction_cache_chunk_key",
+        columnList = "cache_key, chunk_index"))
+public class ExtractionCacheChunk {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "cache_key", nullable = false, length = 64)
+    private String cacheKey;
+
+    @Column(name = "chunk_index", nullable = false)
+    private int chunkIndex;
+
+    @Column(columnDefinition = "TEXT", nullable = false)
+    private String text;
+
+    public ExtractionCacheChunk() {
+    }
+
+    public ExtractionCacheChunk(String cacheKey, int chunkIndex, String text) {
+        this.cacheKey = cacheKey;
+        this.chunkIndex = chunkIndex;
+        this.text = text;
+    }
+
+    // Getters and Setters
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public void setCacheKey(String cacheKey) {
+        this.cacheKey = cacheKey;
+    }
+
+    public int getChunkIndex() {
+        return chunkIndex;
+    }
+
+    public void setChunkIndex(int chunkIndex) {
+        this.chunkIndex = chunkIndex;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+}
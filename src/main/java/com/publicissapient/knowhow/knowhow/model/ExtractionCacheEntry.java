@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+package com.publicissapient.knowhow.knowhow.model;
+
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Entity representing a cached attachment extraction (OCR text or Tika output).
+ * The key is a SHA-256 hash of the extractor id and the file content, so the same image or
+ * document attached to many pages is only extracted once. The attachment id and version of
+ * the first extraction allow a hit without downloading the file again.
+ */
+@Entity
+@Table(name = "extraction_cache", indexes = @Index(name = "idx_extraction_cache_attachment",
+        columnList = "attachment_id, attachment_version, extractor"))
+public class ExtractionCacheEntry {
+
+    @Id
+    @Column(name = "cache_key", length = 64)
+    private String cacheKey;
+
+    @Column(nullable = false, length = 100)
+    private String extractor;
+
+    @Column(name = "attachment_id", length = 100)
+    private String attachmentId;
+
+    @Column(name = "attachment_version")
+    private Integer attachmentVersion;
+
+    @Column(nullable = false)
+    private int chunkCount;
+
+    @Column(nullable = false)
+    private long extractionMillis; // Time the original extraction took
+
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+
+    public ExtractionCacheEntry() {
+        this.createdAt = LocalDateTime.now();
+    }
+
+    public ExtractionCacheEntry(String cacheKey, String extractor, String attachmentId, Integer attachmentVersion) {
+        this.cacheKey = cacheKey;
+        this.extractor = extractor;
+        this.attachmentId = attachmentId;
+        this.attachmentVersion = attachmentVersion;
+        this.createdAt = LocalDateTime.now();
+    }
+
+    // Getters and Setters
+    public String getCacheKey() {
+        return cacheKey;
+    }
+
+    public void setCacheKey(String cacheKey) {
+        this.cacheKey = cacheKey;
+    }
+
+    public String getExtractor() {
+        return extractor;
+    }
+
+    public void setExtractor(String extractor) {
+        this.extractor = extractor;
+    }
+
+    public String getAttachmentId() {
+        return attachmentId;
+    }
+
+    public void setAttachmentId(String attachmentId) {
+        this.attachmentId = attachmentId;
+    }
+
+    public Integer getAttachmentVersion() {
+        return attachmentVersion;
+    }
+
+    public void setAttachmentVersion(Integer attachmentVersion) {
+        this.attachmentVersion = attachmentVersion;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    public void setChunkCount(int chunkCount) {
+        this.chunkCount = chunkCount;
+    }
+
+    public long getExtractionMillis() {
+        return extractionMillis;
+    }
+
+    public void setExtractionMillis(long extractionMillis) {
+        this.extractionMillis = extractionMillis;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.model;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+/**
+ * HTTP validators (ETag / Last-Modified) of the last successful fetch of a Confluence URL.
+ * They are sent back as If-None-Match / If-Modified-Since so unchanged content costs a 304.
+ */
+@Entity
+@Table(name = "http_validator")
+public class HttpValidator {
+
+    @Id
+    @Column(name = "url_hash", length = 64)
+    private String urlHash;
+
+    @Column(nullable = false, length = 4000)
+    private String url;
+
+    @Column(length = 500)
+    private String etag;
+
+    @Column(length = 100)
+    private String lastModified;
+
+    private long contentLength;
+
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+
+    public HttpValidator() {
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    public HttpValidator(String urlHash, String url) {
+        this.urlHash = urlHash;
+        this.url = url;
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    // Getters and Setters
+    public String getUrlHash() {
+        return urlHash;
+    }
+
+    public void setUrlHash(String urlHash) {
+        this.urlHash = urlHash;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public long getContentLength() {
+        return contentLength;
+    }
+
+    public void setContentLength(long contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+package com.publicissapient.knowhow.knowhow.model;
+
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Entity representing the crawl checkpoint of one partition of an ingestion run: the search
+ * cursor below which every page and attachment has been fully ingested.
+ */
+@Entity
+@Table(name = "ingestion_checkpoint", indexes = @Index(name = "idx_ingestion_checkpoint_run",
+        columnList = "run_id"))
+public class IngestionCheckpoint {
+
+    @Id
+    @Column(length = 80)
+    private String id; // Run id + partition key
+
+    @Column(name = "run_id", nullable = false, length = 36)
+    private String runId;
+
+    @Column(name = "partition_cql", columnDefinition = "TEXT", nullable = false)
+    private String partitionCql;
+
+    @Column(length = 4000)
+    private String cursor; // Link of the first batch not yet fully ingested; null for the first batch
+
+    @Column(nullable = false)
+    private boolean done;
+
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+
+    public IngestionCheckpoint() {
+    }
+
+    public IngestionCheckpoint(String id, String runId, String partitionCql) {
+        this.id = id;
+        this.runId = runId;
+        this.partitionCql = partitionCql;
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    public String getPartitionCql() {
+        return partitionCql;
+    }
+
+    public void setPartitionCql(String partitionCql) {
+        this.partitionCql = partitionCql;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    public void setDone(boolean done) {
+        this.done = done;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
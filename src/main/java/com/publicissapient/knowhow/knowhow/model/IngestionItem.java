@@ -0,0 +1,136 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+package com.publicissapient.knowhow.knowhow.model;
+
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Entity representing the outcome of one ingested item (page content or attachment) in an
+ * ingestion run. Items that keep failing across resumes are moved to the dead-letter status
+ * and skipped from then on.
+ */
+@Entity
+@Table(name = "ingestion_item", indexes = @Index(name = "idx_ingestion_item_run_status",
+        columnList = "run_id, status"))
+public class IngestionItem {
+
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+    public static final String DEAD = "DEAD";
+
+    @Id
+    @Column(length = 200)
+    private String id; // Run id + item key
+
+    @Column(name = "run_id", nullable = false, length = 36)
+    private String runId;
+
+    @Column(name = "item_key", nullable = false, length = 150)
+    private String itemKey; // e.g. page:12345 or attachment:67890
+
+    @Column(length = 500)
+    private String title;
+
+    @Column(nullable = false, length = 10)
+    private String status;
+
+    @Column(nullable = false)
+    private int attempts;
+
+    @Column(length = 2000)
+    private String lastError;
+
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+
+    public IngestionItem() {
+    }
+
+    public IngestionItem(String runId, String itemKey, String title) {
+        this.id = runId + ":" + itemKey;
+        this.runId = runId;
+        this.itemKey = itemKey;
+        this.title = title;
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    // Getters and Setters
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    public String getItemKey() {
+        return itemKey;
+    }
+
+    public void setItemKey(String itemKey) {
+        this.itemKey = itemKey;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.model;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+import java.time.LocalDateTime;
+
+/**
+ * Entity representing the page-level embedding of a Confluence page, computed from its
+ * title, tags and lead section. The search replica uses these to pick the best pages before
+ * scoring their segments.
+ */
+@Entity
+@Table(name = "page_embedding")
+public class PageEmbedding {
+
+    @Id
+    @Column(name = "page_id", length = 64)
+    private String pageId;
+
+    @Column(columnDefinition = "text")
+    private String title;
+
+    @Column(columnDefinition = "vector", nullable = false)
+    @JdbcTypeCode(SqlTypes.VECTOR)
+    private float[] embedding;
+
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+
+    public PageEmbedding() {
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    public PageEmbedding(String pageId, String title, float[] embedding) {
+        this.pageId = pageId;
+        this.title = title;
+        this.embedding = embedding;
+        this.updatedAt = LocalDateTime.now();
+    }
+
+    // Getters and Setters
+    public String getPageId() {
+        return pageId;
+    }
+
+    public void setPageId(String pageId) {
+        this.pageId = pageId;
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    public float[] getEmbedding() {
+        return embedding;
+    }
+
+    public void setEmbedding(float[] embedding) {
+        this.embedding = embedding;
+    }
+
+    public LocalDateTime getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(LocalDateTime updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.repository;
+
+import com.publicissapient.knowhow.knowhow.model.EmbeddingCacheEntry;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Repository for the persistent segment embedding cache.
+ * Entries are looked up in bulk by content hash before calling the embedding model.
+ */
+@Repository
+public interface EmbeddingCacheRepository extends JpaRepository<EmbeddingCacheEntry, String> {
+
+    /**
+     * Delete entries computed by any model other than the given one. Their keys include the
+     * old model id, so they can never be hit again.
+     */
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM EmbeddingCacheEntry e WHERE e.modelId <> :modelId")
+    int deleteByModelIdNot(@Param("modelId") String modelId);
+}
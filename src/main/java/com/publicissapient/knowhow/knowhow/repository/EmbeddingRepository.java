@@ -20,6 +20,7 @@ import com.publicissapient.knowhow.knowhow.model.EmbeddingEntity;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -33,14 +34,37 @@ import java.util.UUID;
 public interface EmbeddingRepository extends JpaRepository<EmbeddingEntity, UUID> {
 
     /**
-     * Truncate the embeddings table to clear all data.
+     * Truncate the embeddings table and the document text its segments point into.
      * This is used during re-ingestion to start fresh.
      */
     @Modifying
     @Transactional
-    @Query(value = "TRUNCATE TABLE vector_store", nativeQuery = true)
+    @Query(value = "TRUNCATE TABLE vector_store, document_text", nativeQuery = true)
     void truncateTable();
 
+    /**
+     * Delete the segments of every item that was not completed in the given ingestion run.
+     * Used when resuming a run, so items that were partly stored before an interruption are
+     * not duplicated when they are ingested again.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM vector_store v WHERE NOT EXISTS (SELECT 1 FROM ingestion_item i "
+            + "WHERE i.run_id = :runId AND i.status = 'DONE' AND i.item_key = v.metadata->>'source_id')",
+            nativeQuery = true)
+    int deleteUnfinishedItems(@Param("runId") String runId);
+
+    /**
+     * Delete the stored text of every item that was not completed in the given ingestion run,
+     * the counterpart of {@link #deleteUnfinishedItems} for the document table.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "DELETE FROM document_text d WHERE NOT EXISTS (SELECT 1 FROM ingestion_item i "
+            + "WHERE i.run_id = :runId AND i.status = 'DONE' AND i.item_key = d.source_id)",
+            nativeQuery = true)
+    int deleteUnfinishedDocuments(@Param("runId") String runId);
+
     /**
      * Count total number of embeddings in the database.
      */
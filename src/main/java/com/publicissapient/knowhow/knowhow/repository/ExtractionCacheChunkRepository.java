@@ -0,0 +1,35 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+package com.publicissapient.knowhow.knowhow.repository;
+
+import com.publicissapient.knowhow.knowhow.model.ExtractionCacheChunk;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+/**
+ * Repository for the text chunks of cached attachment extractions.
+ */
+@Repository
+public interface ExtractionCacheChunkRepository extends JpaRepository<ExtractionCacheChunk, Long> {
+
+    List<ExtractionCacheChunk> findByCacheKeyOrderByChunkIndex(String cacheKey);
+
+    @Transactional
+    void deleteByCacheKey(String cacheKey);
+}
@@ -0,0 +1,38 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+package com.publicissapient.knowhow.knowhow.repository;
+
+import com.publicissapient.knowhow.knowhow.model.IngestionItem;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * Repository for the per-item progress and dead-letter list of ingestion runs.
+ */
+@Repository
+public interface IngestionItemRepository extends JpaRepository<IngestionItem, String> {
+
+    @Query("SELECT i.itemKey FROM IngestionItem i WHERE i.runId = :runId AND i.status = :status")
+    List<String> findItemKeys(@Param("runId") String runId, @Param("status") String status);
+
+    List<IngestionItem> findByRunIdAndStatus(String runId, String status);
+
+    List<IngestionItem> findByRunIdAndStatusOrderByUpdatedAtDesc(String runId, String status);
+}
@@ -0,0 +1,37 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+package com.publicissapient.knowhow.knowhow.repository;
+
+import com.publicissapient.knowhow.knowhow.model.IngestionRun;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Repository for ingestion runs.
+ */
+@Repository
+public interface IngestionRunRepository extends JpaRepository<IngestionRun, String> {
+
+    Optional<IngestionRun> findFirstByStatusInOrderByStartedAtDesc(Collection<String> statuses);
+
+    Optional<IngestionRun> findFirstByOrderByStartedAtDesc();
+
+    List<IngestionRun> findByStatusIn(Collection<String> statuses);
+}
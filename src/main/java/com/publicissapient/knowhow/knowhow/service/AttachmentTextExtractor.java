@@ -0,0 +1,389 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.tika.fork.ForkParser;
+import org.apache.tika.fork.ParserFactoryFactory;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.AutoDetectParserFactory;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Extracts text from attachment files with Tika, streaming it out in chunks instead of
+ * building one string for the whole file. Chunks are cut at page boundaries for formats whose
+ * Tika output marks pages (PDF pages, presentation slides), and at block boundaries otherwise,
+ * so only about one chunk of text is held in memory whatever the attachment size.
+ *
+ * Parsing runs on parser threads, at most tika.threads at a time, with a wall-clock timeout
+ * per document and a cap on the extracted characters. A parser that does not stop after its
+ * timeout is abandoned rather than waited for, so stuck files cannot block later ones. Once
+ * tika.max-abandoned-parsers of those are still running, in-process parsing is skipped until
+ * some of them finish, so hanging files cannot pile up threads and parse buffers without bound.
+ * Optionally documents are parsed in forked JVMs, so a file that hangs or crashes the parser
+ * cannot take the ingestion down with it.
+ */
+@Service
+public class AttachmentTextExtractor {
+
+    @FunctionalInterface
+    public interface ChunkHandler {
+        void handle(String text) throws InterruptedException;
+    }
+
+    /**
+     * Thrown when parsing a document takes longer than the configured timeout.
+     */
+    public static class ExtractionTimeoutException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ExtractionTimeoutException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Thrown instead of parsing in-process while too many abandoned parser threads are running.
+     */
+    public static class ParserUnavailableException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ParserUnavailableException(String message) {
+            super(message);
+        }
+    }
+
+    // Tika XHTML classes that wrap one page or slide
+    private static final Set<String> PAGE_CLASSES = Set.of("page", "slide-content", "slide-notes");
+
+    // Elements after which a line break is emitted and a chunk may be cut
+    private static final Set<String> BLOCK_ELEMENTS = Set.of("p", "div", "li", "tr", "h1", "h2", "h3", "h4", "h5",
+            "h6", "pre", "table", "br");
+
+    // Marks the end of a document in the queue between the parser thread and the caller
+    private static final String END = new String("END");
+
+    @Value("${gravity.ingestion.attachment.chunk-chars:20000}")
+    private int chunkChars;
+
+    @Value("${gravity.ingestion.tika.threads:2}")
+    private int parseThreads;
+
+    @Value("${gravity.ingestion.tika.timeout-seconds:120}")
+    private long timeoutSeconds;
+
+    @Value("${gravity.ingestion.tika.max-chars:5000000}")
+    private long maxChars;
+
+    @Value("${gravity.ingestion.tika.max-abandoned-parsers:4}")
+    private int maxAbandonedParsers;
+
+    // Directory holding the Tika jars (e.g. tika-app) used by forked parser JVMs; empty parses in-process
+    @Value("${gravity.ingestion.tika.fork.tika-bin:}")
+    private String forkTikaBin;
+
+    @Value("${gravity.ingestion.tika.fork.java-command:java -Xmx512m}")
+    private String forkJavaCommand;
+
+    private Parser parser = new AutoDetectParser();
+    private ForkParser forkParser;
+    private Semaphore parsePermits;
+    private final AtomicInteger threadCount = new AtomicInteger();
+    private final Set<Thread> abandonedParsers = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        if (forkTikaBin != null && !forkTikaBin.isBlank()) {
+            forkParser = new ForkParser(Paths.get(forkTikaBin),
+                    new ParserFactoryFactory(AutoDetectParserFactory.class.getName(), new HashMap<>()));
+            forkParser.setPoolSize(Math.max(1, parseThreads));
+            forkParser.setJavaCommand(Arrays.asList(forkJavaCommand.trim().split("\\s+")));
+            forkParser.setServerParseTimeoutMillis(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+            parser = forkParser;
+            System.out.println("Parsing attachments in forked JVMs using Tika from " + forkTikaBin);
+        }
+
+        parsePermits = new Semaphore(Math.max(1, parseThreads));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (forkParser != null) {
+            forkParser.close();
+        }
+    }
+
+    /**
+     * Identifies this extractor and its settings in the extraction cache; cached output of a
+     * different chunk size or character limit is not reused.
+     */
+    public String getExtractorId() {
+        return "tika:" + chunkChars + ":" + maxChars;
+    }
+
+    /**
+     * Parse the file and hand its text to the handler chunk by chunk, in document order.
+     * Parsing happens on a parser thread; the handler runs on the calling thread. The timeout
+     * runs from the call, so waiting for a free parser counts, while time spent in the handler
+     * does not.
+     *
+     * @return number of chunks emitted
+     * @throws ExtractionTimeoutException if parsing exceeds the timeout
+     * @throws ParserUnavailableException if in-process parsing is suspended because too many
+     *         abandoned parsers are still running
+     */
+    public int extract(Path file, ChunkHandler handler, IngestionReport report) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+        if (!parsePermits.tryAcquire(timeoutSeconds, TimeUnit.SECONDS)) {
+            throw new ExtractionTimeoutException("No parser became free for " + file.getFileName() + " within "
+                    + timeoutSeconds + " s");
+        }
+        // Checked while holding a permit, so at most tika.threads parsers can start past the cap.
+        // A forked parser is killed by its own server-side timeout and never abandoned
+        int abandonedRunning = getAbandonedParsers();
+        report.recordAbandonedParsers(abandonedRunning);
+        if (forkParser == null && abandonedRunning >= maxAbandonedParsers) {
+            parsePermits.release();
+            report.recordParseSkipped();
+            throw new ParserUnavailableException("Skipped parsing " + file.getFileName() + ": " + abandonedRunning
+                    + " timed out parsers are still running in-process");
+        }
+        AtomicBoolean permitHeld = new AtomicBoolean(true);
+        Runnable releasePermit = () -> {
+            if (permitHeld.compareAndSet(true, false)) {
+                parsePermits.release();
+            }
+        };
+
+        BlockingQueue<String> chunks = new ArrayBlockingQueue<>(2);
+        AtomicBoolean abandoned = new AtomicBoolean();
+        AtomicBoolean truncated = new AtomicBoolean();
+        ChunkHandler enqueue = text -> {
+            while (!chunks.offer(text, 100, TimeUnit.MILLISECONDS)) {
+                if (abandoned.get()) {
+                    throw new InterruptedException("Extraction abandoned");
+                }
+            }
+        };
+        FutureTask<Void> parse = new FutureTask<>(() -> {
+            try {
+                truncated.set(parse(file, enqueue));
+            } finally {
+                try {
+                    enqueue.handle(END);
+                } finally {
+                    releasePermit.run();
+                }
+            }
+            return null;
+        });
+        Thread parseThread = new Thread(parse, "tika-" + threadCount.incrementAndGet());
+        parseThread.setDaemon(true);
+        parseThread.start();
+
+        int emitted = 0;
+        try {
+            while (true) {
+                String chunk = chunks.poll(100, TimeUnit.MILLISECONDS);
+                if (chunk == END) {
+                    break;
+                }
+                if (chunk != null) {
+                    long handlerStart = System.nanoTime();
+                    handler.handle(chunk);
+                    deadline += System.nanoTime() - handlerStart;
+                    emitted++;
+                    continue;
+                }
+
+                if (System.nanoTime() > deadline) {
+                    throw new ExtractionTimeoutException("Parsing " + file.getFileName() + " exceeded "
+                            + timeoutSeconds + " s");
+                }
+            }
+
+            parse.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        } finally {
+            abandoned.set(true);
+            // Interrupts the parser where it checks for interrupts; a CPU-bound in-process parser
+            // keeps running, so its thread is abandoned and its permit handed to the next file.
+            // A forked parser is killed by its own server-side timeout
+            parse.cancel(true);
+            if (permitHeld.get()) {
+                abandonedParsers.add(parseThread);
+                releasePermit.run();
+                report.recordAbandonedParsers(getAbandonedParsers());
+            }
+        }
+
+        if (truncated.get()) {
+            report.recordParseTruncated();
+        }
+        return emitted;
+    }
+
+    /**
+     * Parser threads given up on after a timeout that are still running. They no longer count
+     * against the parser limit but do count against max-abandoned-parsers; a growing number
+     * means in-process parsing should move to forked JVMs (tika-bin).
+     */
+    public int getAbandonedParsers() {
+        abandonedParsers.removeIf(thread -> !thread.isAlive());
+        return abandonedParsers.size();
+    }
+
+    /**
+     * @return true if the text was cut off at the character limit
+     */
+    private boolean parse(Path file, ChunkHandler handler) throws Exception {
+        ChunkingHandler chunking = new ChunkingHandler(handler);
+        // TikaInputStream over a path lets container and PDF parsers read the file randomly
+        // instead of spooling it into memory
+        try (TikaInputStream input = TikaInputStream.get(file)) {
+            parser.parse(input, chunking, new Metadata(), new ParseContext());
+        } catch (Exception e) {
+            // Handler exceptions come back wrapped by the SAX and Tika layers
+            for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                if (cause instanceof InterruptedException interrupted) {
+                    throw interrupted;
+                }
+                if (cause instanceof CharacterLimitReached) {
+                    return true;
+                }
+            }
+            throw e;
+        }
+        chunking.flush();
+        return false;
+    }
+
+    /**
+     * Stops the parse once the character limit has been emitted.
+     */
+    private static class CharacterLimitReached extends SAXException {
+        private static final long serialVersionUID = 1L;
+
+        CharacterLimitReached() {
+            super("Extracted character limit reached");
+        }
+    }
+
+    private class ChunkingHandler extends DefaultHandler {
+        private final ChunkHandler handler;
+        private final StringBuilder text = new StringBuilder();
+        private long totalChars;
+
+        ChunkingHandler(ChunkHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            append(ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            append(ch, start, length);
+        }
+
+        private void append(char[] ch, int start, int length) throws SAXException {
+            long remaining = maxChars - totalChars - text.length();
+            if (length > remaining) {
+                text.append(ch, start, (int) Math.max(0, remaining));
+                emit();
+                throw new CharacterLimitReached();
+            }
+            text.append(ch, start, length);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes)
+                throws SAXException {
+            // Close the current chunk when a new page starts and enough text has been collected
+            String cssClass = attributes.getValue("class");
+            if ("div".equals(localName) && cssClass != null && PAGE_CLASSES.contains(cssClass)
+                    && text.length() >= chunkChars) {
+                emit();
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (BLOCK_ELEMENTS.contains(localName)) {
+                text.append('\n');
+                // Formats without page markers are cut at a block boundary once the chunk is
+                // well past its target size
+                if (text.length() >= 2L * chunkChars) {
+                    emit();
+                }
+            }
+        }
+
+        void flush() throws InterruptedException {
+            try {
+                emit();
+            } catch (SAXException e) {
+                throw (InterruptedException) e.getCause();
+            }
+        }
+
+        private void emit() throws SAXException {
+            totalChars += text.length();
+            String chunk = text.toString().trim();
+            text.setLength(0);
+            if (chunk.isEmpty()) {
+                return;
+            }
+            try {
+                handler.handle(chunk);
+            } catch (InterruptedException e) {
+                throw new SAXException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.output.Response;
+import dev.langchain4j.model.output.TokenUsage;
+import lombok.Data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.LongBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process all-MiniLM-L6-v2 embedding model that runs the ONNX model on micro-batches.
+ * Texts from every caller (ingestion workers embedding different pages, concurrent chat
+ * queries) are tokenized on the calling thread and queued; a single collector thread takes
+ * whatever is queued, waiting at most maxWait for a batch to fill, sorts the sequences by
+ * length and runs them in fixed-size batches so each forward pass pads as little as possible.
+ * <p>
+ * Sequences queued from interactive threads (see {@link WorkPriority}) go into the next batch
+ * ahead of queued background sequences, but every batch keeps at least backgroundMinShare of
+ * its slots for background sequences while any are waiting, so ingestion still progresses.
+ * <p>
+ * Embeddings match the single-text model: mean pooling over the attention mask, texts longer
+ * than the model window are split at word boundaries and their windows averaged by length,
+ * and the result is L2-normalized.
+ * <p>
+ * Batches run on a pool of ONNX sessions, one batch per session at a time. While every
+ * session is busy, new sequences keep queuing and go into the next, larger batch.
+ */
+public class BatchingEmbeddingModel implements EmbeddingModel, AutoCloseable {
+
+    public static final String MODEL = "all-minilm-l6-v2";
+    public static final String QUANTIZED_MODEL = "all-minilm-l6-v2-q";
+
+    // Model window is 512 positions including [CLS] and [SEP]
+    private static final int MAX_SEQUENCE_LENGTH = 512;
+
+    private final OrtEnvironment environment;
+    private final List<OrtSession> sessions = new ArrayList<>();
+    private final BlockingQueue<OrtSession> idleSessions = new LinkedBlockingQueue<>();
+    private final ExecutorService runners;
+    private final Set<String> expectedInputs;
+    private final HuggingFaceTokenizer tokenizer;
+
+    private final int batchSize;
+    private final int sortWindow;
+    private final long maxWaitNanos;
+    private final int backgroundSlots;
+
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition rowsQueued = queueLock.newCondition();
+    private final ArrayDeque<Row> interactiveRows = new ArrayDeque<>();
+    private final ArrayDeque<Row> backgroundRows = new ArrayDeque<>();
+    // Background rows taken from the queue in windows and sorted by length, waiting for a batch
+    private final ArrayDeque<Row> sortedBackgroundRows = new ArrayDeque<>();
+    private final Thread collector;
+    private volatile boolean closed;
+
+    public BatchingEmbeddingModel(Settings settings) {
+        if (!MODEL.equals(settings.getModel()) && !QUANTIZED_MODEL.equals(settings.getModel())) {
+            throw new IllegalArgumentException("Unknown embedding model: " + settings.getModel()
+                    + " (expected " + MODEL + " or " + QUANTIZED_MODEL + ")");
+        }
+        this.batchSize = Math.max(1, settings.getBatchSize());
+        this.sortWindow = this.batchSize * Math.max(1, settings.getSortWindowBatches());
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, settings.getMaxWaitMillis()));
+        double backgroundMinShare = Math.min(1.0, Math.max(0.0, settings.getBackgroundMinShare()));
+        this.backgroundSlots = (int) Math.ceil(this.batchSize * backgroundMinShare);
+
+        int sessionCount = Math.max(1, settings.getSessions());
+        try {
+            environment = OrtEnvironment.getEnvironment();
+            byte[] modelBytes = readResource("/" + settings.getModel() + ".onnx");
+            try (OrtSession.SessionOptions options = sessionOptions(settings)) {
+                for (int i = 0; i < sessionCount; i++) {
+                    OrtSession session = environment.createSession(modelBytes, options);
+                    sessions.add(session);
+                    idleSessions.add(session);
+                }
+            }
+            expectedInputs = sessions.get(0).getInputNames();
+            try (InputStream tokenizerJson = BatchingEmbeddingModel.class
+                    .getResourceAsStream("/" + settings.getModel() + "-tokenizer.json")) {
+                tokenizer = HuggingFaceTokenizer.newInstance(tokenizerJson, Collections.singletonMap("padding", "false"));
+            }
+        } catch (IOException | OrtException e) {
+            closeSessions();
+            throw new IllegalStateException("Could not load the embedding model " + settings.getModel(), e);
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        runners = Executors.newFixedThreadPool(sessionCount, runnable -> {
+            Thread thread = new Thread(runnable, "embedding-runner-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        collector = new Thread(this::runCollector, "embedding-batcher");
+        collector.setDaemon(true);
+        collector.start();
+    }
+
+    @Override
+    public Response<List<Embedding>> embedAll(List<TextSegment> segments) {
+        List<Pending> pending = new ArrayList<>(segments.size());
+        for (TextSegment segment : segments) {
+            pending.add(submit(segment.text()));
+        }
+
+        List<Embedding> embeddings = new ArrayList<>(pending.size());
+        int tokens = 0;
+        for (Pending item : pending) {
+            embeddings.add(Embedding.from(await(item.future)));
+            tokens += item.tokenCount;
+        }
+        return Response.from(embeddings, new TokenUsage(tokens));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        collector.interrupt();
+        List<Row> abandoned = new ArrayList<>();
+        queueLock.lock();
+        try {
+            abandoned.addAll(interactiveRows);
+            abandoned.addAll(backgroundRows);
+            abandoned.addAll(sortedBackgroundRows);
+            interactiveRows.clear();
+            backgroundRows.clear();
+            sortedBackgroundRows.clear();
+        } finally {
+            queueLock.unlock();
+        }
+        for (Row row : abandoned) {
+            row.owner.future.completeExceptionally(new IllegalStateException("Embedding model is shut down"));
+        }
+        runners.shutdown();
+        try {
+            runners.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeSessions();
+        tokenizer.close();
+    }
+
+    private void closeSessions() {
+        for (OrtSession session : sessions) {
+            try {
+                session.close();
+            } catch (OrtException e) {
+                System.err.println("Error closing embedding model session: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * ONNX Runtime threading: intra-op threads parallelise a single operator, inter-op threads
+     * run independent operators concurrently. 0 leaves the ONNX Runtime default.
+     */
+    private static OrtSession.SessionOptions sessionOptions(Settings settings) throws OrtException {
+        OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+        options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+        if (settings.getIntraOpThreads() > 0) {
+            options.setIntraOpNumThreads(settings.getIntraOpThreads());
+        }
+        if (settings.getInterOpThreads() > 0) {
+            options.setInterOpNumThreads(settings.getInterOpThreads());
+            if (settings.getInterOpThreads() > 1) {
+                options.setExecutionMode(OrtSession.SessionOptions.ExecutionMode.PARALLEL);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * Tokenize the text and queue its sequences for the next forward pass.
+     */
+    private Pending submit(String text) {
+        if (closed) {
+            throw new IllegalStateException("Embedding model is shut down");
+        }
+        Encoding encoding = tokenizer.encode(text, true, false);
+        long[] ids = encoding.getIds();
+
+        List<long[]> windows = new ArrayList<>();
+        if (ids.length <= MAX_SEQUENCE_LENGTH) {
+            windows.add(ids);
+        } else {
+            // Split the tokens between [CLS] and [SEP] into windows that never start mid-word
+            String[] tokens = encoding.getTokens();
+            int maxWindow = MAX_SEQUENCE_LENGTH - 2;
+            int start = 1;
+            while (start < ids.length - 1) {
+                int end = Math.min(start + maxWindow, ids.length - 1);
+                while (end < ids.length - 1 && end > start + 1 && tokens[end].startsWith("##")) {
+                    end--;
+                }
+                long[] window = new long[end - start + 2];
+                window[0] = ids[0];
+                System.arraycopy(ids, start, window, 1, end - start);
+                window[window.length - 1] = ids[ids.length - 1];
+                windows.add(window);
+                start = end;
+            }
+        }
+
+        Pending pending = new Pending(windows.size(), ids.length);
+        ArrayDeque<Row> rows = WorkPriority.current() == WorkPriority.INTERACTIVE ? interactiveRows : backgroundRows;
+        queueLock.lock();
+        try {
+            for (int i = 0; i < windows.size(); i++) {
+                rows.add(new Row(pending, i, windows.get(i)));
+            }
+            rowsQueued.signal();
+        } finally {
+            queueLock.unlock();
+        }
+        return pending;
+    }
+
+    private void runCollector() {
+        while (!closed) {
+            OrtSession session = null;
+            try {
+                // Sequences keep queuing while every session is busy; the batch is composed only
+                // once a session is free, so interactive sequences queued meanwhile still go first
+                session = idleSessions.take();
+                List<Row> batch;
+                queueLock.lockInterruptibly();
+                try {
+                    while (queuedRows() == 0) {
+                        rowsQueued.await();
+                    }
+                    // Wait for a full batch, but never longer than maxWait after the first row
+                    long remaining = maxWaitNanos;
+                    while (queuedRows() < batchSize && remaining > 0) {
+                        remaining = rowsQueued.awaitNanos(remaining);
+                    }
+                    batch = nextBatch();
+                } finally {
+                    queueLock.unlock();
+                }
+                dispatch(batch, session);
+                session = null;
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                if (session != null) {
+                    idleSessions.add(session);
+                }
+            }
+        }
+    }
+
+    private int queuedRows() {
+        return interactiveRows.size() + backgroundRows.size() + sortedBackgroundRows.size();
+    }
+
+    /**
+     * Take the next batch: interactive rows first, except for the slots kept for background
+     * rows, then background rows in length order.
+     */
+    private List<Row> nextBatch() {
+        List<Row> batch = new ArrayList<>(batchSize);
+        boolean backgroundWaiting = !backgroundRows.isEmpty() || !sortedBackgroundRows.isEmpty();
+        int interactiveLimit = backgroundWaiting ? batchSize - backgroundSlots : batchSize;
+        while (batch.size() < interactiveLimit && !interactiveRows.isEmpty()) {
+            batch.add(interactiveRows.poll());
+        }
+        while (batch.size() < batchSize) {
+            if (sortedBackgroundRows.isEmpty()) {
+                if (backgroundRows.isEmpty()) {
+                    break;
+                }
+                List<Row> window = new ArrayList<>(sortWindow);
+                while (window.size() < sortWindow && !backgroundRows.isEmpty()) {
+                    window.add(backgroundRows.poll());
+                }
+                window.sort(Comparator.comparingInt(row -> row.ids.length));
+                sortedBackgroundRows.addAll(window);
+            }
+            batch.add(sortedBackgroundRows.poll());
+        }
+        while (batch.size() < batchSize && !interactiveRows.isEmpty()) {
+            batch.add(interactiveRows.poll());
+        }
+        return batch;
+    }
+
+    /**
+     * Run a batch on a runner thread and hand the session back once it is done.
+     */
+    private void dispatch(List<Row> batch, OrtSession session) {
+        runners.execute(() -> {
+            try {
+                runBatch(batch, session);
+            } catch (Exception e) {
+                System.err.println("Error embedding batch of " + batch.size() + " sequences: " + e.getMessage());
+                for (Row row : batch) {
+                    row.owner.future.completeExceptionally(e);
+                }
+            } finally {
+                idleSessions.add(session);
+            }
+        });
+    }
+
+    /**
+     * One forward pass over a batch of sequences padded to the longest one.
+     */
+    private void runBatch(List<Row> batch, OrtSession session) throws OrtException {
+        int rowCount = batch.size();
+        int length = 0;
+        for (Row row : batch) {
+            length = Math.max(length, row.ids.length);
+        }
+
+        long[] inputIds = new long[rowCount * length];
+        long[] attentionMask = new long[rowCount * length];
+        for (int r = 0; r < rowCount; r++) {
+            long[] ids = batch.get(r).ids;
+            System.arraycopy(ids, 0, inputIds, r * length, ids.length);
+            for (int t = 0; t < ids.length; t++) {
+                attentionMask[r * length + t] = 1;
+            }
+        }
+        long[] shape = {rowCount, length};
+
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            inputs.put("input_ids", OnnxTensor.createTensor(environment, LongBuffer.wrap(inputIds), shape));
+            inputs.put("attention_mask", OnnxTensor.createTensor(environment, LongBuffer.wrap(attentionMask), shape));
+            if (expectedInputs.contains("token_type_ids")) {
+                inputs.put("token_type_ids",
+                        OnnxTensor.createTensor(environment, LongBuffer.wrap(new long[rowCount * length]), shape));
+            }
+
+            try (OrtSession.Result result = session.run(inputs)) {
+                float[][][] hidden = (float[][][]) result.get(0).getValue();
+                for (int r = 0; r < rowCount; r++) {
+                    Row row = batch.get(r);
+                    row.owner.complete(row.index, meanPool(hidden[r], row.ids.length), row.ids.length);
+                }
+            }
+        } finally {
+            for (OnnxTensor tensor : inputs.values()) {
+                tensor.close();
+            }
+        }
+    }
+
+    /**
+     * Average the token vectors of the unpadded positions.
+     */
+    private static float[] meanPool(float[][] tokens, int length) {
+        float[] pooled = new float[tokens[0].length];
+        for (int t = 0; t < length; t++) {
+            float[] token = tokens[t];
+            for (int i = 0; i < pooled.length; i++) {
+                pooled[i] += token[i];
+            }
+        }
+        for (int i = 0; i < pooled.length; i++) {
+            pooled[i] /= length;
+        }
+        return pooled;
+    }
+
+    private static float[] await(CompletableFuture<float[]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for embeddings", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Embedding failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static byte[] readResource(String name) throws IOException {
+        try (InputStream in = BatchingEmbeddingModel.class.getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("Resource not found: " + name);
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    @Data
+    public static class Settings {
+        private String model = MODEL;
+        private int sessions = 1;
+        private int intraOpThreads;
+        private int interOpThreads;
+        private int batchSize = 32;
+        private int sortWindowBatches = 4;
+        private long maxWaitMillis = 5;
+        private double backgroundMinShare = 0.2;
+    }
+
+    /**
+     * One queued sequence: a whole text, or one window of a text longer than the model window.
+     */
+    private static class Row {
+        private final Pending owner;
+        private final int index;
+        private final long[] ids;
+
+        private Row(Pending owner, int index, long[] ids) {
+            this.owner = owner;
+            this.index = index;
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * A submitted text whose embedding is complete once all of its windows have been pooled.
+     */
+    private static class Pending {
+        private final CompletableFuture<float[]> future = new CompletableFuture<>();
+        private final float[][] windows;
+        private final int[] weights;
+        private final AtomicInteger remaining;
+        private final int tokenCount;
+
+        private Pending(int windowCount, int tokenCount) {
+            this.windows = new float[windowCount][];
+            this.weights = new int[windowCount];
+            this.remaining = new AtomicInteger(windowCount);
+            this.tokenCount = tokenCount;
+        }
+
+        private void complete(int index, float[] vector, int weight) {
+            windows[index] = vector;
+            weights[index] = weight;
+            if (remaining.decrementAndGet() > 0) {
+                return;
+            }
+
+            float[] combined = new float[vector.length];
+            int totalWeight = 0;
+            for (int w = 0; w < windows.length; w++) {
+                totalWeight += weights[w];
+                for (int i = 0; i < combined.length; i++) {
+                    combined[i] += windows[w][i] * weights[w];
+                }
+            }
+            double norm = 0;
+            for (int i = 0; i < combined.length; i++) {
+                combined[i] /= totalWeight;
+                norm += combined[i] * combined[i];
+            }
+            norm = Math.sqrt(norm);
+            for (int i = 0; i < combined.length; i++) {
+                combined[i] /= (float) norm;
+            }
+            future.complete(combined);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming decoder for Confluence search responses. Results are read from the response
+ * stream one at a time with the Jackson streaming API and handed to a callback, so only the
+ * result currently being decoded is held in memory instead of the whole response tree.
+ */
+public class ConfluenceContentStreamReader {
+
+    @FunctionalInterface
+    public interface ResultHandler {
+        void handle(ConfluenceResponse.Result result) throws InterruptedException;
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * Decode a search response, calling the handler for every result in order.
+     *
+     * @return the top-level links of the response (holds the cursor to the next batch), or null
+     */
+    public ConfluenceResponse.Links read(InputStream body, ResultHandler handler)
+            throws IOException, InterruptedException {
+        ConfluenceResponse.Links links = null;
+
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected a JSON object in the Confluence search response");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+
+                if ("results".equals(field) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        handler.handle(parser.readValueAs(ConfluenceResponse.Result.class));
+                    }
+                } else if ("_links".equals(field) && value == JsonToken.START_OBJECT) {
+                    links = parser.readValueAs(ConfluenceResponse.Links.class);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return links;
+    }
+}
@@ -28,5 +28,7 @@ public class ConfluencePage {
     private String content; // Plain text or HTML
     private String url;
     private String mediaType;
+    private Long fileSize; // Attachment size in bytes, when reported by Confluence
+    private Integer version; // Content version number, when expanded
     private List<String> tags = new ArrayList<>(); // Confluence labels/tags
 }
@@ -26,6 +26,9 @@ import java.util.List;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class ConfluenceResponse {
     private List<Result> results;
+    private Integer totalSize;
+    @JsonProperty("_links")
+    private Links links;
 
     @Data
     @JsonIgnoreProperties(ignoreUnknown = true)
@@ -36,6 +39,21 @@ public class ConfluenceResponse {
         @JsonProperty("_links")
         private Links links;
         private Metadata metadata;
+        private Extensions extensions;
+        private Version version;
+    }
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Version {
+        private Integer number;
+    }
+
+    @Data
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    public static class Extensions {
+        private Long fileSize; // Attachment size in bytes
+        private String mediaType;
     }
 
     @Data
@@ -55,6 +73,8 @@ public class ConfluenceResponse {
     public static class Links {
         private String webui;
         private String download;
+        private String next;
+        private String base;
     }
 
     @Data
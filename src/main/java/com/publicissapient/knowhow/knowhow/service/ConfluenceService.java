@@ -16,17 +16,44 @@
 
 package com.publicissapient.knowhow.knowhow.service;
 
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.publicissapient.knowhow.knowhow.model.HttpValidator;
+import com.publicissapient.knowhow.knowhow.repository.HttpValidatorRepository;
+import jakarta.annotation.PostConstruct;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.jsoup.Jsoup;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URI;
 
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class ConfluenceService {
@@ -43,10 +70,45 @@ public class ConfluenceService {
     @Value("${gravity.confluence.space-key}")
     private String spaceKey;
 
+    @Value("${gravity.confluence.http.conditional-get:true}")
+    private boolean conditionalGetEnabled;
+
+    @Value("${gravity.confluence.http.cache-dir:${java.io.tmpdir}/knowhow-http-cache}")
+    private String httpCacheDir;
+
+    @Autowired
+    private HttpValidatorRepository httpValidatorRepository;
+
     private final RestTemplate restTemplate;
 
-    public ConfluenceService(RestTemplateBuilder restTemplateBuilder) {
-        this.restTemplate = restTemplateBuilder.build();
+    private final ConfluenceContentStreamReader streamReader = new ConfluenceContentStreamReader();
+
+    private final ObjectMapper objectMapper = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final AtomicLong notModifiedResponses = new AtomicLong();
+    private final AtomicLong bytesNotDownloaded = new AtomicLong();
+
+    @FunctionalInterface
+    public interface PageHandler {
+        void handle(ConfluencePage page) throws InterruptedException;
+    }
+
+    public ConfluenceService(RestTemplateBuilder restTemplateBuilder, CloseableHttpClient confluenceHttpClient,
+            @Qualifier("confluenceRateLimitingInterceptor") ClientHttpRequestInterceptor rateLimitingInterceptor) {
+        this.restTemplate = restTemplateBuilder
+                .requestFactory(() -> new HttpComponentsClientHttpRequestFactory(confluenceHttpClient))
+                .additionalInterceptors(rateLimitingInterceptor)
+                .build();
+    }
+
+    @PostConstruct
+    public void initHttpCache() {
+        try {
+            Files.createDirectories(Paths.get(httpCacheDir));
+        } catch (IOException e) {
+            System.err.println("Error creating HTTP cache directory " + httpCacheDir + ": " + e.getMessage());
+        }
     }
 
     /**
@@ -78,11 +140,115 @@ public class ConfluenceService {
         return fetchContent(cql, start, limit);
     }
 
+    /**
+     * Builds the CQL queries used to crawl pages or blog posts. Without boundaries the whole
+     * space is one partition; with year boundaries (e.g. 2020, 2022) the space is split into
+     * created-date ranges that can be crawled in parallel.
+     */
+    public List<String> contentPartitions(String type, List<Integer> yearBoundaries) {
+        String base = String.format("space=\"%s\" AND type=\"%s\"", spaceKey, type);
+        List<String> partitions = new ArrayList<>();
+        if (yearBoundaries == null || yearBoundaries.isEmpty()) {
+            partitions.add(base + " ORDER BY created");
+            return partitions;
+        }
+
+        List<Integer> years = yearBoundaries.stream().distinct().sorted().toList();
+        partitions.add(String.format("%s AND created < \"%d-01-01\" ORDER BY created", base, years.get(0)));
+        for (int i = 1; i < years.size(); i++) {
+            partitions.add(String.format("%s AND created >= \"%d-01-01\" AND created < \"%d-01-01\" ORDER BY created",
+                    base, years.get(i - 1), years.get(i)));
+        }
+        partitions.add(String.format("%s AND created >= \"%d-01-01\" ORDER BY created", base,
+                years.get(years.size() - 1)));
+        return partitions;
+    }
+
+    /**
+     * Streams one batch of a cursor-based crawl without cleaning the pages. Pass a null
+     * {@code next} link for the first batch and the returned link for the following ones.
+     * Pages are decoded from the response one at a time and handed to the handler while the
+     * response is still being read; their content holds the raw storage HTML so the ingestion
+     * pipeline can clean pages on its own workers.
+     *
+     * @return absolute link to the next batch, or null on the last batch
+     */
+    public String streamRawContentBatch(String cql, String next, int limit, PageHandler handler) {
+        URI uri;
+        if (next == null) {
+            uri = UriComponentsBuilder.fromHttpUrl(confluenceUrl)
+                    .path("/rest/api/content/search")
+                    .queryParam("cql", cql)
+                    .queryParam("expand", "body.storage,version,metadata.labels")
+                    .queryParam("limit", limit)
+                    .build()
+                    .toUri();
+        } else {
+            // The next link is already encoded and relative to the API base
+            uri = URI.create(next);
+        }
+
+        ConfluenceResponse.Links links = restTemplate.execute(uri, HttpMethod.GET,
+                request -> request.getHeaders().setAccept(List.of(MediaType.APPLICATION_JSON)),
+                response -> {
+                    try {
+                        return streamReader.read(response.getBody(), result -> {
+                            ConfluencePage page = toPage(result, false);
+                            if (page.getContent() != null) {
+                                handler.handle(page);
+                            }
+                        });
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while streaming Confluence content");
+                    }
+                });
+        return resolveNextLink(links);
+    }
+
+    private String resolveNextLink(ConfluenceResponse.Links links) {
+        if (links == null || links.getNext() == null || links.getNext().isEmpty()) {
+            return null;
+        }
+        String next = links.getNext();
+        if (next.startsWith("http")) {
+            return next;
+        }
+        String base = links.getBase() != null ? links.getBase() : confluenceUrl;
+        if (base.endsWith("/")) {
+            base = base.substring(0, base.length() - 1);
+        }
+        return base + (next.startsWith("/") ? next : "/" + next);
+    }
+
+    /**
+     * Counts pages or blog posts in the space, or returns -1 if Confluence does not report a total.
+     */
+    public long countContent(String type) {
+        String cql = String.format("space=\"%s\" AND type=\"%s\"", spaceKey, type);
+        URI uri = UriComponentsBuilder.fromHttpUrl(confluenceUrl)
+                .path("/rest/api/search")
+                .queryParam("cql", cql)
+                .queryParam("limit", 1)
+                .build()
+                .toUri();
+
+        try {
+            ConfluenceResponse response = restTemplate.getForObject(uri, ConfluenceResponse.class);
+            if (response != null && response.getTotalSize() != null) {
+                return response.getTotalSize();
+            }
+        } catch (Exception e) {
+            System.err.println("Error counting " + type + "s: " + e.getMessage());
+        }
+        return -1;
+    }
+
     public ConfluencePage fetchPage(String pageId) {
         String url = String.format("%s/rest/api/content/%s?expand=body.storage,version,metadata.labels", confluenceUrl,
                 pageId);
         try {
-            ConfluenceResponse.Result result = restTemplate.getForObject(url, ConfluenceResponse.Result.class);
+            ConfluenceResponse.Result result = getJson(url, ConfluenceResponse.Result.class);
             if (result != null) {
                 ConfluencePage page = new ConfluencePage();
                 page.setId(result.getId());
@@ -113,6 +279,10 @@ public class ConfluenceService {
     }
 
     public List<ConfluencePage> fetchContent(String cql, int start, int limit) {
+        return fetchContent(cql, start, limit, true);
+    }
+
+    private List<ConfluencePage> fetchContent(String cql, int start, int limit, boolean clean) {
         URI uri = UriComponentsBuilder.fromHttpUrl(confluenceUrl)
                 .path("/rest/api/content/search")
                 .queryParam("cql", cql)
@@ -130,46 +300,58 @@ public class ConfluenceService {
             if (response == null || response.getResults() == null || response.getResults().isEmpty()) {
                 return new ArrayList<>();
             }
+            return toPages(response, clean);
+        } catch (Exception e) {
+            System.err.println("Error fetching content: " + e.getMessage());
+            return new ArrayList<>();
+        }
+    }
 
-            List<ConfluencePage> pages = new ArrayList<>();
-            for (ConfluenceResponse.Result result : response.getResults()) {
-                ConfluencePage page = new ConfluencePage();
-                page.setId(result.getId());
-                page.setTitle(result.getTitle());
-
-                // Extract labels/tags
-                if (result.getMetadata() != null && result.getMetadata().getLabels() != null
-                        && result.getMetadata().getLabels().getResults() != null) {
-                    List<String> tags = new ArrayList<>();
-                    for (ConfluenceResponse.Label label : result.getMetadata().getLabels().getResults()) {
-                        if (label.getName() != null && !label.getName().isEmpty()) {
-                            tags.add(label.getName());
-                        }
-                    }
-                    page.setTags(tags);
-                    System.out.println("DEBUG: Page '" + page.getTitle() + "' has tags: " + tags);
-                }
+    private List<ConfluencePage> toPages(ConfluenceResponse response, boolean clean) {
+        List<ConfluencePage> pages = new ArrayList<>();
+        for (ConfluenceResponse.Result result : response.getResults()) {
+            ConfluencePage page = toPage(result, clean);
+            if (page.getContent() != null) {
+                System.out.println("DEBUG: Fetched page ID: " + page.getId() + ", Title: " + page.getTitle());
+                pages.add(page);
+            }
+        }
+        return pages;
+    }
 
-                if (result.getBody() != null && result.getBody().getStorage() != null) {
-                    page.setContent(cleanContent(result.getBody().getStorage().getValue()));
-                    page.setUrl(confluenceUrl + result.getLinks().getWebui());
-                    System.out.println("DEBUG: Fetched page ID: " + page.getId() + ", Title: " + page.getTitle());
-                    pages.add(page);
+    private ConfluencePage toPage(ConfluenceResponse.Result result, boolean clean) {
+        ConfluencePage page = new ConfluencePage();
+        page.setId(result.getId());
+        page.setTitle(result.getTitle());
+
+        // Extract labels/tags
+        if (result.getMetadata() != null && result.getMetadata().getLabels() != null
+                && result.getMetadata().getLabels().getResults() != null) {
+            List<String> tags = new ArrayList<>();
+            for (ConfluenceResponse.Label label : result.getMetadata().getLabels().getResults()) {
+                if (label.getName() != null && !label.getName().isEmpty()) {
+                    tags.add(label.getName());
                 }
             }
-            return pages;
-        } catch (Exception e) {
-            System.err.println("Error fetching content: " + e.getMessage());
-            return new ArrayList<>();
+            page.setTags(tags);
+            System.out.println("DEBUG: Page '" + page.getTitle() + "' has tags: " + tags);
         }
+
+        if (result.getBody() != null && result.getBody().getStorage() != null) {
+            String storage = result.getBody().getStorage().getValue();
+            page.setContent(clean ? cleanContent(storage) : storage);
+            page.setUrl(confluenceUrl + result.getLinks().getWebui());
+        }
+        return page;
     }
 
     public List<ConfluencePage> fetchAttachments(String contentId) {
-        String url = String.format("%s/rest/api/content/%s/child/attachment", confluenceUrl, contentId);
+        String url = String.format("%s/rest/api/content/%s/child/attachment?expand=version,metadata", confluenceUrl,
+                contentId);
         List<ConfluencePage> attachments = new ArrayList<>();
 
         try {
-            ConfluenceResponse response = restTemplate.getForObject(url, ConfluenceResponse.class);
+            ConfluenceResponse response = getJson(url, ConfluenceResponse.class);
             if (response != null && response.getResults() != null) {
                 for (ConfluenceResponse.Result result : response.getResults()) {
                     ConfluencePage attachment = new ConfluencePage();
@@ -179,6 +361,15 @@ public class ConfluenceService {
                     if (result.getMetadata() != null) {
                         attachment.setMediaType(result.getMetadata().getMediaType());
                     }
+                    if (result.getExtensions() != null) {
+                        attachment.setFileSize(result.getExtensions().getFileSize());
+                        if (attachment.getMediaType() == null) {
+                            attachment.setMediaType(result.getExtensions().getMediaType());
+                        }
+                    }
+                    if (result.getVersion() != null) {
+                        attachment.setVersion(result.getVersion().getNumber());
+                    }
                     attachments.add(attachment);
                 }
             }
@@ -188,12 +379,156 @@ public class ConfluenceService {
         return attachments;
     }
 
-    public byte[] downloadAttachment(String downloadUrl) {
+    /**
+     * Download an attachment to a temporary file and hand it to the handler. The body is streamed
+     * to disk, never held in memory, and the download is aborted once it grows beyond maxBytes.
+     * The file is deleted after the handler returns. Attachments are not kept for conditional GET:
+     * an unchanged attachment version is replayed from the extraction cache without a download.
+     */
+    public void downloadAttachment(String downloadUrl, long maxBytes, AttachmentHandler handler) throws Exception {
+        Path tempFile = Files.createTempFile(Paths.get(httpCacheDir), "attachment", ".tmp");
         try {
-            return restTemplate.getForObject(downloadUrl, byte[].class);
-        } catch (Exception e) {
-            System.err.println("Error downloading attachment: " + e.getMessage());
-            return null;
+            restTemplate.execute(downloadUrl, HttpMethod.GET, null, response -> {
+                checkContentLength(downloadUrl, response.getHeaders().getContentLength(), maxBytes);
+                try (InputStream body = response.getBody()) {
+                    return copyLimited(body, tempFile, maxBytes, downloadUrl);
+                }
+            });
+            handler.handle(tempFile);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    @FunctionalInterface
+    public interface AttachmentHandler {
+        void handle(Path file) throws Exception;
+    }
+
+    /**
+     * Number of conditional requests answered with 304 Not Modified since startup.
+     */
+    public long getNotModifiedResponses() {
+        return notModifiedResponses.get();
+    }
+
+    /**
+     * Body bytes that did not have to be downloaded thanks to 304 responses since startup.
+     */
+    public long getBytesNotDownloaded() {
+        return bytesNotDownloaded.get();
+    }
+
+    private <T> T getJson(String url, Class<T> type) throws IOException {
+        if (!conditionalGetEnabled) {
+            return restTemplate.getForObject(url, type);
+        }
+        return conditionalGet(url, type);
+    }
+
+    /**
+     * GET a JSON listing, revalidating with the ETag / Last-Modified validators of the previous
+     * fetch. The last body of a URL is kept in the local HTTP cache directory so that a
+     * 304 Not Modified can be answered from disk instead of downloading the content again.
+     * A response without validators can never be revalidated, so its body is parsed from the
+     * stream and not kept.
+     */
+    private <T> T conditionalGet(String url, Class<T> type) {
+        String key = sha256(url);
+        Path bodyFile = Paths.get(httpCacheDir, key);
+        HttpValidator validator = null;
+        if (Files.exists(bodyFile)) {
+            try {
+                validator = httpValidatorRepository.findById(key).orElse(null);
+            } catch (Exception e) {
+                System.err.println("Error reading HTTP validator for " + url + ": " + e.getMessage());
+            }
+        }
+        HttpValidator previous = validator;
+
+        return restTemplate.execute(url, HttpMethod.GET, request -> {
+            if (previous != null && previous.getEtag() != null) {
+                request.getHeaders().setIfNoneMatch(previous.getEtag());
+            }
+            if (previous != null && previous.getLastModified() != null) {
+                request.getHeaders().set(HttpHeaders.IF_MODIFIED_SINCE, previous.getLastModified());
+            }
+        }, response -> {
+            if (response.getStatusCode() == HttpStatus.NOT_MODIFIED && previous != null) {
+                notModifiedResponses.incrementAndGet();
+                bytesNotDownloaded.addAndGet(previous.getContentLength());
+                try (InputStream body = Files.newInputStream(bodyFile)) {
+                    return objectMapper.readValue(body, type);
+                }
+            }
+
+            String etag = response.getHeaders().getETag();
+            String lastModified = response.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED);
+            if (etag == null && lastModified == null) {
+                // A body kept for earlier validators can no longer be revalidated
+                Files.deleteIfExists(bodyFile);
+                try (InputStream body = response.getBody()) {
+                    return objectMapper.readValue(body, type);
+                }
+            }
+
+            Path partFile = Files.createTempFile(bodyFile.getParent(), key, ".part");
+            long size;
+            try (InputStream body = response.getBody()) {
+                size = copyLimited(body, partFile, Long.MAX_VALUE, url);
+                Files.move(partFile, bodyFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(partFile);
+            }
+
+            HttpValidator updated = previous != null ? previous : new HttpValidator(key, url);
+            updated.setEtag(etag);
+            updated.setLastModified(lastModified);
+            updated.setContentLength(size);
+            updated.setUpdatedAt(java.time.LocalDateTime.now());
+            try {
+                httpValidatorRepository.save(updated);
+            } catch (Exception e) {
+                System.err.println("Error saving HTTP validator for " + url + ": " + e.getMessage());
+            }
+            try (InputStream body = Files.newInputStream(bodyFile)) {
+                return objectMapper.readValue(body, type);
+            }
+        });
+    }
+
+    private static void checkContentLength(String url, long contentLength, long maxBytes) throws IOException {
+        if (contentLength > maxBytes) {
+            throw new IOException("Response of " + contentLength + " bytes exceeds the limit of " + maxBytes
+                    + " bytes: " + url);
+        }
+    }
+
+    /**
+     * Stream a response body to a file, failing as soon as more than maxBytes have been read.
+     */
+    private static long copyLimited(InputStream body, Path target, long maxBytes, String url) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        long total = 0;
+        try (OutputStream out = Files.newOutputStream(target)) {
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                total += read;
+                if (total > maxBytes) {
+                    throw new IOException("Response exceeds the limit of " + maxBytes + " bytes: " + url);
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        return total;
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
         }
     }
 
@@ -274,7 +609,7 @@ public class ConfluenceService {
         }
     }
 
-    private String cleanContent(String rawContent) {
+    public String cleanContent(String rawContent) {
         if (rawContent == null || rawContent.isEmpty()) {
             return "";
         }
@@ -0,0 +1,198 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import ai.djl.huggingface.tokenizers.Encoding;
+import ai.djl.huggingface.tokenizers.HuggingFaceTokenizer;
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Optional second ranking stage: a local cross-encoder (e.g. ms-marco-MiniLM-L-6-v2 exported
+ * to ONNX) reads the question and each retrieved segment together and scores their relevance,
+ * which is much more precise than the bi-encoder similarity used for retrieval. Only the best
+ * few segments are then sent to the LLM. Pairs are run on the CPU in batches of similar length.
+ */
+@Service
+public class CrossEncoderReranker {
+
+    @Value("${gravity.rerank.enabled:false}")
+    private boolean enabled;
+
+    @Value("${gravity.rerank.model-path:}")
+    private String modelPath;
+
+    @Value("${gravity.rerank.tokenizer-path:}")
+    private String tokenizerPath;
+
+    @Value("${gravity.rerank.batch-size:16}")
+    private int batchSize;
+
+    @Value("${gravity.rerank.max-length:256}")
+    private int maxLength;
+
+    @Value("${gravity.rerank.intra-op-threads:2}")
+    private int intraOpThreads;
+
+    private OrtEnvironment environment;
+    private OrtSession session;
+    private Set<String> expectedInputs;
+    private HuggingFaceTokenizer tokenizer;
+
+    @PostConstruct
+    public void load() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            environment = OrtEnvironment.getEnvironment();
+            try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+                options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+                if (intraOpThreads > 0) {
+                    options.setIntraOpNumThreads(intraOpThreads);
+                }
+                session = environment.createSession(modelPath, options);
+            }
+            expectedInputs = session.getInputNames();
+            Map<String, String> tokenizerOptions = new HashMap<>();
+            tokenizerOptions.put("padding", "false");
+            tokenizerOptions.put("truncation", "only_second");
+            tokenizerOptions.put("maxLength", String.valueOf(maxLength));
+            tokenizer = HuggingFaceTokenizer.newInstance(Paths.get(tokenizerPath), tokenizerOptions);
+        } catch (IOException | OrtException e) {
+            enabled = false;
+            System.err.println("Error loading reranking model, reranking is disabled: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (session != null) {
+            try {
+                session.close();
+            } catch (OrtException e) {
+                System.err.println("Error closing reranking model session: " + e.getMessage());
+            }
+        }
+        if (tokenizer != null) {
+            tokenizer.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Score every candidate against the question and return the best ones, highest first.
+     * Scores of the returned matches are the cross-encoder relevance in [0, 1].
+     */
+    public List<EmbeddingMatch<TextSegment>> rerank(String question, List<EmbeddingMatch<TextSegment>> candidates,
+            int keep) {
+        List<Pair> pairs = new ArrayList<>(candidates.size());
+        for (EmbeddingMatch<TextSegment> candidate : candidates) {
+            Encoding encoding = tokenizer.encode(question, candidate.embedded().text(), true, false);
+            pairs.add(new Pair(candidate, encoding));
+        }
+
+        // Similar lengths share a batch, so little of each forward pass goes to padding
+        List<Pair> byLength = new ArrayList<>(pairs);
+        byLength.sort(Comparator.comparingInt(pair -> pair.encoding.getIds().length));
+        try {
+            for (int start = 0; start < byLength.size(); start += batchSize) {
+                score(byLength.subList(start, Math.min(byLength.size(), start + batchSize)));
+            }
+        } catch (OrtException e) {
+            System.err.println("Error reranking, keeping the retrieval order: " + e.getMessage());
+            return candidates.subList(0, Math.min(keep, candidates.size()));
+        }
+
+        pairs.sort(Comparator.comparingDouble((Pair pair) -> pair.score).reversed());
+        List<EmbeddingMatch<TextSegment>> reranked = new ArrayList<>(Math.min(keep, pairs.size()));
+        for (Pair pair : pairs.subList(0, Math.min(keep, pairs.size()))) {
+            EmbeddingMatch<TextSegment> match = pair.match;
+            reranked.add(new EmbeddingMatch<>(pair.score, match.embeddingId(), match.embedding(), match.embedded()));
+        }
+        return reranked;
+    }
+
+    private void score(List<Pair> batch) throws OrtException {
+        int rowCount = batch.size();
+        int length = batch.get(rowCount - 1).encoding.getIds().length;
+
+        long[] inputIds = new long[rowCount * length];
+        long[] attentionMask = new long[rowCount * length];
+        long[] typeIds = new long[rowCount * length];
+        for (int r = 0; r < rowCount; r++) {
+            Encoding encoding = batch.get(r).encoding;
+            long[] ids = encoding.getIds();
+            System.arraycopy(ids, 0, inputIds, r * length, ids.length);
+            System.arraycopy(encoding.getAttentionMask(), 0, attentionMask, r * length, ids.length);
+            System.arraycopy(encoding.getTypeIds(), 0, typeIds, r * length, ids.length);
+        }
+        long[] shape = {rowCount, length};
+
+        Map<String, OnnxTensor> inputs = new HashMap<>();
+        try {
+            inputs.put("input_ids", OnnxTensor.createTensor(environment, LongBuffer.wrap(inputIds), shape));
+            inputs.put("attention_mask", OnnxTensor.createTensor(environment, LongBuffer.wrap(attentionMask), shape));
+            if (expectedInputs.contains("token_type_ids")) {
+                inputs.put("token_type_ids", OnnxTensor.createTensor(environment, LongBuffer.wrap(typeIds), shape));
+            }
+            try (OrtSession.Result result = session.run(inputs)) {
+                // One relevance logit per pair
+                float[][] logits = (float[][]) result.get(0).getValue();
+                for (int r = 0; r < rowCount; r++) {
+                    batch.get(r).score = 1.0 / (1.0 + Math.exp(-logits[r][0]));
+                }
+            }
+        } finally {
+            for (OnnxTensor tensor : inputs.values()) {
+                tensor.close();
+            }
+        }
+    }
+
+    private static class Pair {
+        private final EmbeddingMatch<TextSegment> match;
+        private final Encoding encoding;
+        private double score;
+
+        private Pair(EmbeddingMatch<TextSegment> match, Encoding encoding) {
+            this.match = match;
+            this.encoding = encoding;
+        }
+    }
+}
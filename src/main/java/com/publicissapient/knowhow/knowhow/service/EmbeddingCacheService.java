@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import com.publicissapient.knowhow.knowhow.model.EmbeddingCacheEntry;
+import com.publicissapient.knowhow.knowhow.repository.EmbeddingCacheRepository;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Embeds text segments through a persistent cache keyed by a hash of the model id and the
+ * segment text. Only cache misses are sent to the embedding model.
+ */
+@Service
+public class EmbeddingCacheService {
+
+    @Autowired
+    private EmbeddingModel embeddingModel;
+
+    @Autowired
+    private EmbeddingCacheRepository embeddingCacheRepository;
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${gravity.embedding.model-id:${gravity.embedding.model:all-minilm-l6-v2}}")
+    private String modelId;
+
+    @Value("${gravity.embedding.cache.enabled:true}")
+    private boolean cacheEnabled;
+
+    @Value("${gravity.embedding.cache.prune-other-models:true}")
+    private boolean pruneOtherModels;
+
+    /**
+     * Drop entries left by a previously configured embedding model, since a model change would
+     * otherwise keep every old row in the table forever.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void pruneOtherModels() {
+        if (!pruneOtherModels) {
+            return;
+        }
+        try {
+            int deleted = embeddingCacheRepository.deleteByModelIdNot(modelId);
+            if (deleted > 0) {
+                System.out.println("Removed " + deleted + " embedding cache entries of models other than " + modelId);
+            }
+        } catch (Exception e) {
+            System.err.println("Error pruning embedding cache: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Embed all segments, returning embeddings in the same order as the input.
+     */
+    public List<Embedding> embedAll(List<TextSegment> segments, IngestionReport report) {
+        if (!cacheEnabled) {
+            long startNanos = System.nanoTime();
+            List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
+            report.recordEmbeddingCache(0, segments.size(), System.nanoTime() - startNanos);
+            return embeddings;
+        }
+
+        List<String> keys = new ArrayList<>(segments.size());
+        for (TextSegment segment : segments) {
+            keys.add(cacheKey(segment.text()));
+        }
+
+        Map<String, Embedding> resolved = new HashMap<>();
+        try {
+            for (EmbeddingCacheEntry entry : embeddingCacheRepository.findAllById(keys)) {
+                resolved.put(entry.getContentHash(), Embedding.from(entry.getEmbedding()));
+            }
+        } catch (Exception e) {
+            System.err.println("Error reading embedding cache, embedding without it: " + e.getMessage());
+        }
+
+        // Identical segments within the same batch are embedded only once
+        Map<String, TextSegment> misses = new LinkedHashMap<>();
+        for (int i = 0; i < segments.size(); i++) {
+            if (!resolved.containsKey(keys.get(i))) {
+                misses.putIfAbsent(keys.get(i), segments.get(i));
+            }
+        }
+
+        long modelNanos = 0;
+        if (!misses.isEmpty()) {
+            List<String> missKeys = new ArrayList<>(misses.keySet());
+            long startNanos = System.nanoTime();
+            List<Embedding> computed = embeddingModel.embedAll(new ArrayList<>(misses.values())).content();
+            modelNanos = System.nanoTime() - startNanos;
+
+            for (int i = 0; i < missKeys.size(); i++) {
+                resolved.put(missKeys.get(i), computed.get(i));
+            }
+            try {
+                insertAll(missKeys, computed);
+            } catch (Exception e) {
+                System.err.println("Error writing embedding cache: " + e.getMessage());
+            }
+        }
+
+        report.recordEmbeddingCache(segments.size() - misses.size(), misses.size(), modelNanos);
+
+        List<Embedding> embeddings = new ArrayList<>(segments.size());
+        for (String key : keys) {
+            embeddings.add(resolved.get(key));
+        }
+        return embeddings;
+    }
+
+    /**
+     * Write new cache entries in one batch. Keys are content hashes, so an entry another worker
+     * stored in the meantime holds the same embedding and is left as it is.
+     */
+    private void insertAll(List<String> keys, List<Embedding> embeddings) throws SQLException {
+        Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("INSERT INTO embedding_cache"
+                        + " (content_hash, model_id, embedding, created_at) VALUES (?, ?, CAST(? AS vector), ?)"
+                        + " ON CONFLICT (content_hash) DO NOTHING")) {
+            for (int i = 0; i < keys.size(); i++) {
+                statement.setString(1, keys.get(i));
+                statement.setString(2, modelId);
+                statement.setString(3, Arrays.toString(embeddings.get(i).vector()));
+                statement.setTimestamp(4, now);
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    public String getModelId() {
+        return modelId;
+    }
+
+    private String cacheKey(String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(modelId.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(text.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
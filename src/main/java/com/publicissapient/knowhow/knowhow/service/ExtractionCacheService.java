@@ -0,0 +1,224 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import com.publicissapient.knowhow.knowhow.model.ExtractionCacheChunk;
+import com.publicissapient.knowhow.knowhow.model.ExtractionCacheEntry;
+import com.publicissapient.knowhow.knowhow.repository.ExtractionCacheChunkRepository;
+import com.publicissapient.knowhow.knowhow.repository.ExtractionCacheRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent cache of attachment extraction results (OCR text and Tika output), keyed by a
+ * hash of the extractor id and the file content. A hit replays the stored text chunks so the
+ * OCR call or Tika parse is skipped entirely. Attachments whose id and version were already
+ * extracted are replayed before they are even downloaded.
+ */
+@Service
+public class ExtractionCacheService {
+
+    // Extractor ids starting with this prefix are vision-LLM calls
+    public static final String OCR_PREFIX = "ocr:";
+
+    @Autowired
+    private ExtractionCacheRepository extractionCacheRepository;
+
+    @Autowired
+    private ExtractionCacheChunkRepository extractionCacheChunkRepository;
+
+    @Value("${gravity.ingestion.extraction-cache.enabled:true}")
+    private boolean cacheEnabled;
+
+    // Keys currently being written, so concurrent workers extracting the same content do not
+    // interleave their chunks
+    private final Set<String> keysInFlight = ConcurrentHashMap.newKeySet();
+
+    public boolean isEnabled() {
+        return cacheEnabled;
+    }
+
+    /**
+     * Replay the extraction of an attachment version that was extracted before, without
+     * downloading it.
+     *
+     * @return true on a hit
+     */
+    public boolean replayAttachment(ConfluencePage attachment, String extractor,
+            AttachmentTextExtractor.ChunkHandler handler, IngestionReport report) throws InterruptedException {
+        if (!cacheEnabled || attachment.getId() == null || attachment.getVersion() == null) {
+            return false;
+        }
+        Optional<ExtractionCacheEntry> entry;
+        try {
+            entry = extractionCacheRepository.findFirstByAttachmentIdAndAttachmentVersionAndExtractor(
+                    attachment.getId(), attachment.getVersion(), extractor);
+        } catch (Exception e) {
+            System.err.println("Error reading extraction cache: " + e.getMessage());
+            return false;
+        }
+        return entry.isPresent() && replay(entry.get(), handler, report, true);
+    }
+
+    /**
+     * Replay a cached extraction of the given content key.
+     *
+     * @return true on a hit
+     */
+    public boolean replay(String cacheKey, AttachmentTextExtractor.ChunkHandler handler, IngestionReport report)
+            throws InterruptedException {
+        if (!cacheEnabled) {
+            return false;
+        }
+        Optional<ExtractionCacheEntry> entry;
+        try {
+            entry = extractionCacheRepository.findById(cacheKey);
+        } catch (Exception e) {
+            System.err.println("Error reading extraction cache: " + e.getMessage());
+            return false;
+        }
+        return entry.isPresent() && replay(entry.get(), handler, report, false);
+    }
+
+    private boolean replay(ExtractionCacheEntry entry, AttachmentTextExtractor.ChunkHandler handler,
+            IngestionReport report, boolean downloadAvoided) throws InterruptedException {
+        List<ExtractionCacheChunk> chunks;
+        try {
+            chunks = extractionCacheChunkRepository.findByCacheKeyOrderByChunkIndex(entry.getCacheKey());
+        } catch (Exception e) {
+            System.err.println("Error reading extraction cache: " + e.getMessage());
+            return false;
+        }
+        if (chunks.size() != entry.getChunkCount()) {
+            // Entry is being rewritten or was only partly stored; extract again
+            return false;
+        }
+        for (ExtractionCacheChunk chunk : chunks) {
+            handler.handle(chunk.getText());
+        }
+        report.recordExtractionCacheHit(entry.getExtractor().startsWith(OCR_PREFIX),
+                entry.getExtractionMillis(), downloadAvoided);
+        return true;
+    }
+
+    /**
+     * Cache key of a downloaded file for the given extractor. The file is hashed as a stream.
+     */
+    public String cacheKey(Path file, String extractor) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(extractor.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            byte[] buffer = new byte[64 * 1024];
+            try (InputStream in = Files.newInputStream(file)) {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Start recording a fresh extraction. Chunks are stored as they are produced, and the entry
+     * only becomes visible once {@link Writer#complete(long)} is called.
+     */
+    public Writer begin(String cacheKey, String extractor, ConfluencePage attachment) {
+        if (!cacheEnabled || cacheKey == null || !keysInFlight.add(cacheKey)) {
+            return new Writer(null, null);
+        }
+        try {
+            extractionCacheRepository.deleteById(cacheKey);
+            extractionCacheChunkRepository.deleteByCacheKey(cacheKey);
+        } catch (Exception e) {
+            System.err.println("Error clearing extraction cache entry: " + e.getMessage());
+            keysInFlight.remove(cacheKey);
+            return new Writer(null, null);
+        }
+        return new Writer(cacheKey, new ExtractionCacheEntry(cacheKey, extractor, attachment.getId(),
+                attachment.getVersion()));
+    }
+
+    public class Writer {
+        private final String cacheKey;
+        private final ExtractionCacheEntry entry;
+        private int chunks;
+        private boolean failed;
+
+        private Writer(String cacheKey, ExtractionCacheEntry entry) {
+            this.cacheKey = cacheKey;
+            this.entry = entry;
+        }
+
+        public void add(String text) {
+            if (entry == null || failed) {
+                return;
+            }
+            try {
+                extractionCacheChunkRepository.save(new ExtractionCacheChunk(cacheKey, chunks, text));
+                chunks++;
+            } catch (Exception e) {
+                System.err.println("Error writing extraction cache: " + e.getMessage());
+                failed = true;
+            }
+        }
+
+        /**
+         * Publish the entry. Must be called once the extraction succeeded; otherwise call
+         * {@link #abandon()}.
+         */
+        public void complete(long extractionMillis) {
+            if (entry == null) {
+                return;
+            }
+            try {
+                if (!failed) {
+                    entry.setChunkCount(chunks);
+                    entry.setExtractionMillis(extractionMillis);
+                    extractionCacheRepository.save(entry);
+                }
+            } catch (Exception e) {
+                System.err.println("Error writing extraction cache: " + e.getMessage());
+            } finally {
+                keysInFlight.remove(cacheKey);
+            }
+        }
+
+        public void abandon() {
+            if (entry != null) {
+                keysInFlight.remove(cacheKey);
+            }
+        }
+    }
+}
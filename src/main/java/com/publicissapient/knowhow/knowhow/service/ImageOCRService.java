@@ -16,14 +16,16 @@
 
 package com.publicissapient.knowhow.knowhow.service;
 
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
 
-import java.util.Base64;
 import java.util.List;
 import java.util.Map;
 
@@ -39,30 +41,28 @@ public class ImageOCRService {
     @Value("${langchain4j.open-ai.chat-model.model-name}")
     private String modelName;
 
-    private final RestTemplate restTemplate = new RestTemplate();
+    private final RestTemplate restTemplate;
+
+    public ImageOCRService(RestTemplateBuilder restTemplateBuilder,
+            @Qualifier("llmRateLimitingInterceptor") ClientHttpRequestInterceptor rateLimitingInterceptor) {
+        this.restTemplate = restTemplateBuilder
+                .additionalInterceptors(rateLimitingInterceptor)
+                .build();
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
 
     /**
-     * Extract text from an image using OpenAI Vision API
+     * Extract text from an image prepared (filtered and downscaled) by {@link ImagePreprocessor}
      */
-    public String extractTextFromImage(byte[] imageData, String imageType) {
-        try {
-            // Convert image to base64
-            String base64Image = Base64.getEncoder().encodeToString(imageData);
-
-            // Determine the media type
-            String mimeType = "image/png"; // default
-            if (imageType != null) {
-                if (imageType.contains("jpeg") || imageType.contains("jpg")) {
-                    mimeType = "image/jpeg";
-                } else if (imageType.contains("png")) {
-                    mimeType = "image/png";
-                } else if (imageType.contains("gif")) {
-                    mimeType = "image/gif";
-                } else if (imageType.contains("webp")) {
-                    mimeType = "image/webp";
-                }
-            }
+    public String extractTextFromImage(ImagePreprocessor.PreparedImage image) {
+        return extractText(image.getBase64(), image.getMimeType());
+    }
 
+    private String extractText(String base64Image, String mimeType) {
+        try {
             // Build the request
             HttpHeaders headers = new HttpHeaders();
             headers.setContentType(MediaType.APPLICATION_JSON);
@@ -0,0 +1,274 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Iterator;
+
+/**
+ * Prepares images for vision OCR. Dimensions are read from the image header without decoding
+ * the raster, tiny or near-uniform images (icons, spacers, separators) are skipped, and
+ * oversized images are decoded with subsampling and downscaled before they are encoded, so
+ * neither the heap nor the request payload grows with the original resolution.
+ */
+@Service
+public class ImagePreprocessor {
+
+    @Value("${gravity.ocr.image.min-dimension:48}")
+    private int minDimension;
+
+    @Value("${gravity.ocr.image.min-pixels:10000}")
+    private long minPixels;
+
+    // Shannon entropy in bits of the grayscale histogram; blank images are close to 0
+    @Value("${gravity.ocr.image.min-entropy:1.0}")
+    private double minEntropy;
+
+    @Value("${gravity.ocr.image.max-dimension:1568}")
+    private int maxDimension;
+
+    @Value("${gravity.ocr.image.jpeg-quality:0.85}")
+    private float jpegQuality;
+
+    // Buffers larger than this are dropped after use instead of being kept by the worker thread
+    private static final int MAX_RETAINED_BUFFER = 4 * 1024 * 1024;
+
+    // Encoding buffers are reused by each worker thread instead of allocated per image
+    private final ThreadLocal<ReusableBuffer> imageBuffers = ThreadLocal.withInitial(ReusableBuffer::new);
+    private final ThreadLocal<ReusableBuffer> base64Buffers = ThreadLocal.withInitial(ReusableBuffer::new);
+
+    /**
+     * Identifies the preprocessing settings that change what the OCR model sees.
+     */
+    public String getSettingsId() {
+        return "max" + maxDimension;
+    }
+
+    public PreparedImage prepare(Path file, String mediaType) throws IOException {
+        long originalBytes = Files.size(file);
+        PreparedImage prepared = new PreparedImage();
+        prepared.setOriginalBytes(originalBytes);
+
+        try (ImageInputStream input = ImageIO.createImageInputStream(file.toFile())) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                // Format not supported by ImageIO (e.g. WebP): send the original unchanged
+                return encodeOriginal(prepared, file, mediaType);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                prepared.setWidth(width);
+                prepared.setHeight(height);
+
+                if (width < minDimension || height < minDimension || (long) width * height < minPixels) {
+                    prepared.setSkipReason("too small (" + width + "x" + height + ")");
+                    return prepared;
+                }
+
+                // Decode only every n-th pixel of oversized images
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.max(width, height) / maxDimension);
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage image = reader.read(0, param);
+
+                double entropy = entropy(image);
+                if (entropy < minEntropy) {
+                    prepared.setSkipReason(String.format("near-uniform (entropy %.2f bits)", entropy));
+                    return prepared;
+                }
+
+                if (Math.max(width, height) <= maxDimension) {
+                    return encodeOriginal(prepared, file, mediaType);
+                }
+                return encode(prepared, scale(image), image.getColorModel().hasAlpha() || isPng(mediaType));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private PreparedImage encodeOriginal(PreparedImage prepared, Path file, String mediaType) throws IOException {
+        ReusableBuffer buffer = imageBuffers.get();
+        buffer.reset();
+        Files.copy(file, buffer);
+        prepared.setMimeType(mimeType(mediaType));
+        return toBase64(prepared, buffer);
+    }
+
+    private PreparedImage encode(PreparedImage prepared, BufferedImage image, boolean png) throws IOException {
+        ReusableBuffer buffer = imageBuffers.get();
+        buffer.reset();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName(png ? "png" : "jpeg").next();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(buffer)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (!png) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(jpegQuality);
+            }
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        prepared.setMimeType(png ? "image/png" : "image/jpeg");
+        prepared.setDownscaled(true);
+        prepared.setWidth(image.getWidth());
+        prepared.setHeight(image.getHeight());
+        return toBase64(prepared, buffer);
+    }
+
+    private PreparedImage toBase64(PreparedImage prepared, ReusableBuffer buffer) throws IOException {
+        ReusableBuffer encoded = base64Buffers.get();
+        encoded.reset();
+        try (OutputStream base64 = Base64.getEncoder().wrap(encoded)) {
+            base64.write(buffer.array(), 0, buffer.size());
+        }
+        prepared.setPayloadBytes(buffer.size());
+        prepared.setBase64(new String(encoded.array(), 0, encoded.size(), StandardCharsets.ISO_8859_1));
+
+        if (buffer.array().length > MAX_RETAINED_BUFFER) {
+            imageBuffers.remove();
+        }
+        if (encoded.array().length > MAX_RETAINED_BUFFER) {
+            base64Buffers.remove();
+        }
+        return prepared;
+    }
+
+    /**
+     * Scale the (already subsampled) image so its longest side is maxDimension.
+     */
+    private BufferedImage scale(BufferedImage image) {
+        double factor = (double) maxDimension / Math.max(image.getWidth(), image.getHeight());
+        if (factor >= 1.0) {
+            return image;
+        }
+        int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = new BufferedImage(width, height, type);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    /**
+     * Entropy of the grayscale histogram over a grid of at most about 64k sampled pixels.
+     */
+    private static double entropy(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int step = Math.max(1, (int) Math.sqrt((double) width * height / 65536));
+        int[] histogram = new int[256];
+        int samples = 0;
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step) {
+                int rgb = image.getRGB(x, y);
+                int gray = (((rgb >> 16) & 0xFF) * 299 + ((rgb >> 8) & 0xFF) * 587 + (rgb & 0xFF) * 114) / 1000;
+                histogram[gray]++;
+                samples++;
+            }
+        }
+        double entropy = 0;
+        for (int count : histogram) {
+            if (count > 0) {
+                double p = (double) count / samples;
+                entropy -= p * (Math.log(p) / Math.log(2));
+            }
+        }
+        return entropy;
+    }
+
+    private static boolean isPng(String mediaType) {
+        return mediaType != null && (mediaType.contains("png") || mediaType.contains("gif"));
+    }
+
+    private static String mimeType(String mediaType) {
+        if (mediaType != null) {
+            if (mediaType.contains("jpeg") || mediaType.contains("jpg")) {
+                return "image/jpeg";
+            } else if (mediaType.contains("gif")) {
+                return "image/gif";
+            } else if (mediaType.contains("webp")) {
+                return "image/webp";
+            }
+        }
+        return "image/png";
+    }
+
+    /**
+     * Byte buffer whose backing array can be read without copying.
+     */
+    private static class ReusableBuffer extends ByteArrayOutputStream {
+        ReusableBuffer() {
+            super(256 * 1024);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * An image ready for the OCR request, or the reason it was skipped.
+     */
+    @Data
+    public static class PreparedImage {
+        private String skipReason; // Set when the image is not worth an OCR call
+        private String mimeType;
+        private String base64;
+        private long originalBytes;
+        private long payloadBytes; // Encoded image size before base64
+        private int width;
+        private int height;
+        private boolean downscaled;
+
+        public boolean isSkipped() {
+            return skipReason != null;
+        }
+    }
+}
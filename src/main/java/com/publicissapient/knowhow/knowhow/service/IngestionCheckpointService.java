@@ -0,0 +1,309 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import com.publicissapient.knowhow.knowhow.model.IngestionCheckpoint;
+import com.publicissapient.knowhow.knowhow.model.IngestionItem;
+import com.publicissapient.knowhow.knowhow.model.IngestionRun;
+import com.publicissapient.knowhow.knowhow.repository.IngestionCheckpointRepository;
+import com.publicissapient.knowhow.knowhow.repository.IngestionItemRepository;
+import com.publicissapient.knowhow.knowhow.repository.IngestionRunRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Durable progress of ingestion runs. Each run records, per crawl partition, the search cursor
+ * below which everything has been ingested, and per item (page content or attachment) whether
+ * it was completed, failed or dead-lettered. A job started after an interruption resumes the
+ * unfinished run: partitions restart from their checkpoint and completed items are skipped.
+ */
+@Service
+public class IngestionCheckpointService {
+
+    private static final List<String> RESUMABLE = List.of(IngestionRun.RUNNING, IngestionRun.FAILED,
+            IngestionRun.CANCELLED);
+
+    @Autowired
+    private IngestionRunRepository runRepository;
+
+    @Autowired
+    private IngestionCheckpointRepository checkpointRepository;
+
+    @Autowired
+    private IngestionItemRepository itemRepository;
+
+    // Failed attempts, over all resumes of a run, after which an item is dead-lettered
+    @Value("${gravity.ingestion.checkpoint.max-attempts:3}")
+    private int maxAttempts;
+
+    /**
+     * Whether the latest run was interrupted while running (e.g. by a restart), as opposed to
+     * having failed or been cancelled.
+     */
+    public boolean hasInterruptedRun() {
+        return runRepository.findFirstByOrderByStartedAtDesc()
+                .map(run -> IngestionRun.RUNNING.equals(run.getStatus()))
+                .orElse(false);
+    }
+
+    /**
+     * Resume the latest unfinished run, or start a new one.
+     *
+     * @param fresh start a new run even if an unfinished one exists
+     */
+    public Run openRun(boolean fresh) {
+        IngestionRun existing = runRepository.findFirstByStatusInOrderByStartedAtDesc(RESUMABLE).orElse(null);
+        if (existing != null && !fresh) {
+            existing.setStatus(IngestionRun.RUNNING);
+            existing.setMessage(null);
+            existing.setFinishedAt(null);
+            existing.setUpdatedAt(LocalDateTime.now());
+            runRepository.save(existing);
+            return new Run(existing, true);
+        }
+
+        for (IngestionRun unfinished : runRepository.findByStatusIn(RESUMABLE)) {
+            unfinished.setStatus(IngestionRun.ABANDONED);
+            unfinished.setUpdatedAt(LocalDateTime.now());
+            runRepository.save(unfinished);
+        }
+        IngestionRun run = new IngestionRun(UUID.randomUUID().toString());
+        runRepository.save(run);
+        return new Run(run, false);
+    }
+
+    /**
+     * Dead-lettered items of the latest run, most recent first.
+     */
+    public List<IngestionItem> getDeadLetters() {
+        return runRepository.findFirstByOrderByStartedAtDesc()
+                .map(run -> itemRepository.findByRunIdAndStatusOrderByUpdatedAtDesc(run.getId(), IngestionItem.DEAD))
+                .orElse(new ArrayList<>());
+    }
+
+    /**
+     * Progress of one run as it is being ingested.
+     */
+    public class Run {
+        private final IngestionRun run;
+        private final boolean resumed;
+        private final Set<String> completedKeys = ConcurrentHashMap.newKeySet();
+        private final Map<String, Integer> failedAttempts = new ConcurrentHashMap<>();
+        private final Map<String, IngestionCheckpoint> checkpoints = new HashMap<>();
+        private final List<Partition> partitions = new ArrayList<>();
+
+        private Run(IngestionRun run, boolean resumed) {
+            this.run = run;
+            this.resumed = resumed;
+            if (resumed) {
+                completedKeys.addAll(itemRepository.findItemKeys(run.getId(), IngestionItem.DONE));
+                completedKeys.addAll(itemRepository.findItemKeys(run.getId(), IngestionItem.DEAD));
+                for (IngestionItem item : itemRepository.findByRunIdAndStatus(run.getId(), IngestionItem.FAILED)) {
+                    failedAttempts.put(item.getItemKey(), item.getAttempts());
+                }
+                for (IngestionCheckpoint checkpoint : checkpointRepository.findByRunId(run.getId())) {
+                    checkpoints.put(checkpoint.getId(), checkpoint);
+                }
+            }
+        }
+
+        public String getId() {
+            return run.getId();
+        }
+
+        public boolean isResumed() {
+            return resumed;
+        }
+
+        public int getCompletedItems() {
+            return completedKeys.size();
+        }
+
+        /**
+         * Whether the item was completed or dead-lettered by an earlier attempt of this run.
+         */
+        public boolean isCompleted(String itemKey) {
+            return completedKeys.contains(itemKey);
+        }
+
+        /**
+         * A unit for one item, recorded as done, failed or dead-lettered when it completes.
+         */
+        public WorkUnit item(WorkUnit parent, String itemKey, String title) {
+            return parent.child(error -> recordItem(itemKey, title, error));
+        }
+
+        private boolean recordItem(String itemKey, String title, String error) {
+            IngestionItem item = new IngestionItem(run.getId(), itemKey, truncate(title, 500));
+            if (error == null) {
+                item.setStatus(IngestionItem.DONE);
+                item.setAttempts(failedAttempts.getOrDefault(itemKey, 0) + 1);
+            } else {
+                int attempts = failedAttempts.merge(itemKey, 1, Integer::sum);
+                item.setAttempts(attempts);
+                item.setLastError(truncate(error, 2000));
+                item.setStatus(attempts >= maxAttempts ? IngestionItem.DEAD : IngestionItem.FAILED);
+                if (IngestionItem.DEAD.equals(item.getStatus())) {
+                    System.err.println("Dead-lettered " + itemKey + " (" + title + ") after " + attempts
+                            + " failed attempts: " + error);
+                }
+            }
+            try {
+                itemRepository.save(item);
+            } catch (Exception e) {
+                System.err.println("Error saving ingestion checkpoint for " + itemKey + ": " + e.getMessage());
+                return true;
+            }
+            if (!IngestionItem.FAILED.equals(item.getStatus())) {
+                completedKeys.add(itemKey);
+                return false;
+            }
+            // Only retryable failures hold back the crawl checkpoint
+            return true;
+        }
+
+        /**
+         * Crawl progress of one partition, created on first use.
+         */
+        public synchronized Partition partition(String cql) {
+            String id = run.getId() + ":" + UUID.nameUUIDFromBytes(cql.getBytes(StandardCharsets.UTF_8));
+            IngestionCheckpoint checkpoint = checkpoints.computeIfAbsent(id,
+                    key -> new IngestionCheckpoint(key, run.getId(), cql));
+            Partition partition = new Partition(checkpoint);
+            partitions.add(partition);
+            return partition;
+        }
+
+        /**
+         * Whether every partition crawled by this run was fully ingested. False while failed
+         * items are still waiting for a retry.
+         */
+        public synchronized boolean isComplete() {
+            return partitions.stream().allMatch(Partition::isDone);
+        }
+
+        public void finish(String status, String message) {
+            run.setStatus(status);
+            run.setMessage(truncate(message, 2000));
+            run.setUpdatedAt(LocalDateTime.now());
+            run.setFinishedAt(LocalDateTime.now());
+            try {
+                runRepository.save(run);
+            } catch (Exception e) {
+                System.err.println("Error saving ingestion run " + run.getId() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Crawl progress of one partition. Batches complete out of order, so the checkpoint only
+     * advances over the longest prefix of completed batches (the low watermark). A batch with
+     * a retryable failure stops the watermark, so it is crawled again on resume.
+     */
+    public class Partition {
+        private final IngestionCheckpoint checkpoint;
+        private final Deque<Batch> batches = new ArrayDeque<>();
+
+        private Partition(IngestionCheckpoint checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+
+        public synchronized boolean isDone() {
+            return checkpoint.isDone();
+        }
+
+        /**
+         * Cursor to resume the crawl from; null to start at the beginning.
+         */
+        public String getCursor() {
+            return checkpoint.getCursor();
+        }
+
+        /**
+         * Register the next batch of the partition, in crawl order. Pages of the batch are children of
+         * its unit; the crawler releases it with {@link #endBatch(Batch, String)}.
+         */
+        public synchronized Batch beginBatch() {
+            Batch batch = new Batch();
+            batch.work = WorkUnit.root(error -> {
+                completeBatch(batch, error);
+                return error != null;
+            });
+            batches.addLast(batch);
+            return batch;
+        }
+
+        /**
+         * Mark the batch as fully handed over to the pipeline.
+         *
+         * @param nextCursor cursor of the following batch, or null if this was the last one
+         */
+        public void endBatch(Batch batch, String nextCursor) {
+            batch.nextCursor = nextCursor;
+            batch.work.release();
+        }
+
+        private synchronized void completeBatch(Batch batch, String error) {
+            batch.done = true;
+            batch.failed = error != null;
+
+            boolean advanced = false;
+            while (!batches.isEmpty() && batches.peekFirst().done && !batches.peekFirst().failed) {
+                Batch completed = batches.removeFirst();
+                checkpoint.setCursor(completed.nextCursor);
+                checkpoint.setDone(completed.nextCursor == null);
+                advanced = true;
+            }
+            if (advanced) {
+                checkpoint.setUpdatedAt(LocalDateTime.now());
+                try {
+                    checkpointRepository.save(checkpoint);
+                } catch (Exception e) {
+                    System.err.println("Error saving crawl checkpoint: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    public static class Batch {
+        private WorkUnit work;
+        private String nextCursor;
+        private boolean done;
+        private boolean failed;
+
+        public WorkUnit getWork() {
+            return work;
+        }
+    }
+
+    private static String truncate(String value, int length) {
+        return value == null || value.length() <= length ? value : value.substring(0, length);
+    }
+}
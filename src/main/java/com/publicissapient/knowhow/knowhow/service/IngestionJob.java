@@ -0,0 +1,228 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A background ingestion run. Serialized as the job status returned by the ingestion endpoints.
+ */
+public class IngestionJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final long createdAt = System.currentTimeMillis();
+    private final IngestionReport report = new IngestionReport();
+
+    private volatile Status status = Status.QUEUED;
+    private volatile String phase = "queued";
+    private volatile String message;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile long totalPages = -1; // -1 when Confluence does not report a total
+    private volatile boolean cancelRequested;
+    private volatile String runId; // Durable run this job works on; kept when a run is resumed
+    private volatile boolean resumed;
+    private final boolean fresh;
+    private volatile IngestionPipeline pipeline;
+
+    public IngestionJob(boolean fresh) {
+        this.fresh = fresh;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    /**
+     * Whether this job continues an interrupted run instead of starting from scratch.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    @JsonIgnore
+    public boolean isFresh() {
+        return fresh;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isActive() {
+        return status == Status.QUEUED || status == Status.RUNNING;
+    }
+
+    /**
+     * Current stage of the job. While the pipeline runs this is "crawling" until the fetch stage
+     * has finished and "processing" while the remaining stages drain.
+     */
+    public String getStage() {
+        IngestionPipeline current = pipeline;
+        if (status == Status.RUNNING && current != null) {
+            for (PipelineStage.StageStats stats : current.getStats()) {
+                if ("fetch".equals(stats.getName())) {
+                    return stats.isFinished() ? "processing" : "crawling";
+                }
+            }
+        }
+        return phase;
+    }
+
+    /**
+     * The unfinished pipeline stage with the highest utilization, i.e. the current bottleneck.
+     */
+    public String getBottleneckStage() {
+        IngestionPipeline current = pipeline;
+        if (current == null) {
+            return null;
+        }
+        PipelineStage.StageStats busiest = null;
+        for (PipelineStage.StageStats stats : current.getStats()) {
+            if (!stats.isFinished() && (busiest == null || stats.getUtilization() > busiest.getUtilization())) {
+                busiest = stats;
+            }
+        }
+        return busiest == null ? null : busiest.getName();
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    public long getTotalPages() {
+        return totalPages;
+    }
+
+    public long getPagesFetched() {
+        return report.getPagesFetched();
+    }
+
+    public long getPagesProcessed() {
+        return report.getPagesProcessed();
+    }
+
+    public long getSegmentsStored() {
+        return report.getSegmentsStored();
+    }
+
+    public double getPagesPerSecond() {
+        if (startedAt == 0) {
+            return 0.0;
+        }
+        long end = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+        long elapsedMillis = Math.max(1, end - startedAt);
+        return report.getPagesProcessed() * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * Estimated seconds remaining, or null when the total or the throughput is not known yet.
+     */
+    public Long getEtaSeconds() {
+        double rate = getPagesPerSecond();
+        if (status != Status.RUNNING || totalPages < 0 || rate <= 0) {
+            return null;
+        }
+        return (long) Math.ceil(Math.max(0, totalPages - report.getPagesProcessed()) / rate);
+    }
+
+    public List<PipelineStage.StageStats> getStages() {
+        IngestionPipeline current = pipeline;
+        return current == null ? new ArrayList<>() : current.getStats();
+    }
+
+    public IngestionReport getReport() {
+        return report;
+    }
+
+    @JsonIgnore
+    public boolean isCancelRequested() {
+        return cancelRequested;
+    }
+
+    @JsonIgnore
+    public IngestionPipeline getPipeline() {
+        return pipeline;
+    }
+
+    void setPipeline(IngestionPipeline pipeline) {
+        this.pipeline = pipeline;
+        if (cancelRequested && pipeline != null) {
+            pipeline.cancel();
+        }
+    }
+
+    void setTotalPages(long totalPages) {
+        this.totalPages = totalPages;
+    }
+
+    void setRun(String runId, boolean resumed) {
+        this.runId = runId;
+        this.resumed = resumed;
+    }
+
+    void setPhase(String phase) {
+        this.phase = phase;
+    }
+
+    void markRunning() {
+        this.status = Status.RUNNING;
+        this.startedAt = System.currentTimeMillis();
+    }
+
+    void markFinished(Status status, String message) {
+        this.status = status;
+        this.message = message;
+        this.phase = status.name().toLowerCase();
+        this.finishedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Request cancellation. A running pipeline stops handing out work; queued work is dropped.
+     */
+    void cancel() {
+        cancelRequested = true;
+        IngestionPipeline current = pipeline;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+}
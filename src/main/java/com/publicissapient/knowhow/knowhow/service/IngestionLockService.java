@@ -0,0 +1,90 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.stereotype.Service;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Cluster-wide ingestion lock backed by a Postgres session-level advisory lock.
+ * The lock is held by a dedicated connection, opened outside the connection pool, for the
+ * whole run; closing it ends the session, so the lock is released even if unlocking fails
+ * or the instance dies.
+ */
+@Service
+public class IngestionLockService {
+
+    // Arbitrary application-wide key for the ingestion advisory lock
+    private static final long INGESTION_LOCK_KEY = 0x4B4E4F57484F5701L;
+
+    @Autowired
+    private DataSourceProperties dataSourceProperties;
+
+    /**
+     * Try to take the ingestion lock without waiting.
+     *
+     * @return the held lock, or null if another run already holds it
+     */
+    public Lock tryAcquire() throws SQLException {
+        // Not from the pool: a pooled connection returned with the lock still held would keep it
+        Connection connection = DriverManager.getConnection(dataSourceProperties.determineUrl(),
+                dataSourceProperties.determineUsername(), dataSourceProperties.determinePassword());
+        try {
+            connection.setAutoCommit(true);
+            try (PreparedStatement statement = connection.prepareStatement("SELECT pg_try_advisory_lock(?)")) {
+                statement.setLong(1, INGESTION_LOCK_KEY);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next() && resultSet.getBoolean(1)) {
+                        return new Lock(connection);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        connection.close();
+        return null;
+    }
+
+    public static class Lock implements AutoCloseable {
+        private final Connection connection;
+
+        private Lock(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void close() {
+            try (connection; PreparedStatement statement = connection
+                    .prepareStatement("SELECT pg_advisory_unlock(?)")) {
+                statement.setLong(1, INGESTION_LOCK_KEY);
+                statement.execute();
+            } catch (SQLException e) {
+                // Closing the connection ends the session, which releases the lock as well
+                System.err.println("Error releasing ingestion lock: " + e.getMessage());
+            }
+        }
+    }
+}
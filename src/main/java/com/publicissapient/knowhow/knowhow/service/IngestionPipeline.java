@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A set of connected {@link PipelineStage}s sharing one worker pool sized to the sum of the
+ * stage parallelism, so every stage always has its configured number of workers. Workers run
+ * at {@link WorkPriority#BACKGROUND} priority.
+ */
+public class IngestionPipeline {
+
+    private final List<PipelineStage<?>> stages = new ArrayList<>();
+    private ExecutorService executor;
+
+    public <T> PipelineStage<T> addStage(PipelineStage<T> stage) {
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Register the caller as a producer of the source stage, then start every stage. The
+     * registration comes first so that source workers do not see an empty queue with no open
+     * producers and finish before anything is submitted. The caller must call
+     * {@link PipelineStage#producerDone()} on the source once it has submitted everything.
+     */
+    public void start(PipelineStage<?> source) {
+        source.addProducer();
+        int threads = stages.stream().mapToInt(s -> s.getStats().getParallelism()).sum();
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(WorkPriority.BACKGROUND.wrap(runnable), "ingestion-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (PipelineStage<?> stage : stages) {
+            stage.start(executor);
+        }
+    }
+
+    /**
+     * Wait until every stage has drained its queue and stopped.
+     */
+    public void awaitCompletion() throws InterruptedException {
+        try {
+            for (PipelineStage<?> stage : stages) {
+                while (!stage.awaitFinished(1, TimeUnit.SECONDS)) {
+                    // keep waiting; stats remain observable while the pipeline runs
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    public void cancel() {
+        for (PipelineStage<?> stage : stages) {
+            stage.cancel();
+        }
+    }
+
+    public List<PipelineStage.StageStats> getStats() {
+        List<PipelineStage.StageStats> stats = new ArrayList<>();
+        for (PipelineStage<?> stage : stages) {
+            stats.add(stage.getStats());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters collected during a single ingestion run.
+ * All counters are thread-safe so they can be updated from concurrent workers.
+ */
+public class IngestionReport {
+
+    private final long startedAt = System.currentTimeMillis();
+
+    private final AtomicLong pagesFetched = new AtomicLong();
+    private final AtomicLong pagesProcessed = new AtomicLong();
+    private final AtomicLong segmentsStored = new AtomicLong();
+    private final AtomicLong segmentsSplit = new AtomicLong();
+    private final AtomicLong nearDuplicates = new AtomicLong();
+    private final AtomicLong nearDuplicateChars = new AtomicLong();
+
+    // Size of the vector store after the run, segment and document tables with their indexes
+    private volatile long indexRows;
+    private volatile long indexBytes;
+
+    private final AtomicLong embeddingCacheHits = new AtomicLong();
+    private final AtomicLong embeddingCacheMisses = new AtomicLong();
+    private final AtomicLong embeddingNanos = new AtomicLong();
+
+    private final AtomicLong extractionCacheHits = new AtomicLong();
+    private final AtomicLong extractionCacheMisses = new AtomicLong();
+    private final AtomicLong llmCallsAvoided = new AtomicLong();
+    private final AtomicLong downloadsAvoided = new AtomicLong();
+    private final AtomicLong extractionMillisSaved = new AtomicLong();
+
+    private final AtomicLong parseTimeouts = new AtomicLong();
+    private final AtomicLong parsesTruncated = new AtomicLong();
+    private final AtomicLong parsesSkipped = new AtomicLong();
+    // Most abandoned in-process parser threads seen running at once
+    private final AtomicLong abandonedParsers = new AtomicLong();
+
+    private final AtomicLong imagesSkipped = new AtomicLong();
+    private final AtomicLong imagePayloadBytesSaved = new AtomicLong();
+
+    private final AtomicLong httpNotModified = new AtomicLong();
+    private final AtomicLong httpBytesNotDownloaded = new AtomicLong();
+    private final AtomicLong httpThrottledRetries = new AtomicLong();
+
+    public void recordPageFetched() {
+        pagesFetched.incrementAndGet();
+    }
+
+    public void recordPageProcessed() {
+        pagesProcessed.incrementAndGet();
+    }
+
+    public void recordSegmentsStored(int count) {
+        segmentsStored.addAndGet(count);
+    }
+
+    public void recordSegmentsSplit(int count) {
+        segmentsSplit.addAndGet(count);
+    }
+
+    /**
+     * A segment was dropped as a near-duplicate of a kept one; it is neither embedded nor stored.
+     */
+    public void recordNearDuplicate(int chars) {
+        nearDuplicates.incrementAndGet();
+        nearDuplicateChars.addAndGet(chars);
+    }
+
+    public void recordIndexSize(long rows, long bytes) {
+        indexRows = rows;
+        indexBytes = bytes;
+    }
+
+    public void recordEmbeddingCache(int hits, int misses, long modelNanos) {
+        embeddingCacheHits.addAndGet(hits);
+        embeddingCacheMisses.addAndGet(misses);
+        embeddingNanos.addAndGet(modelNanos);
+    }
+
+    public void recordExtractionCacheHit(boolean llmCallAvoided, long extractionMillis, boolean downloadAvoided) {
+        extractionCacheHits.incrementAndGet();
+        extractionMillisSaved.addAndGet(extractionMillis);
+        if (llmCallAvoided) {
+            llmCallsAvoided.incrementAndGet();
+        }
+        if (downloadAvoided) {
+            downloadsAvoided.incrementAndGet();
+        }
+    }
+
+    public void recordExtractionCacheMiss() {
+        extractionCacheMisses.incrementAndGet();
+    }
+
+    public void recordParseTimeout() {
+        parseTimeouts.incrementAndGet();
+    }
+
+    /**
+     * An attachment's text was cut off at the extracted character limit.
+     */
+    public void recordParseTruncated() {
+        parsesTruncated.incrementAndGet();
+    }
+
+    /**
+     * An attachment was not parsed because too many abandoned parser threads were running.
+     */
+    public void recordParseSkipped() {
+        parsesSkipped.incrementAndGet();
+    }
+
+    public void recordAbandonedParsers(int running) {
+        abandonedParsers.accumulateAndGet(running, Math::max);
+    }
+
+    /**
+     * An image was filtered out before OCR; its whole upload and the vision call are saved.
+     */
+    public void recordImageSkipped(long originalBytes) {
+        imagesSkipped.incrementAndGet();
+        imagePayloadBytesSaved.addAndGet(originalBytes);
+    }
+
+    public void recordImagePrepared(long originalBytes, long payloadBytes) {
+        imagePayloadBytesSaved.addAndGet(Math.max(0, originalBytes - payloadBytes));
+    }
+
+    public void recordHttpNotModified(long responses, long bytesNotDownloaded) {
+        httpNotModified.addAndGet(responses);
+        httpBytesNotDownloaded.addAndGet(bytesNotDownloaded);
+    }
+
+    /**
+     * Requests Confluence rejected with 429 (or 503 and Retry-After) that were retried.
+     */
+    public void recordHttpThrottled(long retries) {
+        httpThrottledRetries.addAndGet(retries);
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getPagesFetched() {
+        return pagesFetched.get();
+    }
+
+    public long getPagesProcessed() {
+        return pagesProcessed.get();
+    }
+
+    public long getSegmentsStored() {
+        return segmentsStored.get();
+    }
+
+    public long getSegmentsSplit() {
+        return segmentsSplit.get();
+    }
+
+    public long getNearDuplicates() {
+        return nearDuplicates.get();
+    }
+
+    public long getNearDuplicateChars() {
+        return nearDuplicateChars.get();
+    }
+
+    public long getIndexRows() {
+        return indexRows;
+    }
+
+    public long getIndexBytes() {
+        return indexBytes;
+    }
+
+    /**
+     * Estimated size the vector store would have had with the near-duplicates stored, at the
+     * average size per row after the run.
+     */
+    public long getIndexBytesWithoutDedup() {
+        if (indexRows == 0) {
+            return indexBytes;
+        }
+        return indexBytes + indexBytes * nearDuplicates.get() / indexRows;
+    }
+
+    public long getEmbeddingCacheHits() {
+        return embeddingCacheHits.get();
+    }
+
+    public long getEmbeddingCacheMisses() {
+        return embeddingCacheMisses.get();
+    }
+
+    public double getEmbeddingCacheHitRatio() {
+        long total = embeddingCacheHits.get() + embeddingCacheMisses.get();
+        return total == 0 ? 0.0 : (double) embeddingCacheHits.get() / total;
+    }
+
+    /**
+     * Estimated model time saved by cache hits, based on the average time the model
+     * spent per segment on cache misses during this run.
+     */
+    public long getEmbeddingMillisSaved() {
+        long misses = embeddingCacheMisses.get();
+        if (misses == 0) {
+            return 0;
+        }
+        return embeddingCacheHits.get() * (embeddingNanos.get() / misses) / 1_000_000;
+    }
+
+    public long getExtractionCacheHits() {
+        return extractionCacheHits.get();
+    }
+
+    public long getExtractionCacheMisses() {
+        return extractionCacheMisses.get();
+    }
+
+    public long getLlmCallsAvoided() {
+        return llmCallsAvoided.get();
+    }
+
+    public long getDownloadsAvoided() {
+        return downloadsAvoided.get();
+    }
+
+    /**
+     * OCR and parsing time saved by extraction cache hits, as measured when each cached
+     * extraction originally ran.
+     */
+    public long getExtractionMillisSaved() {
+        return extractionMillisSaved.get();
+    }
+
+    public long getParseTimeouts() {
+        return parseTimeouts.get();
+    }
+
+    public long getParsesTruncated() {
+        return parsesTruncated.get();
+    }
+
+    public long getParsesSkipped() {
+        return parsesSkipped.get();
+    }
+
+    public long getAbandonedParsers() {
+        return abandonedParsers.get();
+    }
+
+    public long getImagesSkipped() {
+        return imagesSkipped.get();
+    }
+
+    public long getImagePayloadBytesSaved() {
+        return imagePayloadBytesSaved.get();
+    }
+
+    public long getHttpNotModified() {
+        return httpNotModified.get();
+    }
+
+    public long getHttpBytesNotDownloaded() {
+        return httpBytesNotDownloaded.get();
+    }
+
+    public long getHttpThrottledRetries() {
+        return httpThrottledRetries.get();
+    }
+
+    public String summary() {
+        return String.format("Embedding cache: %d hits, %d misses (hit ratio %.1f%%, ~%d ms model time saved). "
+                + "Extraction cache: %d hits, %d misses (%d LLM calls avoided, %d downloads avoided, "
+                + "~%d ms extraction time saved). "
+                + "Attachment parsing: %d timeouts, %d truncated at the character limit, %d skipped "
+                + "(at most %d abandoned parser threads running). "
+                + "Images: %d OCR calls skipped, %d payload bytes saved. "
+                + "HTTP: %d not-modified responses, %d bytes not downloaded, %d throttled requests retried. "
+                + "Near-duplicates: %d of %d segments collapsed (%d chars not embedded or stored). "
+                + "Index: %d rows, %d bytes (~%d bytes without near-duplicate collapse).",
+                getEmbeddingCacheHits(), getEmbeddingCacheMisses(), getEmbeddingCacheHitRatio() * 100,
+                getEmbeddingMillisSaved(), getExtractionCacheHits(), getExtractionCacheMisses(),
+                getLlmCallsAvoided(), getDownloadsAvoided(), getExtractionMillisSaved(),
+                getParseTimeouts(), getParsesTruncated(), getParsesSkipped(), getAbandonedParsers(),
+                getImagesSkipped(), getImagePayloadBytesSaved(),
+                getHttpNotModified(), getHttpBytesNotDownloaded(), getHttpThrottledRetries(),
+                getNearDuplicates(), getSegmentsSplit(), getNearDuplicateChars(),
+                getIndexRows(), getIndexBytes(), getIndexBytesWithoutDedup());
+    }
+}
@@ -16,11 +16,11 @@
 
 package com.publicissapient.knowhow.knowhow.service;
 
+import com.publicissapient.knowhow.knowhow.config.HostRateLimiter;
 import com.publicissapient.knowhow.knowhow.exception.DatabaseServiceException;
 import dev.langchain4j.data.document.Document;
 import dev.langchain4j.data.document.DocumentSplitter;
 import dev.langchain4j.data.document.Metadata;
-import dev.langchain4j.data.document.parser.apache.tika.ApacheTikaDocumentParser;
 import dev.langchain4j.data.document.splitter.DocumentSplitters;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
@@ -28,15 +28,36 @@ import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2Embedding
 import dev.langchain4j.model.embedding.EmbeddingModel;
 import dev.langchain4j.store.embedding.EmbeddingStore;
 import dev.langchain4j.store.embedding.pgvector.PgVectorEmbeddingStore;
+import com.publicissapient.knowhow.knowhow.model.IngestionItem;
+import com.publicissapient.knowhow.knowhow.model.IngestionRun;
+import com.publicissapient.knowhow.knowhow.model.PageEmbedding;
 import com.publicissapient.knowhow.knowhow.repository.EmbeddingRepository;
+import com.publicissapient.knowhow.knowhow.repository.PageEmbeddingRepository;
+import com.publicissapient.knowhow.knowhow.vector.SegmentStore;
+import com.publicissapient.knowhow.knowhow.vector.VectorSearchService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Service;
 
 import jakarta.annotation.PostConstruct;
-import java.io.ByteArrayInputStream;
+import jakarta.annotation.PreDestroy;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 @Service
 public class IngestionService {
@@ -53,22 +74,128 @@ public class IngestionService {
     @Autowired
     private EmbeddingRepository embeddingRepository;
 
+    @Autowired
+    private PageEmbeddingRepository pageEmbeddingRepository;
+
     @Value("${spring.datasource.url}")
     private String dbUrl;
 
     @Autowired
     private EmbeddingStore<TextSegment> embeddingStore;
 
+    @Autowired
+    private SegmentStore segmentStore;
+
     @Autowired
     private EmbeddingModel embeddingModel;
 
-    private final ApacheTikaDocumentParser parser = new ApacheTikaDocumentParser();
+    @Autowired
+    private EmbeddingCacheService embeddingCacheService;
+
+    @Autowired
+    private AttachmentTextExtractor attachmentTextExtractor;
+
+    @Autowired
+    private ExtractionCacheService extractionCacheService;
+
+    @Autowired
+    private ImagePreprocessor imagePreprocessor;
+
+    @Autowired
+    private IngestionCheckpointService checkpointService;
+
+    // Resume a run that was interrupted by a restart as soon as the application is ready
+    @Value("${gravity.ingestion.resume-on-startup:true}")
+    private boolean resumeOnStartup;
 
     @Autowired
     private javax.sql.DataSource dataSource;
 
+    @Value("${gravity.ingestion.pipeline.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${gravity.ingestion.pipeline.fetch-threads:1}")
+    private int fetchThreads;
+
+    @Value("${gravity.ingestion.pipeline.clean-threads:2}")
+    private int cleanThreads;
+
+    @Value("${gravity.ingestion.pipeline.split-threads:2}")
+    private int splitThreads;
+
+    @Value("${gravity.ingestion.pipeline.embed-threads:4}")
+    private int embedThreads;
+
+    @Value("${gravity.ingestion.pipeline.persist-threads:2}")
+    private int persistThreads;
+
+    @Value("${gravity.ingestion.pipeline.attachment-threads:2}")
+    private int attachmentThreads;
+
+    @Value("${gravity.ingestion.pipeline.extract-threads:4}")
+    private int extractThreads;
+
+    // Caps concurrent OCR calls to the LLM gateway independently of the extract threads
+    @Value("${gravity.ingestion.ocr.max-concurrent:2}")
+    private int ocrMaxConcurrent;
+
+    private Semaphore ocrPermits;
+
+    @Value("${gravity.ingestion.attachment.max-bytes:104857600}")
+    private long attachmentMaxBytes;
+
+    // Characters of page content, after title and tags, that go into the page-level embedding
+    @Value("${gravity.ingestion.page-summary.lead-chars:1000}")
+    private int pageSummaryLeadChars;
+
+    // Near-duplicate segments (templates, repeated macro output, cloned pages) are stored once
+    @Value("${gravity.ingestion.dedup.enabled:true}")
+    private boolean dedupEnabled;
+
+    // Estimated Jaccard similarity of word shingles above which segments are near-duplicates
+    @Value("${gravity.ingestion.dedup.threshold:0.8}")
+    private double dedupThreshold;
+
+    @Value("${gravity.ingestion.dedup.num-hashes:128}")
+    private int dedupNumHashes;
+
+    @Value("${gravity.ingestion.dedup.bands:16}")
+    private int dedupBands;
+
+    @Value("${gravity.ingestion.dedup.shingle-words:3}")
+    private int dedupShingleWords;
+
+    // Created-year boundaries splitting the crawl into partitions fetched in parallel
+    @Value("${gravity.ingestion.crawl.partition-years:}")
+    private List<Integer> partitionYears;
+
+    @Autowired
+    private IngestionLockService ingestionLockService;
+
+    @Autowired
+    private PriorityScheduler priorityScheduler;
+
+    @Autowired
+    private VectorSearchService vectorSearchService;
+
+    @Autowired
+    @Qualifier("confluenceRateLimiter")
+    private HostRateLimiter confluenceRateLimiter;
+
+    // Finished jobs stay queryable by id for this long, then are dropped with their reports
+    private static final long FINISHED_JOB_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    private final Map<String, IngestionJob> jobs = new ConcurrentHashMap<>();
+    private final ExecutorService jobExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(WorkPriority.BACKGROUND.wrap(runnable), "ingestion-job");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile IngestionJob latestJob;
+
     @PostConstruct
     public void init() {
+        ocrPermits = new Semaphore(Math.max(1, ocrMaxConcurrent));
         try {
             // Test database connectivity first
             System.out.println("Testing database connectivity...");
@@ -87,204 +214,686 @@ public class IngestionService {
         }
     }
 
-    public String ingestAll() {
+    /**
+     * Resume an ingestion run left unfinished by a restart of this or another instance.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterruptedRun() {
+        if (!resumeOnStartup) {
+            return;
+        }
         try {
-            clearData();
+            if (checkpointService.hasInterruptedRun()) {
+                System.out.println("Found an interrupted ingestion run. Resuming it.");
+                startIngestion(false);
+            }
+        } catch (Exception e) {
+            System.err.println("Error checking for an interrupted ingestion run: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Start a background ingestion job that resumes the latest unfinished run, if there is one.
+     */
+    public IngestionJob startIngestion() {
+        return startIngestion(false);
+    }
+
+    /**
+     * Start a background ingestion job and return immediately. The job resumes the latest
+     * unfinished run from its checkpoints unless fresh is set. If a job is already active on
+     * this instance, that job is returned instead of starting a second one.
+     */
+    public synchronized IngestionJob startIngestion(boolean fresh) {
+        IngestionJob active = latestJob;
+        if (active != null && active.isActive()) {
+            System.out.println("Ingestion job " + active.getId() + " is already active.");
+            return active;
+        }
+
+        long expired = System.currentTimeMillis() - FINISHED_JOB_RETENTION_MILLIS;
+        jobs.values().removeIf(old -> !old.isActive() && old.getFinishedAt() > 0 && old.getFinishedAt() < expired);
+
+        IngestionJob job = new IngestionJob(fresh);
+        jobs.put(job.getId(), job);
+        latestJob = job;
+        jobExecutor.execute(() -> runJob(job));
+        System.out.println("Queued ingestion job " + job.getId());
+        return job;
+    }
+
+    public IngestionJob getJob(String jobId) {
+        return jobs.get(jobId);
+    }
+
+    /**
+     * Request cancellation of a job.
+     *
+     * @return the job, or null if it is unknown
+     */
+    public IngestionJob cancelJob(String jobId) {
+        IngestionJob job = jobs.get(jobId);
+        if (job != null && job.isActive()) {
+            System.out.println("Cancelling ingestion job " + jobId);
+            job.cancel();
+        }
+        return job;
+    }
+
+    private void runJob(IngestionJob job) {
+        if (job.isCancelRequested()) {
+            job.markFinished(IngestionJob.Status.CANCELLED, "Cancelled before start");
+            return;
+        }
+        job.markRunning();
+        job.setPhase("acquiring-lock");
+        IngestionCheckpointService.Run run = null;
+
+        try (IngestionLockService.Lock lock = ingestionLockService.tryAcquire()) {
+            if (lock == null) {
+                job.markFinished(IngestionJob.Status.FAILED,
+                        "Another ingestion is already running on a different instance");
+                System.out.println("Ingestion job " + job.getId() + " skipped: lock held by another instance.");
+                return;
+            }
+
+            job.setPhase("opening-run");
+            run = checkpointService.openRun(job.isFresh());
+            job.setRun(run.getId(), run.isResumed());
+            if (run.isResumed()) {
+                job.setPhase("resuming");
+                // Segments of items that were interrupted half-way would otherwise be stored twice
+                int removed = embeddingRepository.deleteUnfinishedItems(run.getId());
+                embeddingRepository.deleteUnfinishedDocuments(run.getId());
+                System.out.println("Resuming ingestion run " + run.getId() + ": " + run.getCompletedItems()
+                        + " items already done, " + removed + " segments of unfinished items removed.");
+            } else {
+                job.setPhase("clearing");
+                clearData();
+            }
             int totalSegments = 0;
             int limit = 200;
+            IngestionReport report = job.getReport();
 
-            System.out.println("Starting ingestion of pages...");
-            totalSegments += ingestContent("page", limit);
+            job.setTotalPages(confluenceService.countContent("page"));
+
+            long notModifiedBefore = confluenceService.getNotModifiedResponses();
+            long throttledBefore = confluenceRateLimiter.getThrottledRetries();
+            long bytesNotDownloadedBefore = confluenceService.getBytesNotDownloaded();
 
-            return "Ingestion complete. Total segments stored: " + totalSegments;
+            System.out.println("Starting ingestion of pages...");
+            totalSegments += ingestContent("page", limit, job, run);
+
+            report.recordHttpNotModified(confluenceService.getNotModifiedResponses() - notModifiedBefore,
+                    confluenceService.getBytesNotDownloaded() - bytesNotDownloadedBefore);
+            report.recordHttpThrottled(confluenceRateLimiter.getThrottledRetries() - throttledBefore);
+
+            recordIndexSize(report);
+            System.out.println("Ingestion report: " + report.summary());
+            if (job.isCancelRequested()) {
+                String message = "Ingestion cancelled. Segments stored before cancellation: " + totalSegments;
+                run.finish(IngestionRun.CANCELLED, message);
+                job.markFinished(IngestionJob.Status.CANCELLED, message);
+            } else if (!run.isComplete()) {
+                // Keep the run resumable so the next ingestion retries the failed items
+                String message = "Ingestion finished with failed items; the next ingestion resumes run "
+                        + run.getId() + " to retry them. Total segments stored: " + totalSegments + ". "
+                        + report.summary();
+                run.finish(IngestionRun.FAILED, message);
+                job.markFinished(IngestionJob.Status.COMPLETED, message);
+            } else {
+                String message = "Ingestion complete. Total segments stored: " + totalSegments + ". "
+                        + report.summary();
+                run.finish(IngestionRun.COMPLETED, message);
+                job.markFinished(IngestionJob.Status.COMPLETED, message);
+            }
         } catch (Exception e) {
             System.err.println("Error during ingestion: " + e.getMessage());
+            if (run != null) {
+                run.finish(IngestionRun.FAILED, "Ingestion failed: " + e.getMessage());
+            }
+            job.markFinished(IngestionJob.Status.FAILED, "Ingestion failed: " + e.getMessage());
             errorNotificationService.sendErrorNotification(
                     "Ingestion Process",
                     e,
-                    "Failed during full content ingestion. Process was interrupted.");
-            throw new RuntimeException("Ingestion failed: " + e.getMessage(), e);
+                    "Failed during full content ingestion. Process was interrupted. Job: " + job.getId());
+        } finally {
+            if (run != null) {
+                // The vector store changed; bring the search replicas of every node up to date
+                vectorSearchService.storeChanged();
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        IngestionJob job = latestJob;
+        if (job != null && job.isActive()) {
+            job.cancel();
         }
+        jobExecutor.shutdownNow();
     }
 
     private void clearData() {
         System.out.println("Clearing existing data...");
         try {
             embeddingRepository.truncateTable();
+            pageEmbeddingRepository.truncateTable();
             System.out.println("Data cleared successfully.");
         } catch (Exception e) {
             System.err.println("Error clearing data: " + e.getMessage());
         }
     }
 
-    private int ingestContent(String type, int limit) {
-        int totalSegments = 0;
-        int start = 0;
-        boolean more = true;
-        java.util.Set<String> visitedIds = new java.util.HashSet<>();
+    private int ingestContent(String type, int limit, IngestionJob job, IngestionCheckpointService.Run run)
+            throws InterruptedException {
+        IngestionReport report = job.getReport();
+        AtomicInteger totalSegments = new AtomicInteger();
+        DocumentSplitter splitter = DocumentSplitters.recursive(1000, 200);
+        NearDuplicateDetector duplicates = dedupEnabled
+                ? new NearDuplicateDetector(dedupNumHashes, dedupBands, dedupThreshold, dedupShingleWords)
+                : null;
+
+        // A document whose segments are not stored also fails the duplicates collapsed into them
+        BiConsumer<PipelineDocument, Exception> failUnstored = (document, e) -> {
+            if (duplicates != null && document.getSegmentIds() != null) {
+                duplicates.failPending(document.getSegmentIds(), "Near-duplicate of a segment of "
+                        + document.getLabel() + " that could not be stored");
+            }
+            failDocument(document, e);
+        };
+
+        IngestionPipeline pipeline = new IngestionPipeline();
+        PipelineStage<PipelineDocument> persistStage = pipeline.addStage(new PipelineStage<>(
+                "persist", persistThreads, queueCapacity,
+                (PipelineDocument document) -> totalSegments.addAndGet(persistDocument(document, duplicates, report))))
+                .onFailure(failUnstored);
+        PipelineStage<PipelineDocument> embedStage = pipeline.addStage(new PipelineStage<>(
+                "embed", embedThreads, queueCapacity,
+                (PipelineDocument document) -> embedDocument(document, report, persistStage)))
+                .onFailure(failUnstored);
+        PipelineStage<PipelineDocument> splitStage = pipeline.addStage(new PipelineStage<>(
+                "split", splitThreads, queueCapacity,
+                (PipelineDocument document) -> splitDocument(document, splitter, duplicates, report, embedStage)))
+                .onFailure(IngestionService::failDocument);
+        PipelineStage<PipelineAttachment> extractStage = pipeline.addStage(new PipelineStage<>(
+                "extract", extractThreads, queueCapacity,
+                attachment -> extractAttachment(attachment, splitStage, report, run)));
+        PipelineStage<PipelinePage> attachmentStage = pipeline.addStage(new PipelineStage<>(
+                "attachments", attachmentThreads, queueCapacity,
+                (PipelinePage page) -> listAttachments(page, extractStage, report, run)))
+                .onFailure((page, e) -> page.getWork().fail(e.getMessage()));
+        PipelineStage<PipelinePage> cleanStage = pipeline.addStage(new PipelineStage<>(
+                "clean", cleanThreads, queueCapacity,
+                (PipelinePage page) -> cleanPage(page, splitStage, attachmentStage, run)))
+                .onFailure((page, e) -> page.getWork().fail(e.getMessage()));
+        PipelineStage<String> fetchStage = pipeline.addStage(new PipelineStage<>(
+                "fetch", fetchThreads, queueCapacity,
+                cql -> crawlPartition(cql, limit, cleanStage, report, run)));
+
+        fetchStage.feeds(cleanStage);
+        cleanStage.feeds(splitStage);
+        cleanStage.feeds(attachmentStage);
+        attachmentStage.feeds(extractStage);
+        extractStage.feeds(splitStage);
+        splitStage.feeds(embedStage);
+        embedStage.feeds(persistStage);
+
+        job.setPipeline(pipeline);
+        pipeline.start(fetchStage);
+        try {
+            for (String partition : confluenceService.contentPartitions(type, partitionYears)) {
+                fetchStage.submit(partition);
+            }
+        } finally {
+            fetchStage.producerDone();
+        }
+        pipeline.awaitCompletion();
 
-        while (more) {
-            List<ConfluencePage> pages;
-            if ("page".equals(type)) {
-                pages = confluenceService.fetchPages(start, limit);
-            } else {
-                pages = confluenceService.fetchBlogPosts(start, limit);
+        if (duplicates != null && !job.isCancelRequested()) {
+            // Kept segments whose document was dropped without failing through the stages above
+            duplicates.failUnstored("Near-duplicate of a segment that was not stored");
+            // Sources found after the last document was persisted
+            mergeDuplicateSources(duplicates);
+        }
+
+        for (PipelineStage.StageStats stats : pipeline.getStats()) {
+            System.out.println("Ingestion stage " + stats.getName() + ": " + stats.getProcessed() + " items, "
+                    + String.format("%.1f items/s, utilization %.0f%%", stats.getThroughputPerSecond(),
+                            stats.getUtilization() * 100));
+        }
+        return totalSegments.get();
+    }
+
+    /**
+     * Fetch stage: follows the search cursor of one crawl partition and hands raw pages to the
+     * clean stage. Only the current cursor is kept, so memory stays flat whatever the space size.
+     * The crawl starts at the partition's checkpoint, which only advances once every page of the
+     * batches before it has been fully ingested.
+     */
+    private void crawlPartition(String cql, int limit, PipelineStage<PipelinePage> cleanStage,
+            IngestionReport report, IngestionCheckpointService.Run run) throws InterruptedException {
+        IngestionCheckpointService.Partition partition = run.partition(cql);
+        if (partition.isDone()) {
+            System.out.println("Skipping partition completed before resume: " + cql);
+            return;
+        }
+        String next = partition.getCursor();
+        if (next != null) {
+            System.out.println("Resuming partition from checkpoint: " + cql);
+        }
+        int batches = 0;
+
+        do {
+            AtomicInteger batchSize = new AtomicInteger();
+            IngestionCheckpointService.Batch batch = partition.beginBatch();
+            String link;
+            try {
+                link = confluenceService.streamRawContentBatch(cql, next, limit, page -> {
+                    cleanStage.submit(new PipelinePage(page, batch.getWork().child(null)));
+                    report.recordPageFetched();
+                    batchSize.incrementAndGet();
+                });
+            } catch (RuntimeException e) {
+                batch.getWork().fail(e.getMessage());
+                throw e;
             }
+            partition.endBatch(batch, link);
+            batches++;
+            System.out.println("Queued batch " + batches + " of " + batchSize.get() + " pages for: " + cql);
 
-            if (pages.isEmpty()) {
-                more = false;
-            } else {
-                int newPagesCount = 0;
-                List<ConfluencePage> uniquePages = new ArrayList<>();
-
-                for (ConfluencePage page : pages) {
-                    if (!visitedIds.contains(page.getId())) {
-                        visitedIds.add(page.getId());
-                        uniquePages.add(page);
-                        newPagesCount++;
-                    } else {
-                        System.out.println(
-                                "DEBUG: Skipping duplicate page ID: " + page.getId() + ", Title: " + page.getTitle());
-                    }
-                }
+            if (link != null && link.equals(next)) {
+                System.out.println("WARNING: Confluence returned the same cursor twice. Stopping partition: " + cql);
+                break;
+            }
+            next = link;
+        } while (next != null);
+    }
 
-                System.out.println("DEBUG: Batch had " + pages.size() + " pages, " + newPagesCount + " were new, "
-                        + (pages.size() - newPagesCount) + " were duplicates");
-
-                if (newPagesCount == 0) {
-                    System.out.println(
-                            "DEBUG: All pages in this batch have already been visited. Stopping to prevent infinite loop.");
-                    more = false;
-                } else {
-                    System.out.println(
-                            "Ingesting batch of " + uniquePages.size() + " " + type + "s (start=" + start + ")...");
-                    totalSegments += processPages(uniquePages);
-                    start += limit;
-
-                    // Safety break for testing/debugging if needed, or if the user was right about
-                    // 100 pages
-                    if (start > 10000) { // Hard limit to prevent runaway 880k pages if API is weird
-                        System.out.println("WARNING: Reached safety limit of 10000 items. Stopping.");
-                        more = false;
-                    }
-                }
+    /**
+     * Clean stage: strips the storage HTML and hands the page to the split and attachment stages.
+     */
+    private void cleanPage(PipelinePage item, PipelineStage<PipelineDocument> splitStage,
+            PipelineStage<PipelinePage> attachmentStage, IngestionCheckpointService.Run run)
+            throws InterruptedException {
+        ConfluencePage page = item.getPage();
+        String itemKey = "page:" + page.getId();
+        if (run.isCompleted(itemKey)) {
+            // Content was stored before the resume; only its attachments may still be missing
+            page.setContent(null);
+        } else {
+            page.setContent(confluenceService.cleanContent(page.getContent()));
+        }
+
+        if (page.getContent() != null && !page.getContent().isEmpty()) {
+            Metadata metadata = Metadata.from("title", page.getTitle())
+                    .put("url", page.getUrl())
+                    .put("type", "page")
+                    .put("page_id", page.getId())
+                    .put("source_id", itemKey);
+
+            // Add tags to metadata
+            if (page.getTags() != null && !page.getTags().isEmpty()) {
+                String tagsString = String.join(", ", page.getTags());
+                metadata.put("tags", tagsString);
+                System.out.println(
+                        "DEBUG: Adding tags to metadata for page '" + page.getTitle() + "': " + tagsString);
+            }
+
+            // Enhance content with tags for better search precision
+            // Tags are prepended to content and repeated to give them higher weight in
+            // embeddings
+            String enhancedContent = page.getContent();
+            if (page.getTags() != null && !page.getTags().isEmpty()) {
+                // Create a tag prefix that will be included in embeddings
+                // Repeat tags 3 times to increase their weight in the vector space
+                String tagPrefix = "Tags: " + String.join(", ", page.getTags()) + ". ";
+                tagPrefix = tagPrefix + tagPrefix + tagPrefix; // Triple the weight
+                enhancedContent = tagPrefix + "\n\n" + page.getContent();
+                System.out.println("DEBUG: Enhanced content with tags for better search precision");
             }
+
+            PipelineDocument document = new PipelineDocument(page, "page '" + page.getTitle() + "'",
+                    Document.from(enhancedContent, metadata), run.item(item.getWork(), itemKey, page.getTitle()));
+            document.setPageSummary(pageSummary(page));
+            splitStage.submit(document);
         }
-        return totalSegments;
+
+        // The attachment stage takes over this stage's hold on the page unit
+        attachmentStage.submit(item);
     }
 
-    private int processPages(List<ConfluencePage> pages) {
-        int count = 0;
-        DocumentSplitter splitter = DocumentSplitters.recursive(1000, 200);
+    /**
+     * Attachments stage: lists the attachments of a page and hands each one to the extract stage.
+     */
+    private void listAttachments(PipelinePage item, PipelineStage<PipelineAttachment> extractStage,
+            IngestionReport report, IngestionCheckpointService.Run run) throws InterruptedException {
+        ConfluencePage page = item.getPage();
+        List<ConfluencePage> attachments = confluenceService.fetchAttachments(page.getId());
+        for (ConfluencePage attachment : attachments) {
+            String mediaType = attachment.getMediaType();
+
+            // Skip video and audio files
+            if (mediaType != null && (mediaType.startsWith("video/") || mediaType.startsWith("audio/"))) {
+                System.out.println("Skipping attachment: " + attachment.getTitle() + " (Type: " + mediaType + ")");
+                continue;
+            }
+            if (attachment.getFileSize() != null && attachment.getFileSize() > attachmentMaxBytes) {
+                System.out.println("Skipping attachment: " + attachment.getTitle() + " (" + attachment.getFileSize()
+                        + " bytes exceeds the limit of " + attachmentMaxBytes + " bytes)");
+                continue;
+            }
+            String itemKey = "attachment:" + attachment.getId();
+            if (run.isCompleted(itemKey)) {
+                continue;
+            }
+            extractStage.submit(new PipelineAttachment(page, attachment,
+                    run.item(item.getWork(), itemKey, attachment.getTitle())));
+        }
+        report.recordPageProcessed();
+        item.getWork().release();
+    }
+
+    /**
+     * Extract stage: downloads one attachment to disk and turns it into documents with OCR or
+     * Tika. Tika output is handed to the split stage chunk by chunk while the file is parsed.
+     * Results are cached by content, so known attachments are neither OCRed nor parsed again.
+     */
+    private void extractAttachment(PipelineAttachment item, PipelineStage<PipelineDocument> splitStage,
+            IngestionReport report, IngestionCheckpointService.Run run) throws InterruptedException {
+        ConfluencePage page = item.getPage();
+        ConfluencePage attachment = item.getAttachment();
+        WorkUnit work = item.getWork();
+        String mediaType = attachment.getMediaType();
+        String label = "attachment '" + attachment.getTitle() + "'";
+
+        boolean image = mediaType != null && mediaType.startsWith("image/");
+        String extractor = image
+                ? ExtractionCacheService.OCR_PREFIX + imageOCRService.getModelName() + ":"
+                        + imagePreprocessor.getSettingsId()
+                : attachmentTextExtractor.getExtractorId();
+        String title = image ? attachment.getTitle() + " (Image)" : attachment.getTitle();
+        String sourceId = "attachment:" + attachment.getId();
+        AttachmentTextExtractor.ChunkHandler emit = text -> {
+            Metadata metadata = attachmentMetadata(page, title, image ? "image" : "attachment", sourceId);
+            work.retain();
+            splitStage.submit(new PipelineDocument(page, label, Document.from(text, metadata), work));
+        };
 
-        for (ConfluencePage page : pages) {
-            // 1. Process Page Content
-            if (page.getContent() != null && !page.getContent().isEmpty()) {
-                Metadata metadata = Metadata.from("title", page.getTitle())
-                        .add("url", page.getUrl())
-                        .add("type", "page");
-
-                // Add tags to metadata
-                if (page.getTags() != null && !page.getTags().isEmpty()) {
-                    String tagsString = String.join(", ", page.getTags());
-                    metadata.add("tags", tagsString);
-                    System.out.println(
-                            "DEBUG: Adding tags to metadata for page '" + page.getTitle() + "': " + tagsString);
+        try {
+            if (extractionCacheService.replayAttachment(attachment, extractor, emit, report)) {
+                work.release();
+                return;
+            }
+
+            confluenceService.downloadAttachment(attachment.getUrl(), attachmentMaxBytes, file -> {
+                String cacheKey = extractionCacheService.isEnabled()
+                        ? extractionCacheService.cacheKey(file, extractor)
+                        : null;
+                if (cacheKey != null && extractionCacheService.replay(cacheKey, emit, report)) {
+                    return;
                 }
+                report.recordExtractionCacheMiss();
+
+                ExtractionCacheService.Writer writer = extractionCacheService.begin(cacheKey, extractor, attachment);
+                boolean completed = false;
+                try {
+                    long startNanos = System.nanoTime();
+                    // Process images with OCR
+                    if (image) {
+                        ImagePreprocessor.PreparedImage prepared = imagePreprocessor.prepare(file, mediaType);
+                        if (prepared.isSkipped()) {
+                            report.recordImageSkipped(prepared.getOriginalBytes());
+                            System.out.println("DEBUG: Skipping OCR for image " + attachment.getTitle() + ": "
+                                    + prepared.getSkipReason());
+                            return;
+                        }
+                        report.recordImagePrepared(prepared.getOriginalBytes(), prepared.getPayloadBytes());
+
+                        System.out.println("Processing image with OCR: " + attachment.getTitle() + " ("
+                                + prepared.getWidth() + "x" + prepared.getHeight() + ", " + prepared.getPayloadBytes()
+                                + " bytes" + (prepared.isDownscaled() ? ", downscaled" : "") + ")");
+                        String extractedText;
+                        ocrPermits.acquire();
+                        try {
+                            extractedText = priorityScheduler.call(PriorityScheduler.Resource.LLM,
+                                    () -> imageOCRService.extractTextFromImage(prepared));
+                        } finally {
+                            ocrPermits.release();
+                        }
 
-                // Enhance content with tags for better search precision
-                // Tags are prepended to content and repeated to give them higher weight in
-                // embeddings
-                String enhancedContent = page.getContent();
-                if (page.getTags() != null && !page.getTags().isEmpty()) {
-                    // Create a tag prefix that will be included in embeddings
-                    // Repeat tags 3 times to increase their weight in the vector space
-                    String tagPrefix = "Tags: " + String.join(", ", page.getTags()) + ". ";
-                    tagPrefix = tagPrefix + tagPrefix + tagPrefix; // Triple the weight
-                    enhancedContent = tagPrefix + "\n\n" + page.getContent();
-                    System.out.println("DEBUG: Enhanced content with tags for better search precision");
+                        // Empty text is not cached: the OCR service also returns it on errors
+                        if (extractedText == null || extractedText.trim().isEmpty()) {
+                            System.out.println("DEBUG: No text extracted from image: " + attachment.getTitle());
+                            return;
+                        }
+                        writer.add(extractedText);
+                        writer.complete((System.nanoTime() - startNanos) / 1_000_000);
+                        completed = true;
+                        emit.handle(extractedText);
+                    } else {
+                        // Process other attachments (PDFs, docs, etc.); time spent waiting on the
+                        // split stage is not counted as extraction time
+                        AtomicLong handlerNanos = new AtomicLong();
+                        int chunks = attachmentTextExtractor.extract(file, text -> {
+                            writer.add(text);
+                            long handlerStart = System.nanoTime();
+                            emit.handle(text);
+                            handlerNanos.addAndGet(System.nanoTime() - handlerStart);
+                        }, report);
+                        writer.complete((System.nanoTime() - startNanos - handlerNanos.get()) / 1_000_000);
+                        completed = true;
+                        if (chunks == 0) {
+                            System.out.println("DEBUG: No text extracted from attachment: " + attachment.getTitle());
+                        }
+                    }
+                } finally {
+                    if (!completed) {
+                        writer.abandon();
+                    }
                 }
+            });
+            work.release();
+        } catch (InterruptedException | CancellationException e) {
+            // Left unreleased: the run is being cancelled and the attachment is not complete
+            throw e;
+        } catch (AttachmentTextExtractor.ExtractionTimeoutException e) {
+            System.err.println("Timed out parsing attachment: " + attachment.getTitle() + " - " + e.getMessage());
+            report.recordParseTimeout();
+            int abandoned = attachmentTextExtractor.getAbandonedParsers();
+            if (abandoned > 0) {
+                System.err.println(abandoned + " timed out attachment parsers are still running in the background;"
+                        + " set gravity.ingestion.tika.fork.tika-bin to parse in forked JVMs that can be killed");
+            }
+            work.fail(e.getMessage());
+        } catch (AttachmentTextExtractor.ParserUnavailableException e) {
+            // Failed rather than completed, so the next run parses it once the stuck parsers are gone
+            System.err.println(e.getMessage() + " (" + attachment.getTitle() + ")");
+            work.fail(e.getMessage());
+        } catch (Exception e) {
+            System.err.println(
+                    "Failed to process attachment: " + attachment.getTitle() + " - " + e.getMessage());
+            work.fail(e.getMessage());
+        }
+    }
 
-                Document doc = Document.from(enhancedContent, metadata);
-                List<TextSegment> segments = splitter.split(doc);
-                List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
-                embeddingStore.addAll(embeddings, segments);
-                count += segments.size();
+    /**
+     * Text of the page-level embedding: title, tags and the lead section of the page, cut at a
+     * word boundary.
+     */
+    private TextSegment pageSummary(ConfluencePage page) {
+        StringBuilder summary = new StringBuilder(page.getTitle() == null ? "" : page.getTitle());
+        if (page.getTags() != null && !page.getTags().isEmpty()) {
+            summary.append("\nTags: ").append(String.join(", ", page.getTags()));
+        }
+        String content = page.getContent();
+        if (content.length() > pageSummaryLeadChars) {
+            int end = content.lastIndexOf(' ', pageSummaryLeadChars);
+            content = content.substring(0, end > 0 ? end : pageSummaryLeadChars);
+        }
+        summary.append("\n\n").append(content);
+        return TextSegment.from(summary.toString());
+    }
 
-                System.out.println(
-                        "DEBUG: Processed page '" + page.getTitle() + "' with " + segments.size() + " segments");
+    private Metadata attachmentMetadata(ConfluencePage page, String title, String type, String sourceId) {
+        Metadata metadata = Metadata.from("title", title)
+                .put("url", page.getUrl())
+                .put("type", type)
+                .put("page_id", page.getId())
+                .put("source_id", sourceId);
+        // Inherit tags from parent page
+        if (page.getTags() != null && !page.getTags().isEmpty()) {
+            metadata.put("tags", String.join(", ", page.getTags()));
+        }
+        return metadata;
+    }
+
+    /**
+     * Split stage: cuts a document into overlapping segments and drops the ones that
+     * near-duplicate a segment already kept in this run, before they are embedded.
+     */
+    private void splitDocument(PipelineDocument document, DocumentSplitter splitter,
+            NearDuplicateDetector duplicates, IngestionReport report,
+            PipelineStage<PipelineDocument> embedStage) throws InterruptedException {
+        List<TextSegment> split = splitter.split(document.getDocument());
+        String url = document.getDocument().metadata().getString("url");
+        String tags = document.getDocument().metadata().getString("tags");
+        List<String> ids = new ArrayList<>(split.size());
+        List<TextSegment> segments = new ArrayList<>(split.size());
+        for (TextSegment segment : split) {
+            String id = UUID.randomUUID().toString();
+            if (duplicates != null
+                    && duplicates.duplicateOf(id, segment.text(), url, tags, document.getWork()) != null) {
+                report.recordNearDuplicate(segment.text().length());
+                continue;
             }
+            ids.add(id);
+            segments.add(segment);
+        }
+        report.recordSegmentsSplit(split.size());
+        document.setSegmentIds(ids);
+        document.setSegments(segments);
+        if (!document.getSegments().isEmpty()) {
+            embedStage.submit(document);
+        } else {
+            document.getWork().release();
+        }
+    }
 
-            // 2. Process Attachments
-            List<ConfluencePage> attachments = confluenceService.fetchAttachments(page.getId());
-            for (ConfluencePage attachment : attachments) {
-                String mediaType = attachment.getMediaType();
+    /**
+     * Embed stage: embeds the segments, going through the embedding cache.
+     */
+    private void embedDocument(PipelineDocument document, IngestionReport report,
+            PipelineStage<PipelineDocument> persistStage) throws InterruptedException {
+        if (document.getPageSummary() == null) {
+            document.setEmbeddings(embeddingCacheService.embedAll(document.getSegments(), report));
+        } else {
+            // The page summary rides along with the segments in the same embedding call
+            List<TextSegment> texts = new ArrayList<>(document.getSegments());
+            texts.add(document.getPageSummary());
+            List<Embedding> embeddings = embeddingCacheService.embedAll(texts, report);
+            document.setEmbeddings(embeddings.subList(0, document.getSegments().size()));
+            document.setPageEmbedding(embeddings.get(document.getSegments().size()));
+        }
+        persistStage.submit(document);
+    }
 
-                // Skip video and audio files
-                if (mediaType != null && (mediaType.startsWith("video/") || mediaType.startsWith("audio/"))) {
-                    System.out.println("Skipping attachment: " + attachment.getTitle() + " (Type: " + mediaType + ")");
-                    continue;
+    /**
+     * Persist stage: stores the document text once and its segments as offsets into it with
+     * their embeddings, and the page-level embedding of pages. Sources of near-duplicates
+     * collapsed into the segments are written with them, and the duplicates' work is released
+     * once they are; sources found for segments that are already stored are merged into their
+     * rows here too, so they are saved as the run goes.
+     */
+    private int persistDocument(PipelineDocument document, NearDuplicateDetector duplicates,
+            IngestionReport report) {
+        NearDuplicateDetector.Collected collected = duplicates == null
+                ? null
+                : duplicates.takePending(document.getSegmentIds());
+        try {
+            priorityScheduler.run(PriorityScheduler.Resource.DATABASE, () -> {
+                try {
+                    segmentStore.add(document.getDocument(), document.getSegmentIds(), document.getSegments(),
+                            document.getEmbeddings(), collected == null ? Map.of() : collected.getSources());
+                } catch (SQLException e) {
+                    throw new DatabaseServiceException("Could not store the segments of " + document.getLabel(), e);
                 }
+            });
+        } catch (RuntimeException e) {
+            if (collected != null) {
+                collected.fail("Near-duplicate of a segment of " + document.getLabel() + " that could not be stored");
+            }
+            throw e;
+        }
+        if (duplicates != null) {
+            duplicates.markStored(document.getSegmentIds());
+            collected.release();
+            mergeDuplicateSources(duplicates);
+        }
+        document.setDocument(null); // Release the full text once it is stored
+        if (document.getPageEmbedding() != null) {
+            ConfluencePage page = document.getPage();
+            priorityScheduler.run(PriorityScheduler.Resource.DATABASE, () -> pageEmbeddingRepository.save(
+                    new PageEmbedding(page.getId(), page.getTitle(), document.getPageEmbedding().vector())));
+        }
+        report.recordSegmentsStored(document.getSegments().size());
+        document.getWork().release();
+        System.out.println("DEBUG: Processed " + document.getLabel() + " with " + document.getSegments().size()
+                + " segments");
+        return document.getSegments().size();
+    }
 
-                byte[] content = confluenceService.downloadAttachment(attachment.getUrl());
-                if (content != null) {
-                    try {
-                        // Process images with OCR
-                        if (mediaType != null && mediaType.startsWith("image/")) {
-                            System.out.println("Processing image with OCR: " + attachment.getTitle());
-                            String extractedText = imageOCRService.extractTextFromImage(content, mediaType);
-
-                            if (extractedText != null && !extractedText.trim().isEmpty()) {
-                                Metadata metadata = Metadata.from("title", attachment.getTitle() + " (Image)")
-                                        .add("url", page.getUrl())
-                                        .add("type", "image");
-
-                                // Inherit tags from parent page
-                                if (page.getTags() != null && !page.getTags().isEmpty()) {
-                                    String tagsString = String.join(", ", page.getTags());
-                                    metadata.add("tags", tagsString);
-                                }
-
-                                Document doc = Document.from(extractedText, metadata);
-                                List<TextSegment> segments = splitter.split(doc);
-                                if (!segments.isEmpty()) {
-                                    List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
-                                    embeddingStore.addAll(embeddings, segments);
-                                    count += segments.size();
-                                    System.out.println("DEBUG: Extracted and indexed text from image '" +
-                                            attachment.getTitle() + "': " + segments.size() + " segments");
-                                }
-                            } else {
-                                System.out.println("DEBUG: No text extracted from image: " + attachment.getTitle());
-                            }
-                        } else {
-                            // Process other attachments (PDFs, docs, etc.)
-                            Document doc = parser.parse(new ByteArrayInputStream(content));
-                            doc.metadata().add("title", attachment.getTitle());
-                            doc.metadata().add("url", page.getUrl());
-                            doc.metadata().add("type", "attachment");
-
-                            // Inherit tags from parent page for attachments
-                            if (page.getTags() != null && !page.getTags().isEmpty()) {
-                                String tagsString = String.join(", ", page.getTags());
-                                doc.metadata().add("tags", tagsString);
-                            }
-
-                            List<TextSegment> segments = splitter.split(doc);
-                            if (!segments.isEmpty()) {
-                                List<Embedding> embeddings = embeddingModel.embedAll(segments).content();
-                                embeddingStore.addAll(embeddings, segments);
-                                count += segments.size();
-                            }
-                        }
-                    } catch (Exception e) {
-                        System.err.println(
-                                "Failed to process attachment: " + attachment.getTitle() + " - " + e.getMessage());
-                    }
+    /**
+     * Merge the sources found for already stored segments into their rows. The duplicates'
+     * work is released once they are written, or failed so their pages are ingested again.
+     */
+    private void mergeDuplicateSources(NearDuplicateDetector duplicates) {
+        NearDuplicateDetector.Collected collected = duplicates.takeStored();
+        if (collected.isEmpty()) {
+            return;
+        }
+        try {
+            priorityScheduler.run(PriorityScheduler.Resource.DATABASE, () -> {
+                try {
+                    segmentStore.mergeSources(collected.getSources());
+                } catch (SQLException e) {
+                    throw new DatabaseServiceException("Could not record the sources of collapsed segments", e);
                 }
-            }
+            });
+        } catch (DatabaseServiceException e) {
+            System.err.println("Error recording sources of near-duplicate segments: " + e.getMessage());
+            collected.fail(e.getMessage());
+            return;
         }
-        return count;
+        collected.release();
+    }
+
+    private void recordIndexSize(IngestionReport report) {
+        try {
+            VectorSearchService.StoreStats stats = vectorSearchService.getStoreStats();
+            report.recordIndexSize(stats.getRows(), stats.getTotalBytes() + stats.getDocumentBytes());
+        } catch (Exception e) {
+            System.err.println("Error reading the vector store size: " + e.getMessage());
+        }
+    }
+
+    private static void failDocument(PipelineDocument document, Exception e) {
+        document.getWork().fail(document.getLabel() + ": " + e.getMessage());
+    }
+
+    /**
+     * Items of the latest run that kept failing and are skipped on resume.
+     */
+    public List<IngestionItem> getDeadLetters() {
+        return checkpointService.getDeadLetters();
+    }
+
+    /**
+     * Per-stage statistics of the running or most recent ingestion pipeline.
+     */
+    public List<PipelineStage.StageStats> getPipelineStats() {
+        IngestionJob job = latestJob;
+        return job == null ? new ArrayList<>() : job.getStages();
     }
 
     public EmbeddingStore<TextSegment> getEmbeddingStore() {
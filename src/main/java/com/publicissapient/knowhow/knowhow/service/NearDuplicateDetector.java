@@ -0,0 +1,346 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import com.publicissapient.knowhow.knowhow.vector.SegmentStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Near-duplicate detection for the segments of one ingestion run, with MinHash signatures and
+ * locality-sensitive hashing. Each segment is reduced to the set of its word shingles and
+ * signed with numHashes MinHash values; the signature is cut into bands, and segments sharing
+ * any band are candidates. A candidate is a duplicate when the share of equal signature values,
+ * an estimate of the Jaccard similarity of the shingle sets, reaches the threshold. The first
+ * segment seen is kept, and the URL and tags of each duplicate from another page are collected
+ * for it as its sources.
+ * <p>
+ * Sources collected before the kept segment is stored are written with it
+ * ({@link #takePending}); once it is stored ({@link #markStored}), later sources are handed
+ * out by {@link #takeStored} to be merged into the stored row. The duplicate's work unit is
+ * held until its sources are written, so its page is not checkpointed as done before then; if
+ * the kept segment cannot be stored ({@link #failPending}), the held units fail and the
+ * duplicate pages are ingested again by the next run.
+ * <p>
+ * Thread-safe; the split and persist workers share one detector.
+ */
+public class NearDuplicateDetector {
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    private final int numHashes;
+    private final int bands;
+    private final int rows;
+    private final double threshold;
+    private final int shingleWords;
+    private final long[] multipliers;
+    private final long[] increments;
+
+    private final List<String> keptIds = new ArrayList<>();
+    private final List<int[]> keptSignatures = new ArrayList<>();
+    private final List<String> keptUrls = new ArrayList<>();
+    private final Map<String, Integer> keptById = new HashMap<>();
+    private final BitSet stored = new BitSet();
+    private final BitSet failed = new BitSet();
+    private final Map<Long, List<Integer>> buckets = new HashMap<>();
+    // Sources of kept segments not stored yet, and of stored ones not yet merged into their row
+    private final Map<Integer, SegmentStore.Sources> pending = new HashMap<>();
+    private final Map<Integer, SegmentStore.Sources> storedPending = new LinkedHashMap<>();
+    // Child units of the duplicates' work, held until their sources are written
+    private final Map<Integer, List<WorkUnit>> pendingWork = new HashMap<>();
+    private final Map<Integer, List<WorkUnit>> storedPendingWork = new HashMap<>();
+
+    /**
+     * Sources taken from the detector to be written, with the duplicates' work held until they
+     * are. Release it once the sources are written, or fail it.
+     */
+    public static class Collected {
+        private final Map<String, SegmentStore.Sources> sources;
+        private final List<WorkUnit> work;
+
+        private Collected(Map<String, SegmentStore.Sources> sources, List<WorkUnit> work) {
+            this.sources = sources;
+            this.work = work;
+        }
+
+        public Map<String, SegmentStore.Sources> getSources() {
+            return sources;
+        }
+
+        public boolean isEmpty() {
+            return sources.isEmpty() && work.isEmpty();
+        }
+
+        public void release() {
+            work.forEach(WorkUnit::release);
+        }
+
+        public void fail(String message) {
+            work.forEach(unit -> unit.fail(message));
+        }
+    }
+
+    public NearDuplicateDetector(int numHashes, int bands, double threshold, int shingleWords) {
+        if (bands <= 0 || numHashes % bands != 0) {
+            throw new IllegalArgumentException("The number of hashes (" + numHashes
+                    + ") must be a multiple of the number of bands (" + bands + ")");
+        }
+        this.numHashes = numHashes;
+        this.bands = bands;
+        this.rows = numHashes / bands;
+        this.threshold = threshold;
+        this.shingleWords = Math.max(1, shingleWords);
+        // Hash family h(x) = a * x + b over 64-bit words, a odd; the high half is used
+        multipliers = new long[numHashes];
+        increments = new long[numHashes];
+        long state = SEED;
+        for (int i = 0; i < numHashes; i++) {
+            state = mix(state + SEED);
+            multipliers[i] = state | 1;
+            state = mix(state + SEED);
+            increments[i] = state;
+        }
+    }
+
+    /**
+     * Check a segment against the segments kept so far. A duplicate is not registered; when it
+     * comes from another URL, that URL and the page's tags (comma separated) are added to the
+     * sources of the kept segment, and a child of the given work unit, if any, is held until
+     * they are written. Kept segments that could not be stored are not matched.
+     *
+     * @return the id of the kept segment this one duplicates, or null if the segment is new
+     * and is now kept under the given id
+     */
+    public String duplicateOf(String id, String text, String url, String tags, WorkUnit work) {
+        int[] signature = signature(text);
+        if (signature == null) {
+            return null;
+        }
+        long[] bandKeys = new long[bands];
+        for (int band = 0; band < bands; band++) {
+            long key = band;
+            for (int i = band * rows; i < (band + 1) * rows; i++) {
+                key = key * 31 + signature[i];
+            }
+            bandKeys[band] = mix(key);
+        }
+
+        synchronized (this) {
+            for (long key : bandKeys) {
+                List<Integer> bucket = buckets.get(key);
+                if (bucket == null) {
+                    continue;
+                }
+                for (int kept : bucket) {
+                    if (!failed.get(kept) && similarity(signature, keptSignatures.get(kept)) >= threshold) {
+                        if (url != null && !url.equals(keptUrls.get(kept))) {
+                            boolean isStored = stored.get(kept);
+                            (isStored ? storedPending : pending)
+                                    .computeIfAbsent(kept, k -> new SegmentStore.Sources()).add(url, tags);
+                            if (work != null) {
+                                (isStored ? storedPendingWork : pendingWork)
+                                        .computeIfAbsent(kept, k -> new ArrayList<>()).add(work.child(null));
+                            }
+                        }
+                        return keptIds.get(kept);
+                    }
+                }
+            }
+
+            int kept = keptIds.size();
+            keptById.put(id, kept);
+            keptIds.add(id);
+            keptSignatures.add(signature);
+            keptUrls.add(url);
+            for (long key : bandKeys) {
+                buckets.computeIfAbsent(key, k -> new ArrayList<>(1)).add(kept);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Remove and return the sources collected so far for the given segments, to be written
+     * with them.
+     */
+    public synchronized Collected takePending(Collection<String> ids) {
+        Map<String, SegmentStore.Sources> sources = new HashMap<>();
+        List<WorkUnit> work = new ArrayList<>();
+        for (String id : ids) {
+            Integer kept = keptById.get(id);
+            if (kept == null) {
+                continue;
+            }
+            SegmentStore.Sources collected = pending.remove(kept);
+            if (collected != null) {
+                sources.put(id, collected);
+            }
+            List<WorkUnit> held = pendingWork.remove(kept);
+            if (held != null) {
+                work.addAll(held);
+            }
+        }
+        return new Collected(sources, work);
+    }
+
+    /**
+     * Record that the given segments are stored. Sources collected since
+     * {@link #takePending} and from now on are returned by {@link #takeStored}.
+     */
+    public synchronized void markStored(Collection<String> ids) {
+        for (String id : ids) {
+            Integer kept = keptById.get(id);
+            if (kept != null) {
+                stored.set(kept);
+                SegmentStore.Sources sources = pending.remove(kept);
+                if (sources != null) {
+                    storedPending.put(kept, sources);
+                }
+                List<WorkUnit> held = pendingWork.remove(kept);
+                if (held != null) {
+                    storedPendingWork.computeIfAbsent(kept, k -> new ArrayList<>()).addAll(held);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove and return the sources of stored segments that still have to be merged into
+     * their rows.
+     */
+    public synchronized Collected takeStored() {
+        Map<String, SegmentStore.Sources> sources = new LinkedHashMap<>();
+        for (Map.Entry<Integer, SegmentStore.Sources> entry : storedPending.entrySet()) {
+            sources.put(keptIds.get(entry.getKey()), entry.getValue());
+        }
+        List<WorkUnit> work = new ArrayList<>();
+        storedPendingWork.values().forEach(work::addAll);
+        storedPending.clear();
+        storedPendingWork.clear();
+        return new Collected(sources, work);
+    }
+
+    /**
+     * Record that the given segments could not be stored: the work held for their duplicates
+     * fails, and later segments like them are kept rather than collapsed into them. Segments
+     * already stored are left as they are.
+     */
+    public void failPending(Collection<String> ids, String message) {
+        List<WorkUnit> held = new ArrayList<>();
+        synchronized (this) {
+            for (String id : ids) {
+                Integer kept = keptById.get(id);
+                if (kept != null && !stored.get(kept)) {
+                    held.addAll(removePending(kept));
+                }
+            }
+        }
+        // Outside the lock: completing a unit may write its checkpoint
+        held.forEach(unit -> unit.fail(message));
+    }
+
+    /**
+     * Fail the work held for every kept segment that was never stored, e.g. because its
+     * document failed before the persist stage.
+     */
+    public void failUnstored(String message) {
+        List<WorkUnit> held = new ArrayList<>();
+        synchronized (this) {
+            for (Integer kept : new ArrayList<>(pending.keySet())) {
+                held.addAll(removePending(kept));
+            }
+            for (Integer kept : new ArrayList<>(pendingWork.keySet())) {
+                held.addAll(removePending(kept));
+            }
+        }
+        held.forEach(unit -> unit.fail(message));
+    }
+
+    private List<WorkUnit> removePending(int kept) {
+        failed.set(kept);
+        pending.remove(kept);
+        List<WorkUnit> held = pendingWork.remove(kept);
+        return held != null ? held : List.of();
+    }
+
+    /**
+     * MinHash signature of the segment's word shingles, or null if it has no words.
+     */
+    private int[] signature(String text) {
+        List<String> words = words(text);
+        if (words.isEmpty()) {
+            return null;
+        }
+        int[] signature = new int[numHashes];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        int shingles = Math.max(1, words.size() - shingleWords + 1);
+        for (int start = 0; start < shingles; start++) {
+            long shingle = 0;
+            for (int i = start; i < Math.min(words.size(), start + shingleWords); i++) {
+                shingle = shingle * 1_000_003L + words.get(i).hashCode();
+            }
+            shingle = mix(shingle);
+            for (int i = 0; i < numHashes; i++) {
+                int hash = (int) ((multipliers[i] * shingle + increments[i]) >>> 33);
+                if (hash < signature[i]) {
+                    signature[i] = hash;
+                }
+            }
+        }
+        return signature;
+    }
+
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    private static double similarity(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / a.length;
+    }
+
+    // 64-bit finalizer from SplitMix64
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
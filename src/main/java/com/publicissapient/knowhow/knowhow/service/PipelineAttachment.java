@@ -0,0 +1,36 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import lombok.Data;
+
+/**
+ * Unit of work for the extract stage: one attachment together with the page it belongs to,
+ * so attachments of the same page can be downloaded and extracted in parallel.
+ */
+@Data
+public class PipelineAttachment {
+    private ConfluencePage page; // Page the attachment belongs to
+    private ConfluencePage attachment;
+    private WorkUnit work; // Checkpoint unit of the attachment
+
+    public PipelineAttachment(ConfluencePage page, ConfluencePage attachment, WorkUnit work) {
+        this.page = page;
+        this.attachment = attachment;
+        this.work = work;
+    }
+}
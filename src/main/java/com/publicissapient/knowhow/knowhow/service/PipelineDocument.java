@@ -0,0 +1,48 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * Unit of work handed between ingestion pipeline stages: a document built from a page or one
+ * of its attachments, filled in with segments and embeddings as it moves through the stages.
+ */
+@Data
+public class PipelineDocument {
+    private ConfluencePage page; // Page the document belongs to
+    private String label; // Human readable name used in logs
+    private Document document; // Full text, released once it is stored
+    private List<String> segmentIds; // Assigned at split time so duplicates can refer to kept segments
+    private List<TextSegment> segments;
+    private List<Embedding> embeddings;
+    private TextSegment pageSummary; // Title, tags and lead section of a page; null for attachments
+    private Embedding pageEmbedding;
+    private WorkUnit work; // Released once the document is stored, failed if it is dropped
+
+    public PipelineDocument(ConfluencePage page, String label, Document document, WorkUnit work) {
+        this.page = page;
+        this.label = label;
+        this.document = document;
+        this.work = work;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import lombok.Data;
+
+/**
+ * Unit of work for the clean and attachment listing stages: a crawled page together with the
+ * checkpoint unit that completes once its content and all of its attachments are ingested.
+ */
+@Data
+public class PipelinePage {
+    private ConfluencePage page;
+    private WorkUnit work;
+
+    public PipelinePage(ConfluencePage page, WorkUnit work) {
+        this.page = page;
+        this.work = work;
+    }
+}
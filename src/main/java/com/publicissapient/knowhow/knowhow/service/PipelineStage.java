@@ -0,0 +1,215 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * One stage of the ingestion pipeline: a bounded input queue drained by a fixed number of
+ * workers. Producers block when the queue is full, which gives backpressure to upstream stages.
+ * A stage finishes once every upstream producer has finished and its queue is drained.
+ */
+public class PipelineStage<T> {
+
+    @FunctionalInterface
+    public interface Worker<T> {
+        void process(T item) throws Exception;
+    }
+
+    private final String name;
+    private final int parallelism;
+    private final int queueCapacity;
+    private final BlockingQueue<T> queue;
+    private final Worker<T> worker;
+    private final List<PipelineStage<?>> downstream = new ArrayList<>();
+    private BiConsumer<T, Exception> failureHandler;
+
+    private final AtomicInteger openProducers = new AtomicInteger();
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile boolean cancelled;
+
+    public PipelineStage(String name, int parallelism, int queueCapacity, Worker<T> worker) {
+        this.name = name;
+        this.parallelism = Math.max(1, parallelism);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.queue = new ArrayBlockingQueue<>(this.queueCapacity);
+        this.worker = worker;
+    }
+
+    /**
+     * Register this stage as a producer for the given stage. The downstream stage will not
+     * finish before this stage has finished.
+     */
+    public void feeds(PipelineStage<?> next) {
+        downstream.add(next);
+        next.openProducers.incrementAndGet();
+    }
+
+    /**
+     * Called with the item and the error whenever the worker fails on an item.
+     */
+    public PipelineStage<T> onFailure(BiConsumer<T, Exception> handler) {
+        this.failureHandler = handler;
+        return this;
+    }
+
+    /**
+     * Register an external producer (e.g. the pipeline source). It must call
+     * {@link #producerDone()} once it has submitted its last item.
+     */
+    public void addProducer() {
+        openProducers.incrementAndGet();
+    }
+
+    public void producerDone() {
+        openProducers.decrementAndGet();
+    }
+
+    /**
+     * Hand an item to this stage, blocking while the queue is full.
+     *
+     * @throws CancellationException if the stage is cancelled while waiting
+     */
+    public void submit(T item) throws InterruptedException {
+        while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+            if (cancelled) {
+                throw new CancellationException("Ingestion stage " + name + " was cancelled");
+            }
+        }
+    }
+
+    /**
+     * Stop handing out work and drop everything still queued. Items being processed are
+     * allowed to finish.
+     */
+    public void cancel() {
+        cancelled = true;
+        queue.clear();
+    }
+
+    public void start(ExecutorService executor) {
+        startedAt = System.currentTimeMillis();
+        activeWorkers.set(parallelism);
+        for (int i = 0; i < parallelism; i++) {
+            executor.execute(this::runWorker);
+        }
+    }
+
+    public boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+        return finished.await(timeout, unit);
+    }
+
+    private void runWorker() {
+        try {
+            while (!cancelled) {
+                T item = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    if (openProducers.get() <= 0 && queue.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    worker.process(item);
+                    processed.incrementAndGet();
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (CancellationException e) {
+                    break;
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.err.println("Error in ingestion stage " + name + ": " + e.getMessage());
+                    if (failureHandler != null) {
+                        failureHandler.accept(item, e);
+                    }
+                } finally {
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (activeWorkers.decrementAndGet() == 0) {
+                finishedAt = System.currentTimeMillis();
+                for (PipelineStage<?> next : downstream) {
+                    next.producerDone();
+                }
+                finished.countDown();
+            }
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public StageStats getStats() {
+        StageStats stats = new StageStats();
+        stats.setName(name);
+        stats.setParallelism(parallelism);
+        stats.setQueueDepth(queue.size());
+        stats.setQueueCapacity(queueCapacity);
+        stats.setProcessed(processed.get());
+        stats.setFailed(failed.get());
+        stats.setBusyMillis(busyNanos.get() / 1_000_000);
+        stats.setFinished(finished.getCount() == 0);
+
+        long end = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+        long elapsedMillis = startedAt > 0 ? Math.max(1, end - startedAt) : 0;
+        if (elapsedMillis > 0) {
+            stats.setThroughputPerSecond(processed.get() * 1000.0 / elapsedMillis);
+            // Share of the stage's worker time spent processing; the busiest stage is the bottleneck
+            stats.setUtilization(Math.min(1.0, (double) stats.getBusyMillis() / (elapsedMillis * parallelism)));
+        }
+        return stats;
+    }
+
+    @Data
+    public static class StageStats {
+        private String name;
+        private int parallelism;
+        private int queueDepth;
+        private int queueCapacity;
+        private long processed;
+        private long failed;
+        private long busyMillis;
+        private double throughputPerSecond;
+        private double utilization;
+        private boolean finished;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import lombok.Data;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit for a shared resource that lets interactive work jump ahead of waiting
+ * background work. To keep background work from starving under constant interactive load,
+ * interactive grants made while background work is waiting earn the background side credit,
+ * so that background work receives at least minBackgroundShare of the grants while both wait.
+ * <p>
+ * A gate created with gateInteractive=false only limits background work: interactive callers
+ * never wait and hold no permit, they are only counted.
+ */
+public class PriorityGate {
+
+    private final String name;
+    private final int permits;
+    private final boolean gateInteractive;
+    // Background credit earned per interactive grant: share / (1 - share)
+    private final double creditPerInteractiveGrant;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    private int available;
+    private int interactiveWaiting;
+    private int backgroundWaiting;
+    private int interactiveUngated;
+    private double backgroundCredit;
+    private long interactiveGrants;
+    private long backgroundGrants;
+
+    public PriorityGate(String name, int permits, double minBackgroundShare) {
+        this(name, permits, minBackgroundShare, true);
+    }
+
+    public PriorityGate(String name, int permits, double minBackgroundShare, boolean gateInteractive) {
+        this.name = name;
+        this.permits = Math.max(1, permits);
+        this.gateInteractive = gateInteractive;
+        this.available = this.permits;
+        double share = Math.min(0.99, Math.max(0.0, minBackgroundShare));
+        this.creditPerInteractiveGrant = share / (1.0 - share);
+    }
+
+    /**
+     * Wait for a permit at the given priority. The returned permit must be closed.
+     */
+    public Permit acquire(WorkPriority priority) throws InterruptedException {
+        boolean interactive = priority == WorkPriority.INTERACTIVE;
+        lock.lock();
+        try {
+            if (interactive && !gateInteractive) {
+                interactiveGrants++;
+                interactiveUngated++;
+                return this::releaseUngated;
+            }
+            if (interactive) {
+                interactiveWaiting++;
+            } else {
+                backgroundWaiting++;
+            }
+            try {
+                while (!canProceed(interactive)) {
+                    changed.await();
+                }
+            } finally {
+                if (interactive) {
+                    interactiveWaiting--;
+                } else {
+                    backgroundWaiting--;
+                }
+            }
+
+            available--;
+            if (interactive) {
+                interactiveGrants++;
+                if (backgroundWaiting > 0) {
+                    backgroundCredit += creditPerInteractiveGrant;
+                }
+            } else {
+                backgroundGrants++;
+                backgroundCredit = Math.max(0.0, backgroundCredit - 1.0);
+            }
+            // Another waiter may now be eligible (e.g. background after the credit changed)
+            changed.signalAll();
+            return this::release;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean canProceed(boolean interactive) {
+        if (available <= 0) {
+            return false;
+        }
+        boolean backgroundDue = backgroundWaiting > 0 && backgroundCredit >= 1.0;
+        return interactive ? !backgroundDue : interactiveWaiting == 0 || backgroundDue;
+    }
+
+    private void release() {
+        lock.lock();
+        try {
+            available++;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void releaseUngated() {
+        lock.lock();
+        try {
+            interactiveUngated--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public GateStats getStats() {
+        lock.lock();
+        try {
+            GateStats stats = new GateStats();
+            stats.setName(name);
+            stats.setPermits(permits);
+            stats.setInUse(permits - available);
+            stats.setInteractiveUngated(interactiveUngated);
+            stats.setInteractiveWaiting(interactiveWaiting);
+            stats.setBackgroundWaiting(backgroundWaiting);
+            stats.setInteractiveGrants(interactiveGrants);
+            stats.setBackgroundGrants(backgroundGrants);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @FunctionalInterface
+    public interface Permit extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    @Data
+    public static class GateStats {
+        private String name;
+        private int permits;
+        private int inUse;
+        private int interactiveUngated;
+        private int interactiveWaiting;
+        private int backgroundWaiting;
+        private long interactiveGrants;
+        private long backgroundGrants;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Supplier;
+
+/**
+ * Shared scheduler for database and LLM gateway work. Calls run with the priority of the
+ * calling thread (see {@link WorkPriority}): interactive chat and MCP requests go ahead of
+ * queued ingestion work, while ingestion keeps a guaranteed minimum share of the grants.
+ * The embedding model applies the same policy to its batches.
+ * <p>
+ * The LLM gate only limits background calls (attachment OCR). Interactive answer, rewrite and
+ * suggestion calls pass straight through and are only counted in the stats, so a chat request
+ * never waits behind OCR calls holding the permits.
+ */
+@Service
+public class PriorityScheduler {
+
+    public enum Resource {
+        DATABASE,
+        LLM
+    }
+
+    @Value("${gravity.scheduler.database.max-concurrent:8}")
+    private int databaseMaxConcurrent;
+
+    @Value("${gravity.scheduler.llm.max-concurrent:4}")
+    private int llmMaxConcurrent;
+
+    @Value("${gravity.scheduler.background-min-share:0.2}")
+    private double backgroundMinShare;
+
+    private PriorityGate databaseGate;
+    private PriorityGate llmGate;
+
+    @PostConstruct
+    public void init() {
+        databaseGate = new PriorityGate("database", databaseMaxConcurrent, backgroundMinShare);
+        llmGate = new PriorityGate("llm", llmMaxConcurrent, backgroundMinShare, false);
+    }
+
+    /**
+     * Run the call once the resource has a permit for the current thread's priority.
+     *
+     * @throws CancellationException if the thread is interrupted while waiting
+     */
+    public <T> T call(Resource resource, Supplier<T> call) {
+        PriorityGate.Permit permit;
+        try {
+            permit = gate(resource).acquire(WorkPriority.current());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for " + resource);
+        }
+        try {
+            return call.get();
+        } finally {
+            permit.close();
+        }
+    }
+
+    public void run(Resource resource, Runnable call) {
+        call(resource, () -> {
+            call.run();
+            return null;
+        });
+    }
+
+    public List<PriorityGate.GateStats> getStats() {
+        return List.of(databaseGate.getStats(), llmGate.getStats());
+    }
+
+    private PriorityGate gate(Resource resource) {
+        return resource == Resource.DATABASE ? databaseGate : llmGate;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency of each stage of answering a question (embedding, retrieval, reranking, LLM call),
+ * accumulated since startup. Thread-safe, so concurrent questions record into the same stats.
+ */
+public class QueryLatencyStats {
+
+    private final Map<String, Stage> stages = new ConcurrentHashMap<>();
+    private final List<String> order = new ArrayList<>();
+
+    public void record(String stage, long nanos) {
+        stages.computeIfAbsent(stage, name -> {
+            synchronized (order) {
+                order.add(name);
+            }
+            return new Stage();
+        }).record(nanos);
+    }
+
+    /**
+     * Record the time elapsed since startNanos and return the current time, to chain stages.
+     */
+    public long recordSince(String stage, long startNanos) {
+        long now = System.nanoTime();
+        record(stage, now - startNanos);
+        return now;
+    }
+
+    public List<StageLatency> getStats() {
+        List<StageLatency> stats = new ArrayList<>();
+        synchronized (order) {
+            for (String name : order) {
+                Stage stage = stages.get(name);
+                StageLatency latency = new StageLatency();
+                latency.setStage(name);
+                long count = stage.count.get();
+                latency.setCount(count);
+                latency.setLastMillis(stage.lastNanos.get() / 1e6);
+                latency.setMaxMillis(stage.maxNanos.get() / 1e6);
+                if (count > 0) {
+                    latency.setAverageMillis(stage.totalNanos.get() / 1e6 / count);
+                }
+                stats.add(latency);
+            }
+        }
+        return stats;
+    }
+
+    private static class Stage {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLong lastNanos = new AtomicLong();
+
+        private void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            lastNanos.set(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    @Data
+    public static class StageLatency {
+        private String stage;
+        private long count;
+        private double averageMillis;
+        private double lastMillis;
+        private double maxMillis;
+    }
+}
@@ -19,6 +19,9 @@ package com.publicissapient.knowhow.knowhow.service;
 import com.publicissapient.knowhow.knowhow.controller.ChatController;
 import com.publicissapient.knowhow.knowhow.exception.LLMServiceException;
 import com.publicissapient.knowhow.knowhow.model.Feedback;
+import com.publicissapient.knowhow.knowhow.vector.SegmentHit;
+import com.publicissapient.knowhow.knowhow.vector.SegmentStore;
+import com.publicissapient.knowhow.knowhow.vector.VectorSearchService;
 import dev.langchain4j.data.embedding.Embedding;
 import dev.langchain4j.data.segment.TextSegment;
 import dev.langchain4j.model.chat.ChatLanguageModel;
@@ -46,6 +49,32 @@ public class RAGService {
     @Autowired
     private FeedbackService feedbackService;
 
+    @Autowired
+    private PriorityScheduler priorityScheduler;
+
+    @Autowired
+    private VectorSearchService vectorSearchService;
+
+    @Autowired
+    private CrossEncoderReranker reranker;
+
+    // Segments retrieved per question, before tag filtering
+    @Value("${gravity.retrieval.max-results:30}")
+    private int maxResults;
+
+    // Segments sent to the LLM as context
+    @Value("${gravity.retrieval.context-segments:10}")
+    private int contextSegments;
+
+    // With reranking, this many retrieved segments are rescored and the best few kept
+    @Value("${gravity.rerank.candidates:30}")
+    private int rerankCandidates;
+
+    @Value("${gravity.rerank.keep:5}")
+    private int rerankKeep;
+
+    private final QueryLatencyStats latencyStats = new QueryLatencyStats();
+
     @Value("${langchain4j.open-ai.chat-model.api-key}")
     private String openAiApiKey;
 
@@ -69,6 +98,7 @@ public class RAGService {
         System.out.println("DEBUG: Question: " + question);
 
         // 1. Perform vector search
+        long stageStart = System.nanoTime();
         String searchQuery = question;
 
         // Rewrite query if there's conversation history
@@ -76,20 +106,25 @@ public class RAGService {
             System.out.println("DEBUG: Conversation History Size: " + conversationHistory.size());
             searchQuery = rewriteQuery(question, conversationHistory);
             System.out.println("DEBUG: Rewritten query: " + searchQuery);
+            stageStart = latencyStats.recordSince("rewrite", stageStart);
         }
 
         // Embed the question
         Embedding questionEmbedding = embeddingModel.embed(searchQuery).content();
+        stageStart = latencyStats.recordSince("embed", stageStart);
 
-        // Fetch more results initially (50) so we can filter by tags
-        List<EmbeddingMatch<TextSegment>> relevant = embeddingStore.findRelevant(questionEmbedding, 50);
+        // Fetch more results than go into the context so we can filter by tags. Hybrid search
+        // keeps exact-term hits (e.g. acronyms) in this shorter list. Only ids, scores and tags are
+        // fetched here; text is loaded below for the segments that are kept
+        List<SegmentHit> hits = vectorSearchService.findHybrid(searchQuery, questionEmbedding, maxResults);
+        stageStart = latencyStats.recordSince("retrieve", stageStart);
 
         // If tags are specified, filter by tags
         if (tags != null && !tags.isEmpty()) {
             System.out.println("DEBUG: Filtering by tags: " + tags);
-            relevant = relevant.stream()
-                    .filter(match -> {
-                        String segmentTags = match.embedded().metadata("tags");
+            hits = hits.stream()
+                    .filter(hit -> {
+                        String segmentTags = hit.getTags();
                         if (segmentTags == null || segmentTags.isEmpty()) {
                             return false; // Strict filtering: if no tags, exclude (or return true to be lenient)
                         }
@@ -102,16 +137,19 @@ public class RAGService {
                         return false;
                     })
                     .collect(Collectors.toList());
+        }
 
-            // Limit back to 15 after filtering
-            if (relevant.size() > 15) {
-                relevant = relevant.subList(0, 15);
-            }
+        List<EmbeddingMatch<TextSegment>> relevant;
+        if (reranker.isEnabled() && !hits.isEmpty()) {
+            // The cross-encoder picks the few segments that actually answer the question
+            relevant = vectorSearchService.loadSegments(hits.subList(0, Math.min(rerankCandidates, hits.size())));
+            stageStart = latencyStats.recordSince("load", stageStart);
+            relevant = reranker.rerank(searchQuery, relevant, rerankKeep);
+            stageStart = latencyStats.recordSince("rerank", stageStart);
         } else {
-            // If no tags, just take top 15
-            if (relevant.size() > 15) {
-                relevant = relevant.subList(0, 15);
-            }
+            // Take the top segments, after tag filtering if tags were given
+            relevant = vectorSearchService.loadSegments(hits.subList(0, Math.min(contextSegments, hits.size())));
+            stageStart = latencyStats.recordSince("load", stageStart);
         }
 
         System.out.println("DEBUG: Found " + relevant.size() + " relevant segments.");
@@ -131,9 +169,12 @@ public class RAGService {
         String context = relevant.stream()
                 .map(match -> {
                     TextSegment segment = match.embedded();
-                    String segmentTags = segment.metadata("tags");
-                    String contextEntry = "Title: " + segment.metadata("title") + "\\n"
-                            + "Source: " + segment.metadata("url") + "\\n";
+                    String segmentTags = segment.metadata().getString("tags");
+                    // Near-duplicates from other pages may have been collapsed into this segment;
+                    // URLs never contain spaces, so they are listed space separated
+                    String sources = String.join(" ", SegmentStore.sourceUrls(segment.metadata()));
+                    String contextEntry = "Title: " + segment.metadata().getString("title") + "\\n"
+                            + "Source: " + sources + "\\n";
 
                     // Include tags if available
                     if (segmentTags != null && !segmentTags.isEmpty()) {
@@ -237,7 +278,9 @@ public class RAGService {
                     .logResponses(true)
                     .build();
 
-            String response = model.generate(fullPrompt);
+            stageStart = latencyStats.recordSince("prompt", stageStart);
+            String response = priorityScheduler.call(PriorityScheduler.Resource.LLM, () -> model.generate(fullPrompt));
+            latencyStats.recordSince("llm", stageStart);
             System.out.println("\\nDEBUG: LLM Response received:");
             System.out.println("---START RESPONSE---");
             System.out.println(response);
@@ -278,6 +321,13 @@ public class RAGService {
         }
     }
 
+    /**
+     * Latency per stage of answering questions, accumulated since startup.
+     */
+    public List<QueryLatencyStats.StageLatency> getLatencyStats() {
+        return latencyStats.getStats();
+    }
+
     private List<String> generateSuggestedQuestions(String originalQuestion) {
         try {
             String prompt = "The user asked: \\\"" + originalQuestion + "\\\". " +
@@ -293,7 +343,7 @@ public class RAGService {
                     .timeout(java.time.Duration.ofSeconds(30))
                     .build();
 
-            String response = model.generate(prompt);
+            String response = priorityScheduler.call(PriorityScheduler.Resource.LLM, () -> model.generate(prompt));
             return java.util.Arrays.stream(response.split("\\n"))
                     .map(String::trim)
                     .filter(s -> !s.isEmpty())
@@ -327,7 +377,7 @@ public class RAGService {
                     .timeout(java.time.Duration.ofSeconds(30))
                     .build();
 
-            return model.generate(prompt);
+            return priorityScheduler.call(PriorityScheduler.Resource.LLM, () -> model.generate(prompt));
         } catch (Exception e) {
             System.err.println("Error rewriting query: " + e.getMessage());
             return originalQuestion; // Fallback to original
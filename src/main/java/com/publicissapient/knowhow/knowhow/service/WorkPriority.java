@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+/**
+ * Priority of the work running on the current thread. Request threads are interactive by
+ * default; ingestion threads mark themselves as background so shared resources (the embedding
+ * model, the database and the LLM gateway) serve interactive requests first.
+ */
+public enum WorkPriority {
+    INTERACTIVE,
+    BACKGROUND;
+
+    private static final ThreadLocal<WorkPriority> CURRENT = ThreadLocal.withInitial(() -> INTERACTIVE);
+
+    public static WorkPriority current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Set the priority of all further work on the current thread.
+     */
+    public static void set(WorkPriority priority) {
+        CURRENT.set(priority);
+    }
+
+    /**
+     * Wrap a task so it runs with this priority on whichever thread executes it.
+     */
+    public Runnable wrap(Runnable task) {
+        WorkPriority priority = this;
+        return () -> {
+            set(priority);
+            task.run();
+        };
+    }
+}
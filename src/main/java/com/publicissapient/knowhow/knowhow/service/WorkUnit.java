@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks completion of a piece of ingestion work that fans out across pipeline stages (a crawl
+ * batch, a page, an attachment). Every holder of the unit either releases it or fails it; the
+ * unit completes once all holders are done, and then releases its parent in turn. Work dropped
+ * by a cancelled pipeline is never released, so it never counts as complete.
+ */
+public class WorkUnit {
+
+    @FunctionalInterface
+    public interface Completion {
+        /**
+         * Called once when the unit completes.
+         *
+         * @param error first error reported by the unit or its children, or null on success
+         * @return true if the parent should see this unit as failed
+         */
+        boolean complete(String error);
+    }
+
+    private final WorkUnit parent;
+    private final Completion completion;
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final AtomicReference<String> error = new AtomicReference<>();
+
+    private WorkUnit(WorkUnit parent, Completion completion) {
+        this.parent = parent;
+        this.completion = completion;
+    }
+
+    /**
+     * A top-level unit held by the caller.
+     */
+    public static WorkUnit root(Completion completion) {
+        return new WorkUnit(null, completion);
+    }
+
+    /**
+     * A child unit held by the caller; this unit does not complete before the child does.
+     * A null completion passes the child's error on to this unit unchanged.
+     */
+    public WorkUnit child(Completion completion) {
+        pending.incrementAndGet();
+        return new WorkUnit(this, completion);
+    }
+
+    /**
+     * Add a holder, e.g. before handing the unit to another stage while keeping it.
+     */
+    public void retain() {
+        pending.incrementAndGet();
+    }
+
+    public void release() {
+        if (pending.decrementAndGet() == 0) {
+            complete();
+        }
+    }
+
+    /**
+     * Release the unit, recording that the holder's part of the work failed.
+     */
+    public void fail(String message) {
+        error.compareAndSet(null, message != null ? message : "unknown error");
+        release();
+    }
+
+    private void complete() {
+        String failure = error.get();
+        boolean failed = completion != null ? completion.complete(failure) : failure != null;
+        if (parent != null) {
+            if (failed) {
+                parent.fail(failure != null ? failure : "child work failed");
+            } else {
+                parent.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exact top-k search by scanning every vector. Gives perfect recall at a cost linear in the
+ * number of vectors, which the scan splits across cores: ranges of rows are scanned by
+ * fork-join tasks, each keeping its own top k in a primitive heap, and the heaps are merged
+ * as the tasks join. Nothing is allocated per scanned row.
+ */
+public class ExactSearch {
+
+    // Ranges smaller than this are scanned by one task; splitting further costs more than it saves
+    private static final int MIN_ROWS_PER_TASK = 2048;
+
+    private final ForkJoinPool pool;
+
+    public ExactSearch(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public Hits search(PackedVectors vectors, float[] query, int k) {
+        int size = vectors.size();
+        if (size == 0 || k <= 0) {
+            return new Hits(new int[0], new float[0]);
+        }
+        int rowsPerTask = Math.max(MIN_ROWS_PER_TASK, size / (pool.getParallelism() * 4));
+        NodeQueue top = size <= rowsPerTask
+                ? scan(vectors, query, k, 0, size)
+                : pool.invoke(new ScanTask(vectors, query, k, 0, size, rowsPerTask));
+        return Hits.from(top);
+    }
+
+    /**
+     * Exact top-k search restricted to the given node ranges, scanned on the calling thread.
+     * Range i covers the nodes from starts[i] up to ends[i].
+     */
+    public Hits search(PackedVectors vectors, float[] query, int k, int[] starts, int[] ends) {
+        NodeQueue top = NodeQueue.min(k + 1);
+        for (int range = 0; range < starts.length; range++) {
+            for (int node = starts[range]; node < ends[range]; node++) {
+                offer(top, node, vectors.dot(query, node), k);
+            }
+        }
+        return Hits.from(top);
+    }
+
+    /**
+     * Second stage of a two-stage search: exact top-k over the segments of the given pages only,
+     * scanned on the calling thread. Page p holds the nodes from pageStarts[p] up to
+     * pageStarts[p + 1].
+     */
+    public Hits searchPages(PackedVectors vectors, Hits pages, int[] pageStarts, float[] query, int k) {
+        int[] starts = new int[pages.size()];
+        int[] ends = new int[pages.size()];
+        for (int i = 0; i < pages.size(); i++) {
+            starts[i] = pageStarts[pages.node(i)];
+            ends[i] = pageStarts[pages.node(i) + 1];
+        }
+        return search(vectors, query, k, starts, ends);
+    }
+
+    private static NodeQueue scan(PackedVectors vectors, float[] query, int k, int from, int to) {
+        NodeQueue top = NodeQueue.min(k + 1);
+        for (int node = from; node < to; node++) {
+            offer(top, node, vectors.dot(query, node), k);
+        }
+        return top;
+    }
+
+    private static void offer(NodeQueue top, int node, float score, int k) {
+        if (top.size() < k) {
+            top.push(node, score);
+        } else if (score > top.topScore()) {
+            top.pop();
+            top.push(node, score);
+        }
+    }
+
+    private static class ScanTask extends RecursiveTask<NodeQueue> {
+        private static final long serialVersionUID = 1L;
+
+        private final PackedVectors vectors;
+        private final float[] query;
+        private final int k;
+        private final int from;
+        private final int to;
+        private final int rowsPerTask;
+
+        private ScanTask(PackedVectors vectors, float[] query, int k, int from, int to, int rowsPerTask) {
+            this.vectors = vectors;
+            this.query = query;
+            this.k = k;
+            this.from = from;
+            this.to = to;
+            this.rowsPerTask = rowsPerTask;
+        }
+
+        @Override
+        protected NodeQueue compute() {
+            if (to - from <= rowsPerTask) {
+                return scan(vectors, query, k, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask left = new ScanTask(vectors, query, k, from, middle, rowsPerTask);
+            left.fork();
+            NodeQueue top = new ScanTask(vectors, query, k, middle, to, rowsPerTask).compute();
+            NodeQueue other = left.join();
+            while (!other.isEmpty()) {
+                float score = other.topScore();
+                offer(top, other.pop(), score, k);
+            }
+            return top;
+        }
+    }
+}
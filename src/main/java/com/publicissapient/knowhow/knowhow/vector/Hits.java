@@ -0,0 +1,57 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+/**
+ * Search results, best first: node numbers and their cosine similarity to the query.
+ */
+public class Hits {
+
+    private final int[] nodes;
+    private final float[] scores;
+
+    Hits(int[] nodes, float[] scores) {
+        this.nodes = nodes;
+        this.scores = scores;
+    }
+
+    /**
+     * Drain a min-queue of results into best-first order.
+     */
+    static Hits from(NodeQueue results) {
+        int count = results.size();
+        int[] nodes = new int[count];
+        float[] scores = new float[count];
+        for (int i = count - 1; i >= 0; i--) {
+            scores[i] = results.topScore();
+            nodes[i] = results.pop();
+        }
+        return new Hits(nodes, scores);
+    }
+
+    public int size() {
+        return nodes.length;
+    }
+
+    public int node(int i) {
+        return nodes[i];
+    }
+
+    public float score(int i) {
+        return scores[i];
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Hierarchical navigable small world graph over L2-normalized vectors, scored by dot product
+ * (cosine similarity). Vectors are kept in {@link PackedVectors} and neighbour lists are plain
+ * int arrays, so the index holds no boxed values.
+ * <p>
+ * The index is built by a single thread with {@link #add(float[])}, or restored from a
+ * {@link VectorSnapshot}; once built it is not modified and {@link #search(float[], int, int)}
+ * may be called from any number of threads.
+ */
+public class HnswIndex {
+
+    private final int dimension;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final Random random = new Random(42);
+
+    private final PackedVectors vectors;
+    // links[node][level] = {count, neighbour...}
+    private int[][][] links;
+    private int size;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    private final BitSet buildVisited = new BitSet();
+
+    public HnswIndex(int dimension, int expectedSize, int m, int efConstruction) {
+        this.dimension = dimension;
+        this.m = Math.max(2, m);
+        this.maxM0 = this.m * 2;
+        this.efConstruction = Math.max(this.m, efConstruction);
+        this.levelMultiplier = 1.0 / Math.log(this.m);
+        this.vectors = new PackedVectors(dimension, expectedSize);
+        this.links = new int[Math.max(16, expectedSize)][][];
+    }
+
+    /**
+     * Build the graph over vectors that are already stored, linking them in node order.
+     */
+    public HnswIndex(PackedVectors vectors, int m, int efConstruction) {
+        this.dimension = vectors.dimension();
+        this.m = Math.max(2, m);
+        this.maxM0 = this.m * 2;
+        this.efConstruction = Math.max(this.m, efConstruction);
+        this.levelMultiplier = 1.0 / Math.log(this.m);
+        this.vectors = vectors;
+        this.links = new int[Math.max(16, vectors.size())][][];
+        for (int node = 0; node < vectors.size(); node++) {
+            link(node, vectors.vector(node));
+        }
+    }
+
+    /**
+     * Restore a built index over the given vectors and graph.
+     */
+    HnswIndex(PackedVectors vectors, int[][][] links, int entryPoint, int maxLevel, int m, int efConstruction) {
+        this.dimension = vectors.dimension();
+        this.m = m;
+        this.maxM0 = m * 2;
+        this.efConstruction = efConstruction;
+        this.levelMultiplier = 1.0 / Math.log(m);
+        this.vectors = vectors;
+        this.links = links;
+        this.size = vectors.size();
+        this.entryPoint = entryPoint;
+        this.maxLevel = maxLevel;
+    }
+
+    /**
+     * Insert a vector and return its node number (nodes are numbered in insertion order).
+     */
+    public int add(float[] vector) {
+        int node = vectors.add(vector);
+        link(node, vector);
+        return node;
+    }
+
+    private void link(int node, float[] vector) {
+        if (size == links.length) {
+            links = Arrays.copyOf(links, links.length * 2);
+        }
+        size++;
+        int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+        links[node] = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[node][l] = new int[1 + maxNeighbours(l)];
+        }
+
+        if (entryPoint < 0) {
+            entryPoint = node;
+            maxLevel = level;
+            return;
+        }
+
+        int current = greedyDescend(vector, entryPoint, maxLevel, level);
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            buildVisited.clear();
+            NodeQueue found = searchLayer(vector, current, efConstruction, l, buildVisited);
+            int count = found.size();
+            int[] candidates = new int[count];
+            float[] scores = new float[count];
+            // The min-queue pops the worst first, so fill from the back to get best-first order
+            for (int i = count - 1; i >= 0; i--) {
+                scores[i] = found.topScore();
+                candidates[i] = found.pop();
+            }
+            current = candidates[0];
+
+            int[] selected = selectNeighbours(candidates, scores, count, m);
+            int[] own = links[node][l];
+            own[0] = selected.length;
+            System.arraycopy(selected, 0, own, 1, selected.length);
+            for (int neighbour : selected) {
+                connect(neighbour, node, l);
+            }
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = node;
+        }
+    }
+
+    /**
+     * Approximate k nearest neighbours of the query, best first.
+     *
+     * @param ef size of the dynamic candidate list; larger is slower but more accurate
+     */
+    public Hits search(float[] query, int k, int ef) {
+        if (entryPoint < 0 || k <= 0) {
+            return new Hits(new int[0], new float[0]);
+        }
+        int start = greedyDescend(query, entryPoint, maxLevel, 0);
+        NodeQueue found = searchLayer(query, start, Math.max(ef, k), 0, new BitSet(size));
+        while (found.size() > k) {
+            found.pop();
+        }
+        return Hits.from(found);
+    }
+
+    public float[] vector(int node) {
+        return vectors.vector(node);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    public boolean isMapped() {
+        return vectors.isMapped();
+    }
+
+    /**
+     * Approximate heap footprint of the vectors and the graph; mapped vectors are not counted.
+     */
+    public long heapBytes() {
+        long bytes = vectors.heapBytes() + (long) links.length * 8;
+        for (int node = 0; node < size; node++) {
+            bytes += 16 + links[node].length * 8L;
+            for (int[] level : links[node]) {
+                bytes += 16 + (long) level.length * Integer.BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    PackedVectors vectors() {
+        return vectors;
+    }
+
+    int[][] links(int node) {
+        return links[node];
+    }
+
+    int entryPoint() {
+        return entryPoint;
+    }
+
+    int maxLevel() {
+        return maxLevel;
+    }
+
+    int m() {
+        return m;
+    }
+
+    int efConstruction() {
+        return efConstruction;
+    }
+
+    private int maxNeighbours(int level) {
+        return level == 0 ? maxM0 : m;
+    }
+
+    /**
+     * Walk greedily from the entry point through the levels above the target level.
+     */
+    private int greedyDescend(float[] query, int start, int fromLevel, int toLevel) {
+        int current = start;
+        float best = dot(query, current);
+        for (int l = fromLevel; l > toLevel; l--) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int[] neighbours = links[current][l];
+                for (int i = 1; i <= neighbours[0]; i++) {
+                    float score = dot(query, neighbours[i]);
+                    if (score > best) {
+                        best = score;
+                        current = neighbours[i];
+                        changed = true;
+                    }
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search of one level. Returns a min-queue of at most ef results.
+     */
+    private NodeQueue searchLayer(float[] query, int start, int ef, int level, BitSet visited) {
+        NodeQueue candidates = NodeQueue.max(ef * 2);
+        NodeQueue results = NodeQueue.min(ef + 1);
+        float startScore = dot(query, start);
+        candidates.push(start, startScore);
+        results.push(start, startScore);
+        visited.set(start);
+
+        while (!candidates.isEmpty()) {
+            float candidateScore = candidates.topScore();
+            int candidate = candidates.pop();
+            if (results.size() >= ef && candidateScore < results.topScore()) {
+                break;
+            }
+            int[][] candidateLinks = links[candidate];
+            if (level >= candidateLinks.length) {
+                continue;
+            }
+            int[] neighbours = candidateLinks[level];
+            for (int i = 1; i <= neighbours[0]; i++) {
+                int neighbour = neighbours[i];
+                if (visited.get(neighbour)) {
+                    continue;
+                }
+                visited.set(neighbour);
+                float score = dot(query, neighbour);
+                if (results.size() < ef || score > results.topScore()) {
+                    candidates.push(neighbour, score);
+                    results.push(neighbour, score);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Neighbour selection heuristic: a candidate is kept only if it is closer to the base node
+     * than to every neighbour kept so far, which spreads links across clusters. Remaining
+     * slots are filled with the best of the skipped candidates.
+     *
+     * @param candidates sorted best first
+     */
+    private int[] selectNeighbours(int[] candidates, float[] scores, int count, int max) {
+        int[] selected = new int[Math.min(max, count)];
+        int selectedCount = 0;
+        int[] skipped = new int[count];
+        int skippedCount = 0;
+
+        for (int i = 0; i < count && selectedCount < selected.length; i++) {
+            int candidate = candidates[i];
+            boolean diverse = true;
+            for (int j = 0; j < selectedCount; j++) {
+                if (dot(candidate, selected[j]) > scores[i]) {
+                    diverse = false;
+                    break;
+                }
+            }
+            if (diverse) {
+                selected[selectedCount++] = candidate;
+            } else {
+                skipped[skippedCount++] = candidate;
+            }
+        }
+        for (int i = 0; i < skippedCount && selectedCount < selected.length; i++) {
+            selected[selectedCount++] = skipped[i];
+        }
+        return selectedCount == selected.length ? selected : Arrays.copyOf(selected, selectedCount);
+    }
+
+    /**
+     * Add a link from node to neighbour, re-selecting the node's links when the list is full.
+     */
+    private void connect(int node, int neighbour, int level) {
+        int[] list = links[node][level];
+        int max = maxNeighbours(level);
+        if (list[0] < max) {
+            list[++list[0]] = neighbour;
+            return;
+        }
+
+        int count = list[0] + 1;
+        int[] candidates = new int[count];
+        float[] scores = new float[count];
+        for (int i = 0; i < list[0]; i++) {
+            candidates[i] = list[i + 1];
+            scores[i] = dot(node, list[i + 1]);
+        }
+        candidates[count - 1] = neighbour;
+        scores[count - 1] = dot(node, neighbour);
+        sortBestFirst(candidates, scores, count);
+
+        int[] selected = selectNeighbours(candidates, scores, count, max);
+        list[0] = selected.length;
+        System.arraycopy(selected, 0, list, 1, selected.length);
+    }
+
+    private static void sortBestFirst(int[] nodes, float[] scores, int count) {
+        for (int i = 1; i < count; i++) {
+            int node = nodes[i];
+            float score = scores[i];
+            int j = i - 1;
+            while (j >= 0 && scores[j] < score) {
+                nodes[j + 1] = nodes[j];
+                scores[j + 1] = scores[j];
+                j--;
+            }
+            nodes[j + 1] = node;
+            scores[j + 1] = score;
+        }
+    }
+
+    private float dot(float[] query, int node) {
+        return vectors.dot(query, node);
+    }
+
+    private float dot(int a, int b) {
+        return vectors.dot(a, b);
+    }
+}
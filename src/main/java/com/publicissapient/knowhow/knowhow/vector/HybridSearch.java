@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import dev.langchain4j.data.segment.TextSegment;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Hybrid lexical and vector retrieval over the vector store, fused with reciprocal rank fusion
+ * in a single query. The lexical side matches the tsvector column written with each segment
+ * (see {@link SegmentStore}) through a GIN index, so exact terms such as acronyms (DSR, DSI,
+ * DRR) are found even where their embeddings are close to each other. The vector side is
+ * either an ANN query in the same statement or, when the in-process replica answered it, the
+ * replica's ranked ids passed in as an array. When the store is quantized, the ANN query is
+ * the quantized store's own (see {@link QuantizedPgVectorStore#nearestSql}), so it walks the
+ * compressed index and rescores the candidates. A segment scores sum(1 / (k + rank)) over the
+ * rankings it appears in.
+ * <p>
+ * The search returns ids, scores and tags only; segment text and metadata, sliced from the
+ * document text by the segment view, are read with {@link #load} for the few segments that end
+ * up in the prompt.
+ */
+public class HybridSearch {
+
+    private static final String TSV_COLUMN = SegmentStore.TSV_COLUMN;
+
+    private final DataSource dataSource;
+    private final String table;
+    private final String textSearchConfig;
+    private final int rrfK;
+    // Null when the store has a plain vector index
+    private final QuantizedPgVectorStore quantized;
+
+    public HybridSearch(DataSource dataSource, String table, String textSearchConfig, int rrfK,
+            QuantizedPgVectorStore quantized) {
+        this.dataSource = dataSource;
+        this.table = table;
+        this.textSearchConfig = textSearchConfig;
+        this.rrfK = rrfK;
+        this.quantized = quantized;
+    }
+
+    /**
+     * Create the GIN index over the tsvector column if it does not exist yet.
+     */
+    public void createIndex() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute("CREATE INDEX IF NOT EXISTS " + table + "_" + TSV_COLUMN + "_idx ON " + table
+                    + " USING gin (" + TSV_COLUMN + ")");
+        }
+    }
+
+    /**
+     * Fuse the vector store's own ANN ranking with the lexical ranking.
+     */
+    public List<SegmentHit> search(String query, float[] embedding, int candidates, int maxResults)
+            throws SQLException {
+        if (quantized != null) {
+            String vectorHits = "SELECT embedding_id, row_number() OVER (ORDER BY distance) AS rank"
+                    + " FROM (" + quantized.nearestSql() + ") nearest";
+            return search(vectorHits, query, candidates, maxResults,
+                    (statement, index) -> quantized.bindNearest(statement, index, embedding, candidates));
+        }
+        String vectorHits = "SELECT embedding_id, row_number() OVER (ORDER BY distance) AS rank"
+                + " FROM (SELECT embedding_id, embedding <=> CAST(? AS vector) AS distance FROM " + table
+                + " ORDER BY distance LIMIT ?) nearest";
+        return search(vectorHits, query, candidates, maxResults, (statement, index) -> {
+            statement.setString(index, PgVectorText.format(embedding));
+            statement.setInt(index + 1, candidates);
+            return index + 2;
+        });
+    }
+
+    /**
+     * Fuse a vector ranking computed elsewhere, given as segment ids best first, with the
+     * lexical ranking.
+     */
+    public List<SegmentHit> search(String query, List<String> rankedIds, int candidates,
+            int maxResults) throws SQLException {
+        String vectorHits = "SELECT embedding_id, rank"
+                + " FROM unnest(CAST(? AS uuid[])) WITH ORDINALITY AS ranked(embedding_id, rank)";
+        return search(vectorHits, query, candidates, maxResults, (statement, index) -> {
+            statement.setArray(index, statement.getConnection().createArrayOf("uuid", rankedIds.toArray()));
+            return index + 1;
+        });
+    }
+
+    @FunctionalInterface
+    private interface VectorParameters {
+        int bind(PreparedStatement statement, int index) throws SQLException;
+    }
+
+    private List<SegmentHit> search(String vectorHits, String query, int candidates,
+            int maxResults, VectorParameters vectorParameters) throws SQLException {
+        // Any query term may match: plainto_tsquery joins the terms with AND, which misses
+        // segments that only contain the key term of a longer question
+        String lexicalQuery = "CAST(replace(plainto_tsquery(CAST(? AS regconfig), ?)::text, '&', '|') AS tsquery)";
+        String sql = "WITH vector_hits AS (" + vectorHits + "),"
+                + " lexical_hits AS (SELECT embedding_id,"
+                + " row_number() OVER (ORDER BY ts_rank_cd(" + TSV_COLUMN + ", terms.query) DESC) AS rank"
+                + " FROM " + table + ", (SELECT " + lexicalQuery + " AS query) terms"
+                + " WHERE " + TSV_COLUMN + " @@ terms.query ORDER BY rank LIMIT ?),"
+                + " fused AS (SELECT embedding_id, sum(1.0 / (? + rank)) AS score"
+                + " FROM (SELECT * FROM vector_hits UNION ALL SELECT * FROM lexical_hits) hits"
+                + " GROUP BY embedding_id)"
+                + " SELECT s.embedding_id, f.score, s.metadata->>'tags'"
+                + " FROM fused f JOIN " + SegmentStore.SEGMENT_VIEW + " s ON s.embedding_id = f.embedding_id"
+                + " ORDER BY f.score DESC LIMIT ?";
+
+        List<SegmentHit> hits = new ArrayList<>(maxResults);
+        try (Connection connection = dataSource.getConnection()) {
+            // One transaction, so hnsw.ef_search can be set for this statement alone
+            connection.setAutoCommit(false);
+            try {
+                if (quantized != null) {
+                    quantized.setEfSearch(connection, candidates);
+                }
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    int index = vectorParameters.bind(statement, 1);
+                    statement.setString(index++, textSearchConfig);
+                    statement.setString(index++, query);
+                    statement.setInt(index++, candidates);
+                    statement.setInt(index++, rrfK);
+                    statement.setInt(index, maxResults);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            hits.add(new SegmentHit(resultSet.getString(1), resultSet.getDouble(2),
+                                    resultSet.getString(3)));
+                        }
+                    }
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Read the text and metadata of the given segments in one query.
+     */
+    public Map<String, TextSegment> load(List<String> ids) throws SQLException {
+        Map<String, TextSegment> segments = new HashMap<>();
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT embedding_id, text, metadata::text"
+                        + " FROM " + SegmentStore.SEGMENT_VIEW + " WHERE embedding_id = ANY(CAST(? AS uuid[]))")) {
+            statement.setArray(1, connection.createArrayOf("uuid", ids.toArray()));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    segments.put(resultSet.getString(1), TextSegment.from(resultSet.getString(2),
+                            PgVectorText.metadata(resultSet.getString(3))));
+                }
+            }
+        }
+        return segments;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import java.util.Arrays;
+
+/**
+ * Binary heap of (score, node) pairs backed by primitive arrays, used for the candidate and
+ * result lists of the HNSW search. A min-queue keeps the lowest score on top, a max-queue
+ * the highest.
+ */
+class NodeQueue {
+
+    private final boolean max;
+    private float[] scores;
+    private int[] nodes;
+    private int size;
+
+    NodeQueue(int capacity, boolean max) {
+        this.max = max;
+        this.scores = new float[Math.max(1, capacity)];
+        this.nodes = new int[Math.max(1, capacity)];
+    }
+
+    static NodeQueue min(int capacity) {
+        return new NodeQueue(capacity, false);
+    }
+
+    static NodeQueue max(int capacity) {
+        return new NodeQueue(capacity, true);
+    }
+
+    void push(int node, float score) {
+        if (size == scores.length) {
+            scores = Arrays.copyOf(scores, size * 2);
+            nodes = Arrays.copyOf(nodes, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!before(score, scores[parent])) {
+                break;
+            }
+            scores[i] = scores[parent];
+            nodes[i] = nodes[parent];
+            i = parent;
+        }
+        scores[i] = score;
+        nodes[i] = node;
+    }
+
+    /**
+     * Remove the top entry and return its node.
+     */
+    int pop() {
+        int top = nodes[0];
+        size--;
+        if (size > 0) {
+            float score = scores[size];
+            int node = nodes[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(scores[child + 1], scores[child])) {
+                    child++;
+                }
+                if (!before(scores[child], score)) {
+                    break;
+                }
+                scores[i] = scores[child];
+                nodes[i] = nodes[child];
+                i = child;
+            }
+            scores[i] = score;
+            nodes[i] = node;
+        }
+        return top;
+    }
+
+    int topNode() {
+        return nodes[0];
+    }
+
+    float topScore() {
+        return scores[0];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    private boolean before(float a, float b) {
+        return max ? a > b : a < b;
+    }
+}
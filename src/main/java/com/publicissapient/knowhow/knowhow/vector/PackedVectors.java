@@ -0,0 +1,172 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Fixed-dimension float32 vectors packed back to back, either in a growable heap array (while
+ * an index is being built) or in a read-only buffer over a memory-mapped snapshot file, which
+ * keeps them outside the Java heap. Dot products use SIMD lanes through the incubator Vector
+ * API when the module is available, and scalar loops otherwise.
+ */
+public class PackedVectors {
+
+    private static final boolean SIMD = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    private final int dimension;
+    private float[] array;
+    private final ByteBuffer bytes;
+    private final FloatBuffer buffer;
+    private int size;
+
+    public PackedVectors(int dimension, int expectedSize) {
+        this.dimension = dimension;
+        this.array = new float[Math.max(16, expectedSize) * dimension];
+        this.bytes = null;
+        this.buffer = null;
+    }
+
+    /**
+     * Vectors stored little-endian in the given buffer, starting at its position.
+     */
+    public PackedVectors(int dimension, int size, ByteBuffer source) {
+        this.dimension = dimension;
+        this.array = null;
+        this.bytes = source.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.buffer = bytes.asFloatBuffer();
+        this.size = size;
+        if (buffer.capacity() < (long) size * dimension) {
+            throw new IllegalArgumentException("Buffer holds fewer than " + size + " vectors");
+        }
+    }
+
+    public int add(float[] vector) {
+        if (array == null) {
+            throw new IllegalStateException("Mapped vectors are read-only");
+        }
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected a vector of dimension " + dimension + " but got "
+                    + vector.length);
+        }
+        if ((size + 1) * dimension > array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        System.arraycopy(vector, 0, array, size * dimension, dimension);
+        return size++;
+    }
+
+    /**
+     * Store a vector at the given node, for filling nodes out of order; the size grows to
+     * cover the node.
+     */
+    public void set(int node, float[] vector) {
+        if (array == null) {
+            throw new IllegalStateException("Mapped vectors are read-only");
+        }
+        if (vector.length != dimension) {
+            throw new IllegalArgumentException("Expected a vector of dimension " + dimension + " but got "
+                    + vector.length);
+        }
+        while ((node + 1) * dimension > array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        System.arraycopy(vector, 0, array, node * dimension, dimension);
+        size = Math.max(size, node + 1);
+    }
+
+    public float dot(float[] query, int node) {
+        int offset = node * dimension;
+        if (SIMD) {
+            return array != null
+                    ? SimdDot.dot(query, 0, array, offset, dimension)
+                    : SimdDot.dot(query, bytes, offset * Float.BYTES, dimension);
+        }
+        float sum = 0f;
+        if (array != null) {
+            for (int i = 0; i < dimension; i++) {
+                sum += query[i] * array[offset + i];
+            }
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                sum += query[i] * buffer.get(offset + i);
+            }
+        }
+        return sum;
+    }
+
+    public float dot(int a, int b) {
+        int offsetA = a * dimension;
+        int offsetB = b * dimension;
+        if (SIMD) {
+            return array != null
+                    ? SimdDot.dot(array, offsetA, array, offsetB, dimension)
+                    : SimdDot.dot(bytes, offsetA * Float.BYTES, offsetB * Float.BYTES, dimension);
+        }
+        float sum = 0f;
+        if (array != null) {
+            for (int i = 0; i < dimension; i++) {
+                sum += array[offsetA + i] * array[offsetB + i];
+            }
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                sum += buffer.get(offsetA + i) * buffer.get(offsetB + i);
+            }
+        }
+        return sum;
+    }
+
+    public float[] vector(int node) {
+        float[] vector = new float[dimension];
+        if (array != null) {
+            System.arraycopy(array, node * dimension, vector, 0, dimension);
+        } else {
+            buffer.get(node * dimension, vector);
+        }
+        return vector;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int dimension() {
+        return dimension;
+    }
+
+    /**
+     * Lane configuration used for dot products, e.g. "Species[float, 8, S_256_BIT]", or
+     * "scalar" when the Vector API module is not available.
+     */
+    public static String simdDescription() {
+        return SIMD ? SimdDot.describe() : "scalar";
+    }
+
+    public boolean isMapped() {
+        return buffer != null;
+    }
+
+    /**
+     * Heap used by the vectors; mapped vectors live in the page cache instead.
+     */
+    public long heapBytes() {
+        return array == null ? 0 : (long) array.length * Float.BYTES;
+    }
+}
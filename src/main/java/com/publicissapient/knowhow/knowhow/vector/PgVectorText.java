@@ -0,0 +1,124 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dev.langchain4j.data.document.Metadata;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Conversions between vector store columns read as text and their Java forms.
+ */
+final class PgVectorText {
+
+    private static final TypeReference<Map<String, Object>> METADATA_TYPE = new TypeReference<>() {
+    };
+    private static final TypeReference<List<String>> LIST_TYPE = new TypeReference<>() {
+    };
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private PgVectorText() {
+    }
+
+    /**
+     * Parse the pgvector text form, e.g. [0.1,-0.2,0.3].
+     */
+    static float[] parseVector(String value, int dimension) {
+        float[] vector = new float[dimension];
+        int count = 0;
+        int start = 1;
+        int end = value.length() - 1;
+        while (start < end) {
+            int comma = value.indexOf(',', start);
+            if (comma < 0 || comma > end) {
+                comma = end;
+            }
+            if (count == dimension) {
+                throw new IllegalStateException("Stored vector has more than " + dimension + " dimensions");
+            }
+            vector[count++] = Float.parseFloat(value.substring(start, comma));
+            start = comma + 1;
+        }
+        return count == dimension ? vector : Arrays.copyOf(vector, count);
+    }
+
+    /**
+     * Format a vector in the pgvector text form, accepted by casts to vector, halfvec and bit.
+     */
+    static String format(float[] vector) {
+        StringBuilder text = new StringBuilder(vector.length * 12).append('[');
+        for (int i = 0; i < vector.length; i++) {
+            if (i > 0) {
+                text.append(',');
+            }
+            text.append(vector[i]);
+        }
+        return text.append(']').toString();
+    }
+
+    static String json(Object metadata) {
+        try {
+            return OBJECT_MAPPER.writeValueAsString(metadata);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Segment metadata is not serializable: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Metadata from its stored JSON. Metadata only holds strings, UUIDs and numbers, so other
+     * values (the source_urls array, booleans) are kept as their JSON text.
+     */
+    static Metadata metadata(String json) {
+        Map<String, Object> map = map(json);
+        for (Map.Entry<String, Object> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            if (value != null && !(value instanceof String) && !(value instanceof Number)) {
+                entry.setValue(json(value));
+            }
+        }
+        map.values().removeIf(Objects::isNull);
+        return Metadata.from(map);
+    }
+
+    static List<String> list(String json) {
+        try {
+            return OBJECT_MAPPER.readValue(json, LIST_TYPE);
+        } catch (Exception e) {
+            System.err.println("Error reading a metadata list: " + e.getMessage());
+            return List.of();
+        }
+    }
+
+    static Map<String, Object> map(String json) {
+        if (json == null || json.isEmpty()) {
+            return new HashMap<>();
+        }
+        try {
+            return OBJECT_MAPPER.readValue(json, METADATA_TYPE);
+        } catch (Exception e) {
+            System.err.println("Error reading segment metadata: " + e.getMessage());
+            return new HashMap<>();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingSearchResult;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import dev.langchain4j.store.embedding.filter.Filter;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * pgvector store whose ANN index is built over a compressed copy of the embeddings. The
+ * full-precision vector column stays as it is; an HNSW index is created on an expression that
+ * quantizes it, either to half precision (halfvec, half the index size) or to one bit per
+ * dimension (binary_quantize, 1/32 of the size). Searches walk the compressed index for a
+ * larger candidate set and rescore the candidates against the full-precision vectors, so the
+ * ranking returned is exact within the candidates. Writes, deletes and filtered searches are
+ * handled by the wrapped store. Needs pgvector 0.7 or later.
+ */
+public class QuantizedPgVectorStore implements EmbeddingStore<TextSegment> {
+
+    public enum Quantization {
+        /** Plain vector column, searched by the wrapped store */
+        NONE,
+        /** HNSW index on embedding::halfvec, cosine distance */
+        HALFVEC,
+        /** HNSW index on binary_quantize(embedding), Hamming distance */
+        BINARY
+    }
+
+    // hnsw.ef_search is capped at 1000 by pgvector
+    private static final int MAX_EF_SEARCH = 1000;
+
+    private final EmbeddingStore<TextSegment> delegate;
+    private final DataSource dataSource;
+    private final String table;
+    private final int dimension;
+    private final Quantization quantization;
+    private final int rescoreFactor;
+
+    public QuantizedPgVectorStore(EmbeddingStore<TextSegment> delegate, DataSource dataSource, String table,
+            int dimension, Quantization quantization, int rescoreFactor) {
+        if (quantization == Quantization.NONE) {
+            throw new IllegalArgumentException("Quantization NONE is served by the plain pgvector store");
+        }
+        this.delegate = delegate;
+        this.dataSource = dataSource;
+        this.table = table;
+        this.dimension = dimension;
+        this.quantization = quantization;
+        this.rescoreFactor = Math.max(1, rescoreFactor);
+    }
+
+    /**
+     * Create the quantized HNSW index if it does not exist yet. Building it over an existing
+     * table takes a while; searches fall back to a sequential scan of the expression until
+     * it is ready.
+     */
+    public void createIndex() throws SQLException {
+        String sql = "CREATE INDEX IF NOT EXISTS " + indexName() + " ON " + table + " USING hnsw (("
+                + indexedExpression() + ") " + (quantization == Quantization.HALFVEC
+                        ? "halfvec_cosine_ops"
+                        : "bit_hamming_ops") + ")";
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    public String indexName() {
+        return table + "_embedding_" + quantization.name().toLowerCase() + "_idx";
+    }
+
+    public Quantization getQuantization() {
+        return quantization;
+    }
+
+    @Override
+    public EmbeddingSearchResult<TextSegment> search(EmbeddingSearchRequest request) {
+        Filter filter = request.filter();
+        if (filter != null) {
+            return delegate.search(request);
+        }
+        try {
+            return new EmbeddingSearchResult<>(search(request.queryEmbedding().vector(), request.maxResults(),
+                    request.minScore()));
+        } catch (SQLException e) {
+            throw new IllegalStateException("Quantized vector search failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Query returning the embedding_id and full-precision cosine distance of the rows nearest
+     * to a query vector, best first: the quantized index picks the candidates and they are
+     * rescored against the full-precision vectors. Bind its parameters with
+     * {@link #bindNearest} and run it inside a transaction after {@link #setEfSearch}.
+     */
+    public String nearestSql() {
+        return "SELECT embedding_id, embedding <=> CAST(? AS vector) AS distance"
+                + " FROM (SELECT embedding_id, embedding FROM " + table
+                + " ORDER BY " + indexedExpression() + " " + distanceOperator() + " " + quantizedQuery()
+                + " LIMIT ?) candidates"
+                + " ORDER BY distance LIMIT ?";
+    }
+
+    /**
+     * Bind the parameters of {@link #nearestSql} from the given index and return the next one.
+     */
+    public int bindNearest(PreparedStatement statement, int index, float[] query, int maxResults)
+            throws SQLException {
+        String literal = PgVectorText.format(query);
+        statement.setString(index, literal);
+        statement.setString(index + 1, literal);
+        statement.setInt(index + 2, candidates(maxResults));
+        statement.setInt(index + 3, maxResults);
+        return index + 4;
+    }
+
+    /**
+     * Let the index walk return every candidate that is rescored. SET LOCAL only lasts for the
+     * transaction, so the connection must not be in auto-commit mode, and a pooled connection
+     * is left as it was once the transaction ends.
+     */
+    public void setEfSearch(Connection connection, int maxResults) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET LOCAL hnsw.ef_search = " + candidates(maxResults));
+        }
+    }
+
+    private int candidates(int maxResults) {
+        return Math.min(MAX_EF_SEARCH, Math.max(maxResults, maxResults * rescoreFactor));
+    }
+
+    private List<EmbeddingMatch<TextSegment>> search(float[] query, int maxResults, double minScore)
+            throws SQLException {
+        // Text and metadata are read through the segment view for the rescored top results only
+        String sql = "SELECT s.embedding_id, s.embedding::text, s.text, s.metadata::text,"
+                + " (2 - best.distance) / 2 AS score"
+                + " FROM (" + nearestSql() + ") best"
+                + " JOIN " + SegmentStore.SEGMENT_VIEW + " s ON s.embedding_id = best.embedding_id"
+                + " ORDER BY best.distance";
+
+        List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(maxResults);
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                setEfSearch(connection, maxResults);
+                try (PreparedStatement statement = connection.prepareStatement(sql)) {
+                    bindNearest(statement, 1, query, maxResults);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            double score = resultSet.getDouble(5);
+                            if (score < minScore) {
+                                break;
+                            }
+                            TextSegment segment = TextSegment.from(resultSet.getString(3),
+                                    PgVectorText.metadata(resultSet.getString(4)));
+                            matches.add(new EmbeddingMatch<>(score, resultSet.getString(1),
+                                    Embedding.from(PgVectorText.parseVector(resultSet.getString(2), dimension)),
+                                    segment));
+                        }
+                    }
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        }
+        return matches;
+    }
+
+    // Must match the index expression exactly for the planner to use the index
+    private String indexedExpression() {
+        return quantization == Quantization.HALFVEC
+                ? "(embedding::halfvec(" + dimension + "))"
+                : "(binary_quantize(embedding)::bit(" + dimension + "))";
+    }
+
+    private String quantizedQuery() {
+        return quantization == Quantization.HALFVEC
+                ? "CAST(? AS halfvec(" + dimension + "))"
+                : "binary_quantize(CAST(? AS vector(" + dimension + ")))::bit(" + dimension + ")";
+    }
+
+    private String distanceOperator() {
+        return quantization == Quantization.HALFVEC ? "<=>" : "<~>";
+    }
+
+    @Override
+    public String add(Embedding embedding) {
+        return delegate.add(embedding);
+    }
+
+    @Override
+    public void add(String id, Embedding embedding) {
+        delegate.add(id, embedding);
+    }
+
+    @Override
+    public String add(Embedding embedding, TextSegment segment) {
+        return delegate.add(embedding, segment);
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings) {
+        return delegate.addAll(embeddings);
+    }
+
+    @Override
+    public List<String> addAll(List<Embedding> embeddings, List<TextSegment> segments) {
+        return delegate.addAll(embeddings, segments);
+    }
+
+    @Override
+    public void remove(String id) {
+        delegate.remove(id);
+    }
+
+    @Override
+    public void removeAll(Collection<String> ids) {
+        delegate.removeAll(ids);
+    }
+
+    @Override
+    public void removeAll(Filter filter) {
+        delegate.removeAll(filter);
+    }
+
+    @Override
+    public void removeAll() {
+        delegate.removeAll();
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import dev.langchain4j.data.segment.TextSegment;
+import lombok.Data;
+
+/**
+ * A retrieved segment before its text is loaded: id, score and the page tags used for
+ * filtering. The segment is only set when it came with the search for free (e.g. from the
+ * in-process replica); otherwise {@link VectorSearchService#loadSegments} fetches it.
+ */
+@Data
+public class SegmentHit {
+    private final String id;
+    private final double score;
+    private final String tags;
+    private TextSegment segment;
+}
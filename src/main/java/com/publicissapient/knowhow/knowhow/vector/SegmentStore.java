@@ -0,0 +1,394 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import dev.langchain4j.data.document.Document;
+import dev.langchain4j.data.document.Metadata;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Offset-based segment storage. The cleaned text of each ingested document is stored once in
+ * the document table; its segments are stored in the vector store with their embedding, the
+ * document id and the start and end of the segment within the text, and without text of their
+ * own. Overlapping segments therefore no longer repeat the overlap, and page-level metadata
+ * (title, url, tags) is stored once per document instead of once per segment.
+ * <p>
+ * Readers go through the segment view, which slices the text and merges the document metadata
+ * back in, so they see the same rows as before. A segment that is not a verbatim slice of its
+ * document (the splitter may rejoin sentences with a different separator) keeps its own text.
+ * The full-text column is written on insert, as the text it was generated from is now null.
+ * <p>
+ * A segment that near-duplicates from other pages were collapsed into lists the URLs it stands
+ * for, its own first, as a JSON array under source_urls, and carries the union of their tags.
+ * <p>
+ * The schema changes run once per database: the version applied is recorded in the schema
+ * table, and a node that finds it current skips them.
+ */
+@Service
+@DependsOn("embeddingStore")
+public class SegmentStore {
+
+    public static final String DOCUMENT_TABLE = "document_text";
+    public static final String SEGMENT_VIEW = "vector_segment";
+    static final String TSV_COLUMN = "text_tsv";
+
+    private static final String SCHEMA_TABLE = "segment_store_schema";
+    private static final int SCHEMA_VERSION = 1;
+    // Serializes the migration between nodes starting together
+    private static final long MIGRATION_LOCK_KEY = 0x4B48_5345_474DL;
+
+    // Kept on every segment: resuming deletes by source_id, the replica groups by page_id
+    private static final Set<String> SEGMENT_KEYS = Set.of("source_id", "page_id");
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Value("${gravity.vector-store.table-name}")
+    private String tableName;
+
+    @Value("${gravity.retrieval.hybrid.text-search-config:english}")
+    private String textSearchConfig;
+
+    @PostConstruct
+    public void createSchema() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS " + SCHEMA_TABLE + " (id int PRIMARY KEY,"
+                        + " version int NOT NULL)");
+            }
+            if (schemaVersion(connection) >= SCHEMA_VERSION) {
+                return;
+            }
+            connection.setAutoCommit(false);
+            try {
+                try (PreparedStatement statement = connection.prepareStatement("SELECT pg_advisory_xact_lock(?)")) {
+                    statement.setLong(1, MIGRATION_LOCK_KEY);
+                    statement.execute();
+                }
+                // Another node may have migrated while this one waited for the lock
+                if (schemaVersion(connection) < SCHEMA_VERSION) {
+                    migrate(connection);
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private void migrate(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + DOCUMENT_TABLE + " (document_id uuid PRIMARY KEY,"
+                    + " source_id text, text text NOT NULL, metadata jsonb)");
+
+            // Earlier releases generated the column from the segment text. DROP EXPRESSION keeps
+            // the values but needs Postgres 13; on 12 the column is recreated and refilled below
+            String generated = tsvGenerated(connection);
+            if ("s".equals(generated) && connection.getMetaData().getDatabaseMajorVersion() >= 13) {
+                statement.execute("ALTER TABLE " + tableName + " ALTER COLUMN " + TSV_COLUMN + " DROP EXPRESSION");
+            } else if ("s".equals(generated)) {
+                statement.execute("ALTER TABLE " + tableName + " DROP COLUMN " + TSV_COLUMN);
+            }
+            statement.execute("ALTER TABLE " + tableName + " ADD COLUMN IF NOT EXISTS " + TSV_COLUMN + " tsvector");
+            statement.execute("UPDATE " + tableName + " SET " + TSV_COLUMN + " = to_tsvector('" + textSearchConfig
+                    + "'::regconfig, text) WHERE " + TSV_COLUMN + " IS NULL AND text IS NOT NULL");
+
+            // Offsets are in characters; substr counts from 1
+            statement.execute("CREATE OR REPLACE VIEW " + SEGMENT_VIEW + " AS"
+                    + " SELECT v.embedding_id, v.embedding,"
+                    + " COALESCE(v.text, substr(d.text, (v.metadata->>'start')::int + 1,"
+                    + " (v.metadata->>'end')::int - (v.metadata->>'start')::int)) AS text,"
+                    + " (COALESCE(d.metadata, '{}'::jsonb) || v.metadata::jsonb) - 'start' - 'end' AS metadata"
+                    + " FROM " + tableName + " v LEFT JOIN " + DOCUMENT_TABLE + " d"
+                    + " ON d.document_id = (v.metadata->>'document_id')::uuid");
+        }
+        try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + SCHEMA_TABLE
+                + " (id, version) VALUES (1, ?) ON CONFLICT (id) DO UPDATE SET version = EXCLUDED.version")) {
+            statement.setInt(1, SCHEMA_VERSION);
+            statement.executeUpdate();
+        }
+        System.out.println("DEBUG: Segment store schema migrated to version " + SCHEMA_VERSION);
+    }
+
+    private static int schemaVersion(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+                ResultSet resultSet = statement.executeQuery("SELECT version FROM " + SCHEMA_TABLE + " WHERE id = 1")) {
+            return resultSet.next() ? resultSet.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * The attgenerated flag of the tsvector column ("s" when generated), or null when the
+     * column does not exist or the server predates generated columns (Postgres 12).
+     */
+    private String tsvGenerated(Connection connection) throws SQLException {
+        if (connection.getMetaData().getDatabaseMajorVersion() < 12) {
+            return null;
+        }
+        try (PreparedStatement statement = connection.prepareStatement("SELECT attgenerated FROM pg_attribute"
+                + " WHERE attrelid = to_regclass(?) AND attname = ? AND NOT attisdropped")) {
+            statement.setString(1, tableName);
+            statement.setString(2, TSV_COLUMN);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Store a document's text and its segments, under the given ids, in one transaction, with
+     * the sources of the near-duplicates collapsed into them so far (by segment id).
+     *
+     * @return the number of segments that had to keep their own text
+     */
+    public int add(Document document, List<String> ids, List<TextSegment> segments, List<Embedding> embeddings,
+            Map<String, Sources> sources) throws SQLException {
+        String text = document.text();
+        Map<String, Object> documentMetadata = document.metadata().toMap();
+        String documentId = UUID.randomUUID().toString();
+
+        int inline = 0;
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try {
+                try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + DOCUMENT_TABLE
+                        + " (document_id, source_id, text, metadata)"
+                        + " VALUES (CAST(? AS uuid), ?, ?, CAST(? AS jsonb))")) {
+                    statement.setString(1, documentId);
+                    statement.setObject(2, documentMetadata.get("source_id"), Types.VARCHAR);
+                    statement.setString(3, text);
+                    statement.setString(4, PgVectorText.json(documentMetadata));
+                    statement.executeUpdate();
+                }
+
+                try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + tableName
+                        + " (embedding_id, embedding, text, metadata, " + TSV_COLUMN + ") VALUES (CAST(? AS uuid),"
+                        + " CAST(? AS vector), ?, CAST(? AS json), to_tsvector(CAST(? AS regconfig), ?))")) {
+                    Offsets offsets = new Offsets(text);
+                    for (int i = 0; i < segments.size(); i++) {
+                        TextSegment segment = segments.get(i);
+                        Map<String, Object> metadata = segmentMetadata(segment, documentMetadata);
+                        metadata.put("document_id", documentId);
+                        Sources collapsed = sources.get(ids.get(i));
+                        if (collapsed != null) {
+                            addSources(metadata, segment.metadata(), collapsed);
+                        }
+                        boolean sliced = offsets.find(segment.text());
+                        if (sliced) {
+                            metadata.put("start", offsets.start);
+                            metadata.put("end", offsets.end);
+                        } else {
+                            inline++;
+                        }
+                        statement.setString(1, ids.get(i));
+                        statement.setString(2, PgVectorText.format(embeddings.get(i).vector()));
+                        statement.setString(3, sliced ? null : segment.text());
+                        statement.setString(4, PgVectorText.json(metadata));
+                        statement.setString(5, textSearchConfig);
+                        statement.setString(6, segment.text());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }
+        return inline;
+    }
+
+    /**
+     * Merge the sources of near-duplicates found after their kept segments were stored into
+     * the stored rows: new URLs are appended to source_urls (starting from the segment's own
+     * URL) and new tags to its tags, keeping the order and skipping ones already there, so
+     * concurrent merges into one row do not overwrite each other. Segments that were not
+     * stored (their document failed) are skipped.
+     */
+    public void mergeSources(Map<String, Sources> sources) throws SQLException {
+        if (sources.isEmpty()) {
+            return;
+        }
+        String urls = "(SELECT jsonb_agg(url ORDER BY position) FROM (SELECT url, min(position) AS position"
+                + " FROM jsonb_array_elements_text(COALESCE(v.metadata::jsonb->'source_urls',"
+                + " jsonb_build_array(COALESCE(v.metadata->>'url', d.metadata->>'url'))) || CAST(? AS jsonb))"
+                + " WITH ORDINALITY AS u(url, position) WHERE url IS NOT NULL GROUP BY url) merged)";
+        String tags = "(SELECT string_agg(tag, ', ' ORDER BY position) FROM (SELECT trim(raw) AS tag,"
+                + " min(position) AS position FROM unnest(string_to_array(concat_ws(',',"
+                + " COALESCE(v.metadata->>'tags', d.metadata->>'tags'), ?), ',')) WITH ORDINALITY AS t(raw, position)"
+                + " WHERE trim(raw) <> '' GROUP BY trim(raw)) merged)";
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("UPDATE " + tableName + " v"
+                        + " SET metadata = v.metadata::jsonb || jsonb_build_object('source_urls', " + urls
+                        + ", 'tags', " + tags + ")"
+                        + " FROM " + DOCUMENT_TABLE + " d WHERE v.embedding_id = CAST(? AS uuid)"
+                        + " AND d.document_id = (v.metadata->>'document_id')::uuid")) {
+            for (Map.Entry<String, Sources> entry : sources.entrySet()) {
+                statement.setString(1, PgVectorText.json(entry.getValue().getUrls()));
+                statement.setString(2, String.join(", ", entry.getValue().getTags()));
+                statement.setString(3, entry.getKey());
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**
+     * The URLs a segment stands for, its own first, when near-duplicates were collapsed into
+     * it; otherwise just its own URL (none if it has no url entry).
+     */
+    public static List<String> sourceUrls(Metadata metadata) {
+        String sourceUrls = metadata.getString("source_urls");
+        if (sourceUrls != null) {
+            return PgVectorText.list(sourceUrls);
+        }
+        String url = metadata.getString("url");
+        return url == null ? List.of() : List.of(url);
+    }
+
+    private static void addSources(Map<String, Object> metadata, Metadata segmentMetadata, Sources collapsed) {
+        Set<String> urls = new LinkedHashSet<>();
+        if (segmentMetadata.getString("url") != null) {
+            urls.add(segmentMetadata.getString("url"));
+        }
+        urls.addAll(collapsed.getUrls());
+        metadata.put("source_urls", new ArrayList<>(urls));
+
+        Set<String> tags = new LinkedHashSet<>(Sources.splitTags(segmentMetadata.getString("tags")));
+        int ownTags = tags.size();
+        tags.addAll(collapsed.getTags());
+        if (tags.size() > ownTags) {
+            metadata.put("tags", String.join(", ", tags));
+        }
+    }
+
+    // Segment metadata without the entries the document already holds
+    private static Map<String, Object> segmentMetadata(TextSegment segment, Map<String, Object> documentMetadata) {
+        Map<String, Object> metadata = new HashMap<>(segment.metadata().toMap());
+        metadata.entrySet().removeIf(entry -> !SEGMENT_KEYS.contains(entry.getKey())
+                && Objects.equals(entry.getValue(), documentMetadata.get(entry.getKey())));
+        return metadata;
+    }
+
+    /**
+     * URLs and tags of the near-duplicates collapsed into a segment, in the order they were seen.
+     */
+    public static class Sources {
+        private final Set<String> urls = new LinkedHashSet<>();
+        private final Set<String> tags = new LinkedHashSet<>();
+
+        /**
+         * Add a duplicate's URL and its page's tags (comma separated, may be null).
+         */
+        public void add(String url, String tags) {
+            if (url != null) {
+                urls.add(url);
+            }
+            this.tags.addAll(splitTags(tags));
+        }
+
+        public List<String> getUrls() {
+            return new ArrayList<>(urls);
+        }
+
+        public List<String> getTags() {
+            return new ArrayList<>(tags);
+        }
+
+        static List<String> splitTags(String tags) {
+            List<String> result = new ArrayList<>();
+            if (tags != null) {
+                for (String tag : tags.split(",")) {
+                    if (!tag.isBlank()) {
+                        result.add(tag.trim());
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Locates consecutive segments in the document text. Segments come in order and overlap, so
+     * the search starts at the previous segment and only goes back to the beginning on a miss.
+     * Offsets are converted from UTF-16 indexes to code points, which is what Postgres counts.
+     */
+    private static final class Offsets {
+        private final String text;
+        private int from;
+        private int charIndex;
+        private int codePointIndex;
+        int start;
+        int end;
+
+        Offsets(String text) {
+            this.text = text;
+        }
+
+        boolean find(String segment) {
+            int index = text.indexOf(segment, from);
+            if (index < 0) {
+                index = text.indexOf(segment);
+            }
+            if (index < 0) {
+                return false;
+            }
+            from = index;
+            start = codePoints(index);
+            end = start + segment.codePointCount(0, segment.length());
+            return true;
+        }
+
+        private int codePoints(int index) {
+            if (index < charIndex) {
+                charIndex = 0;
+                codePointIndex = 0;
+            }
+            codePointIndex += text.codePointCount(charIndex, index);
+            charIndex = index;
+            return codePointIndex;
+        }
+    }
+}
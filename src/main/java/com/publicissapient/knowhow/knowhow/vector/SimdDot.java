@@ -0,0 +1,95 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Dot products with the incubator Vector API, using the widest float lanes the CPU supports.
+ * Only loaded when the jdk.incubator.vector module is present (the JVM is started with
+ * --add-modules jdk.incubator.vector); {@link PackedVectors} falls back to scalar loops otherwise.
+ */
+final class SimdDot {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private SimdDot() {
+    }
+
+    static float dot(float[] a, int offsetA, float[] b, int offsetB, int length) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, offsetA + i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, b, offsetB + i);
+            sum = va.mul(vb).add(sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += a[offsetA + i] * b[offsetB + i];
+        }
+        return result;
+    }
+
+    /**
+     * Dot product of a heap vector with little-endian floats stored at a byte offset.
+     */
+    static float dot(float[] a, ByteBuffer b, int byteOffsetB, int length) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, i);
+            FloatVector vb = FloatVector.fromByteBuffer(SPECIES, b, byteOffsetB + i * Float.BYTES,
+                    ByteOrder.LITTLE_ENDIAN);
+            sum = va.mul(vb).add(sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += a[i] * b.getFloat(byteOffsetB + i * Float.BYTES);
+        }
+        return result;
+    }
+
+    static float dot(ByteBuffer buffer, int byteOffsetA, int byteOffsetB, int length) {
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromByteBuffer(SPECIES, buffer, byteOffsetA + i * Float.BYTES,
+                    ByteOrder.LITTLE_ENDIAN);
+            FloatVector vb = FloatVector.fromByteBuffer(SPECIES, buffer, byteOffsetB + i * Float.BYTES,
+                    ByteOrder.LITTLE_ENDIAN);
+            sum = va.mul(vb).add(sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += buffer.getFloat(byteOffsetA + i * Float.BYTES) * buffer.getFloat(byteOffsetB + i * Float.BYTES);
+        }
+        return result;
+    }
+
+    static String describe() {
+        return SPECIES.toString();
+    }
+}
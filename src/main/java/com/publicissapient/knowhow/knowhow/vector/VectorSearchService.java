@@ -0,0 +1,852 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import com.publicissapient.knowhow.knowhow.exception.DatabaseServiceException;
+import com.publicissapient.knowhow.knowhow.service.PriorityScheduler;
+import com.publicissapient.knowhow.knowhow.service.WorkPriority;
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.store.embedding.EmbeddingMatch;
+import dev.langchain4j.store.embedding.EmbeddingSearchRequest;
+import dev.langchain4j.store.embedding.EmbeddingStore;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import javax.sql.DataSource;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Query-time vector search. When enabled, an in-process HNSW replica of the vector store is
+ * rebuilt from Postgres after every ingestion and saved as a {@link VectorSnapshot}; searches
+ * are answered from the memory-mapped snapshot without a database round trip. At startup a
+ * node opens the existing snapshot, so it is search-ready without reading the vector store,
+ * and rebuilds only if the snapshot is missing, unreadable or out of date. Whether it is out
+ * of date is decided by a store version in Postgres, bumped after each ingestion and recorded
+ * in the snapshot built from it; nodes poll the version and reopen the shared snapshot once
+ * another node has written the current one. Postgres stays the
+ * system of record: until a replica is loaded, or when it is disabled, searches go to the
+ * pgvector store. Small replicas are searched exactly with a parallel SIMD scan, which costs
+ * about a millisecond at that size and has perfect recall; larger ones use the HNSW graph.
+ * With two-stage search (off by default), the page vectors stored alongside (one per Confluence
+ * page, from its title, tags and lead section) are searched first and only the segments of the
+ * best pages are scored, which bounds the search space and keeps long pages from crowding out
+ * the rest, at the cost of missing segments on pages whose page vector ranks too low.
+ * Hybrid search fuses that ranking with a Postgres full-text ranking (see {@link HybridSearch}).
+ */
+@Service
+@DependsOn("segmentStore") // Creates the segment view and tsvector column read below
+public class VectorSearchService {
+
+    private static final String PAGE_TABLE = "page_embedding";
+    private static final String VERSION_TABLE = "vector_index_version";
+
+    // A node that sees a new store version with no snapshot for it leaves the rebuild to the
+    // node that ingested, unless that node has not written a snapshot after this long
+    private static final long UNCLAIMED_REBUILD_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    @Autowired
+    private DataSource dataSource;
+
+    @Autowired
+    private EmbeddingStore<TextSegment> embeddingStore;
+
+    @Autowired
+    private PriorityScheduler priorityScheduler;
+
+    @Value("${gravity.vector-index.enabled:true}")
+    private boolean enabled;
+
+    @Value("${gravity.vector-store.table-name}")
+    private String tableName;
+
+    @Value("${gravity.vector-store.dimension}")
+    private int dimension;
+
+    @Value("${gravity.vector-store.index-quantization:none}")
+    private String indexQuantization;
+
+    @Value("${gravity.vector-index.hnsw.m:16}")
+    private int m;
+
+    @Value("${gravity.vector-index.hnsw.ef-construction:100}")
+    private int efConstruction;
+
+    @Value("${gravity.vector-index.hnsw.ef-search:100}")
+    private int efSearch;
+
+    @Value("${gravity.vector-index.search-mode:auto}")
+    private String searchMode;
+
+    @Value("${gravity.vector-index.exact-max-size:20000}")
+    private int exactMaxSize;
+
+    @Value("${gravity.vector-index.two-stage.pages:0}")
+    private int twoStagePages;
+
+    @Value("${gravity.retrieval.hybrid.enabled:true}")
+    private boolean hybridEnabled;
+
+    @Value("${gravity.retrieval.hybrid.text-search-config:english}")
+    private String textSearchConfig;
+
+    @Value("${gravity.retrieval.hybrid.candidates:30}")
+    private int hybridCandidates;
+
+    @Value("${gravity.retrieval.hybrid.rrf-k:60}")
+    private int rrfK;
+
+    @Value("${gravity.vector-index.snapshot-path:${java.io.tmpdir}/knowhow-vector-index/vectors.snap}")
+    private String snapshotPath;
+
+    @Value("${gravity.vector-index.snapshot-poll-seconds:30}")
+    private int snapshotPollSeconds;
+
+    private final ExactSearch exactSearch = new ExactSearch(ForkJoinPool.commonPool());
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
+    private final ScheduledExecutorService refreshExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(WorkPriority.BACKGROUND.wrap(runnable), "vector-index-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private HybridSearch hybridSearch;
+    private volatile VectorSnapshot index;
+    private volatile String lastError;
+    private volatile long lastRefreshMillis;
+    private final AtomicLong twoStageSearches = new AtomicLong();
+    private final AtomicLong twoStageSegmentsScanned = new AtomicLong();
+
+    @PostConstruct
+    public void createSchema() {
+        try (Connection connection = dataSource.getConnection();
+                Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS " + VERSION_TABLE + " (id int PRIMARY KEY,"
+                    + " store_version bigint NOT NULL, snapshot_version bigint,"
+                    + " changed_at timestamptz NOT NULL DEFAULT now())");
+            statement.execute("INSERT INTO " + VERSION_TABLE + " (id, store_version) VALUES (1, 1)"
+                    + " ON CONFLICT (id) DO NOTHING");
+        } catch (SQLException e) {
+            System.err.println("Error creating the vector index version table: " + e.getMessage());
+        }
+
+        hybridSearch = new HybridSearch(dataSource, tableName, textSearchConfig, rrfK,
+                embeddingStore instanceof QuantizedPgVectorStore quantized ? quantized : null);
+        if (!hybridEnabled) {
+            return;
+        }
+        try {
+            hybridSearch.createIndex();
+        } catch (SQLException e) {
+            hybridEnabled = false;
+            System.err.println("Error creating the full-text index, hybrid search is disabled: " + e.getMessage());
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        if (!enabled) {
+            return;
+        }
+        refreshExecutor.execute(() -> {
+            Path file = Paths.get(snapshotPath);
+            if (Files.exists(file)) {
+                try {
+                    long start = System.currentTimeMillis();
+                    index = VectorSnapshot.open(file);
+                    System.out.println("DEBUG: Vector index opened from snapshot " + file + " with "
+                            + index.getIndex().size() + " segments in " + (System.currentTimeMillis() - start)
+                            + " ms");
+                } catch (Exception e) {
+                    System.err.println("Error opening vector snapshot, rebuilding it: " + e.getMessage());
+                }
+            }
+            try {
+                VectorSnapshot current = index;
+                if (current == null || current.getStoreVersion() != readVersion().storeVersion) {
+                    refreshAsync();
+                }
+            } catch (SQLException e) {
+                lastError = e.getMessage();
+                System.err.println("Error checking the vector snapshot against the vector store: " + e.getMessage());
+            }
+        });
+        if (snapshotPollSeconds > 0) {
+            refreshExecutor.scheduleWithFixedDelay(this::pollVersion, snapshotPollSeconds, snapshotPollSeconds,
+                    TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Record that the vector store changed (an ingestion finished) and rebuild the replica.
+     * Other nodes see the new store version on their next poll.
+     */
+    public void storeChanged() {
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("UPDATE " + VERSION_TABLE
+                        + " SET store_version = store_version + 1, changed_at = now() WHERE id = 1")) {
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            System.err.println("Error recording the vector store version: " + e.getMessage());
+        }
+        refreshAsync();
+    }
+
+    /**
+     * Runs on the refresh thread, so never alongside a rebuild. When the store version moved
+     * past the replica's: switch to the shared snapshot if another node has written it for
+     * that version, rebuild locally if that snapshot is not on this node's volume, and
+     * otherwise wait for the node that ingested to write it.
+     */
+    private void pollVersion() {
+        try {
+            StoreVersion version = readVersion();
+            VectorSnapshot current = index;
+            if (current != null && current.getStoreVersion() == version.storeVersion) {
+                return;
+            }
+            if (version.snapshotVersion == version.storeVersion) {
+                Path file = Paths.get(snapshotPath);
+                try {
+                    VectorSnapshot shared = VectorSnapshot.open(file);
+                    if (shared.getStoreVersion() == version.storeVersion) {
+                        index = shared;
+                        System.out.println("DEBUG: Vector index reopened from snapshot " + file
+                                + " for store version " + version.storeVersion);
+                        return;
+                    }
+                } catch (Exception e) {
+                    System.err.println("Error opening the shared vector snapshot, rebuilding it: " + e.getMessage());
+                }
+                refreshAsync();
+            } else if (current == null || version.changedMillisAgo > UNCLAIMED_REBUILD_MILLIS) {
+                refreshAsync();
+            }
+        } catch (SQLException e) {
+            lastError = e.getMessage();
+            System.err.println("Error polling the vector store version: " + e.getMessage());
+        }
+    }
+
+    private StoreVersion readVersion() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT store_version, snapshot_version,"
+                        + " (extract(epoch FROM now() - changed_at) * 1000)::bigint FROM " + VERSION_TABLE
+                        + " WHERE id = 1");
+                ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+                throw new SQLException("No row in " + VERSION_TABLE);
+            }
+            StoreVersion version = new StoreVersion();
+            version.storeVersion = resultSet.getLong(1);
+            version.snapshotVersion = resultSet.getObject(2) == null ? -1 : resultSet.getLong(2);
+            version.changedMillisAgo = resultSet.getLong(3);
+            return version;
+        }
+    }
+
+    /**
+     * Mark the snapshot for storeVersion as written, unless the store changed again meanwhile.
+     */
+    private void recordSnapshotVersion(long storeVersion) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("UPDATE " + VERSION_TABLE
+                        + " SET snapshot_version = ? WHERE id = 1 AND store_version = ?")) {
+            statement.setLong(1, storeVersion);
+            statement.setLong(2, storeVersion);
+            statement.executeUpdate();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * Rebuild the replica from the vector store in the background and save it as the new
+     * snapshot. Searches keep using the previous replica until the new one is complete. Requests made while a rebuild is running
+     * are coalesced into one more rebuild.
+     */
+    public void refreshAsync() {
+        if (enabled && refreshQueued.compareAndSet(false, true)) {
+            refreshExecutor.execute(() -> {
+                refreshQueued.set(false);
+                refresh();
+            });
+        }
+    }
+
+    /**
+     * Find the segments most similar to the embedding. Scores are relevance scores in [0, 1]
+     * computed from cosine similarity, as returned by the pgvector store.
+     */
+    public List<EmbeddingMatch<TextSegment>> findRelevant(Embedding embedding, int maxResults, double minScore) {
+        VectorSnapshot current = index;
+        if (current == null) {
+            return priorityScheduler.call(PriorityScheduler.Resource.DATABASE,
+                    () -> withSegments(embeddingStore.search(EmbeddingSearchRequest.builder()
+                            .queryEmbedding(embedding)
+                            .maxResults(maxResults)
+                            .minScore(minScore)
+                            .build()).matches()));
+        }
+
+        HnswIndex hnsw = current.getIndex();
+        Hits hits = search(current, embedding.vector(), maxResults);
+        List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(hits.size());
+        for (int i = 0; i < hits.size(); i++) {
+            double score = (hits.score(i) + 1.0) / 2.0;
+            if (score < minScore) {
+                break;
+            }
+            int node = hits.node(i);
+            TextSegment segment = TextSegment.from(current.text(node), PgVectorText.metadata(current.metadata(node)));
+            matches.add(new EmbeddingMatch<>(score, current.id(node), Embedding.from(hnsw.vector(node)), segment));
+        }
+        return matches;
+    }
+
+    /**
+     * Find segments by both meaning and exact terms: the vector ranking (from the replica when
+     * loaded) and the full-text ranking of the query are fused by reciprocal rank in one
+     * database round trip. Scores are fused RRF scores, not similarities. Only ids, scores and
+     * tags are returned; load the text of the hits that are kept with {@link #loadSegments}.
+     * Falls back to {@link #findRelevant} when hybrid search is disabled or fails.
+     */
+    public List<SegmentHit> findHybrid(String query, Embedding embedding, int maxResults) {
+        if (!hybridEnabled) {
+            return toHits(findRelevant(embedding, maxResults, 0.0));
+        }
+        VectorSnapshot current = index;
+        int candidates = Math.max(hybridCandidates, maxResults);
+        try {
+            return priorityScheduler.call(PriorityScheduler.Resource.DATABASE, () -> {
+                try {
+                    if (current == null) {
+                        return hybridSearch.search(query, embedding.vector(), candidates, maxResults);
+                    }
+                    Hits hits = search(current, embedding.vector(), candidates);
+                    List<String> rankedIds = new ArrayList<>(hits.size());
+                    Map<String, Integer> nodes = new HashMap<>();
+                    for (int i = 0; i < hits.size(); i++) {
+                        rankedIds.add(current.id(hits.node(i)));
+                        nodes.put(rankedIds.get(i), hits.node(i));
+                    }
+                    List<SegmentHit> fused = hybridSearch.search(query, rankedIds, candidates, maxResults);
+                    // Segments the replica holds are read from the mapped snapshot, not the database
+                    for (SegmentHit hit : fused) {
+                        Integer node = nodes.get(hit.getId());
+                        if (node != null) {
+                            hit.setSegment(TextSegment.from(current.text(node),
+                                    PgVectorText.metadata(current.metadata(node))));
+                        }
+                    }
+                    return fused;
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            System.err.println("Error in hybrid search, using vector search only: " + e.getMessage());
+            return toHits(findRelevant(embedding, maxResults, 0.0));
+        }
+    }
+
+    /**
+     * Text and metadata of the given hits, in the same order, read in one batched query for the
+     * hits that do not carry their segment yet. Hits whose segment no longer exists are dropped.
+     */
+    public List<EmbeddingMatch<TextSegment>> loadSegments(List<SegmentHit> hits) {
+        List<String> missing = new ArrayList<>();
+        for (SegmentHit hit : hits) {
+            if (hit.getSegment() == null) {
+                missing.add(hit.getId());
+            }
+        }
+        Map<String, TextSegment> loaded = missing.isEmpty() ? Map.of()
+                : priorityScheduler.call(PriorityScheduler.Resource.DATABASE, () -> {
+                    try {
+                        return hybridSearch.load(missing);
+                    } catch (SQLException e) {
+                        throw new DatabaseServiceException("Could not load the retrieved segments", e);
+                    }
+                });
+
+        List<EmbeddingMatch<TextSegment>> matches = new ArrayList<>(hits.size());
+        for (SegmentHit hit : hits) {
+            TextSegment segment = hit.getSegment() != null ? hit.getSegment() : loaded.get(hit.getId());
+            if (segment != null) {
+                matches.add(new EmbeddingMatch<>(hit.getScore(), hit.getId(), null, segment));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * The pgvector store reads segment rows directly, so segments stored as offsets come back
+     * without text; read those through the segment view.
+     */
+    private List<EmbeddingMatch<TextSegment>> withSegments(List<EmbeddingMatch<TextSegment>> matches) {
+        List<String> missing = new ArrayList<>();
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            if (match.embedded() == null) {
+                missing.add(match.embeddingId());
+            }
+        }
+        if (missing.isEmpty()) {
+            return matches;
+        }
+        Map<String, TextSegment> loaded;
+        try {
+            loaded = hybridSearch.load(missing);
+        } catch (SQLException e) {
+            throw new DatabaseServiceException("Could not load the retrieved segments", e);
+        }
+        List<EmbeddingMatch<TextSegment>> complete = new ArrayList<>(matches.size());
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            TextSegment segment = match.embedded() != null ? match.embedded() : loaded.get(match.embeddingId());
+            if (segment != null) {
+                complete.add(new EmbeddingMatch<>(match.score(), match.embeddingId(), match.embedding(), segment));
+            }
+        }
+        return complete;
+    }
+
+    private static List<SegmentHit> toHits(List<EmbeddingMatch<TextSegment>> matches) {
+        List<SegmentHit> hits = new ArrayList<>(matches.size());
+        for (EmbeddingMatch<TextSegment> match : matches) {
+            SegmentHit hit = new SegmentHit(match.embeddingId(), match.score(),
+                    match.embedded().metadata().getString("tags"));
+            hit.setSegment(match.embedded());
+            hits.add(hit);
+        }
+        return hits;
+    }
+
+    private Hits search(VectorSnapshot current, float[] query, int maxResults) {
+        HnswIndex hnsw = current.getIndex();
+        if (useTwoStageSearch(current)) {
+            return searchPagesFirst(current, query, maxResults);
+        }
+        if (useExactSearch(hnsw.size())) {
+            return exactSearch.search(hnsw.vectors(), query, maxResults);
+        }
+        return hnsw.search(query, maxResults, Math.max(efSearch, maxResults));
+    }
+
+    /**
+     * Pick the pages closest to the query, then score the segments of those pages only.
+     */
+    private Hits searchPagesFirst(VectorSnapshot current, float[] query, int maxResults) {
+        Hits pages = exactSearch.search(current.getPageVectors(), query, twoStagePages);
+        long scanned = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            scanned += current.pageEnd(pages.node(i)) - current.pageStart(pages.node(i));
+        }
+        twoStageSearches.incrementAndGet();
+        twoStageSegmentsScanned.addAndGet(scanned);
+        return exactSearch.searchPages(current.getIndex().vectors(), pages, current.pageStarts(), query, maxResults);
+    }
+
+    private boolean useTwoStageSearch(VectorSnapshot current) {
+        return twoStagePages > 0 && current.pageCount() > 0;
+    }
+
+    /**
+     * Search mode "exact" always scans, "hnsw" always walks the graph, and "auto" scans while
+     * the replica holds at most exact-max-size vectors.
+     */
+    private boolean useExactSearch(int size) {
+        if ("exact".equalsIgnoreCase(searchMode)) {
+            return true;
+        }
+        return !"hnsw".equalsIgnoreCase(searchMode) && size <= exactMaxSize;
+    }
+
+    public IndexStats getStats() {
+        IndexStats stats = new IndexStats();
+        stats.setEnabled(enabled);
+        stats.setLastError(lastError);
+        stats.setSnapshotPath(snapshotPath);
+        stats.setLastRefreshMillis(lastRefreshMillis);
+        stats.setSimd(PackedVectors.simdDescription());
+        VectorSnapshot current = index;
+        if (current != null) {
+            stats.setReady(true);
+            stats.setSize(current.getIndex().size());
+            stats.setDimension(current.getIndex().dimension());
+            stats.setHeapBytes(current.getIndex().heapBytes());
+            stats.setSnapshotBytes(current.getFileBytes());
+            stats.setSnapshotCreatedAt(current.getCreatedAt());
+            stats.setStoreVersion(current.getStoreVersion());
+            stats.setPages(current.pageCount());
+            stats.setSearchMode(useTwoStageSearch(current) ? "two-stage"
+                    : useExactSearch(current.getIndex().size()) ? "exact" : "hnsw");
+        }
+        long searches = twoStageSearches.get();
+        if (searches > 0) {
+            stats.setAverageSegmentsScanned((double) twoStageSegmentsScanned.get() / searches);
+        }
+        return stats;
+    }
+
+    /**
+     * On-disk size of the vector store table, its TOAST data and each of its indexes, to
+     * compare index quantization modes, and of the document table the segments point into.
+     */
+    public StoreStats getStoreStats() throws SQLException {
+        StoreStats stats = new StoreStats();
+        stats.setTable(tableName);
+        stats.setIndexQuantization(indexQuantization);
+        stats.setRows(countRows());
+        try (Connection connection = dataSource.getConnection()) {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT pg_relation_size(c.oid), COALESCE(pg_total_relation_size(NULLIF(c.reltoastrelid, 0)), 0),"
+                            + " pg_indexes_size(c.oid), pg_total_relation_size(c.oid)"
+                            + " FROM pg_class c WHERE c.oid = to_regclass(?)")) {
+                statement.setString(1, tableName);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    if (resultSet.next()) {
+                        stats.setTableBytes(resultSet.getLong(1));
+                        stats.setToastBytes(resultSet.getLong(2));
+                        stats.setIndexBytes(resultSet.getLong(3));
+                        stats.setTotalBytes(resultSet.getLong(4));
+                    }
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT indexrelid::regclass::text, pg_relation_size(indexrelid) FROM pg_index"
+                            + " WHERE indrelid = to_regclass(?) ORDER BY 1")) {
+                statement.setString(1, tableName);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        stats.getIndexes().put(resultSet.getString(1), resultSet.getLong(2));
+                    }
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT count(*) FILTER (WHERE text IS NULL) FROM " + tableName);
+                    ResultSet resultSet = statement.executeQuery()) {
+                resultSet.next();
+                stats.setOffsetSegments(resultSet.getLong(1));
+            }
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT count(*), pg_total_relation_size(to_regclass(?)) FROM " + SegmentStore.DOCUMENT_TABLE)) {
+                statement.setString(1, SegmentStore.DOCUMENT_TABLE);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    resultSet.next();
+                    stats.setDocuments(resultSet.getLong(1));
+                    stats.setDocumentBytes(resultSet.getLong(2));
+                }
+            }
+        }
+        return stats;
+    }
+
+    private void refresh() {
+        try {
+            long start = System.currentTimeMillis();
+            // Read before the rows, so changes made during the rebuild leave the snapshot behind
+            long storeVersion = readVersion().storeVersion;
+            StoreRows rows = readVectorStore();
+            HnswIndex hnsw = new HnswIndex(rows.vectors, m, efConstruction);
+            PackedVectors pageVectors = pageVectors(hnsw, rows.pageIds, rows.pageStarts);
+            long built = System.currentTimeMillis();
+
+            Path file = Paths.get(snapshotPath);
+            VectorSnapshot.write(file, storeVersion, hnsw, rows.ids, rows.texts, rows.metadata, pageVectors,
+                    rows.pageStarts);
+            index = VectorSnapshot.open(file);
+            recordSnapshotVersion(storeVersion);
+            lastRefreshMillis = System.currentTimeMillis() - start;
+            lastError = null;
+            System.out.println("DEBUG: Vector index rebuilt with " + hnsw.size() + " segments of "
+                    + pageVectors.size() + " pages (read and build "
+                    + (built - start) + " ms, snapshot " + (System.currentTimeMillis() - built) + " ms, "
+                    + index.getFileBytes() / (1024 * 1024) + " MB)");
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            System.err.println("Error rebuilding vector index, searches keep using "
+                    + (index == null ? "the vector store" : "the previous index") + ": " + e.getMessage());
+        }
+    }
+
+    private long countRows() throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement("SELECT count(*) FROM " + tableName);
+                ResultSet resultSet = statement.executeQuery()) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    /**
+     * Read every segment, grouped by page so the segments of a page become consecutive nodes.
+     * Nothing is sorted: the segments per page are counted first, which fixes each page's
+     * range of nodes, and the rows are then streamed in table order into the free slot of
+     * their page. Offset segments are sliced from their document's text here rather than
+     * through the segment view, and the documents are read once instead of once per segment.
+     * All three reads run in one repeatable-read transaction, so they see the same rows.
+     */
+    private StoreRows readVectorStore() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            int isolation = connection.getTransactionIsolation();
+            // A cursor is only used outside auto-commit; rows are then fetched in pages
+            connection.setAutoCommit(false);
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try {
+                Map<String, Integer> pages = new HashMap<>();
+                List<String> pageIds = new ArrayList<>();
+                List<Integer> pageSizes = new ArrayList<>();
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT metadata->>'page_id', count(*) FROM " + tableName + " GROUP BY 1");
+                        ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        pages.put(resultSet.getString(1), pageIds.size());
+                        pageIds.add(resultSet.getString(1));
+                        pageSizes.add(resultSet.getInt(2));
+                    }
+                }
+                StoreRows rows = new StoreRows(pageIds, pageSizes, dimension);
+                Map<String, DocumentText> documents = readDocuments(connection);
+
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT embedding_id, embedding::text, text, metadata::text FROM " + tableName)) {
+                    statement.setFetchSize(1000);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            Map<String, Object> metadata = PgVectorText.map(resultSet.getString(4));
+                            Object pageId = metadata.get("page_id");
+                            Integer page = pages.get(pageId == null ? null : pageId.toString());
+                            if (page == null) {
+                                throw new IllegalStateException("Segment of an uncounted page " + pageId);
+                            }
+                            DocumentText document = documents.get((String) metadata.get("document_id"));
+                            String text = resultSet.getString(3);
+                            if (text == null && document != null) {
+                                text = document.slice((Integer) metadata.get("start"), (Integer) metadata.get("end"));
+                            }
+                            Map<String, Object> merged = new HashMap<>();
+                            if (document != null) {
+                                merged.putAll(document.metadata);
+                            }
+                            merged.putAll(metadata);
+                            merged.remove("start");
+                            merged.remove("end");
+                            rows.add(page, resultSet.getString(1),
+                                    PgVectorText.parseVector(resultSet.getString(2), dimension), text,
+                                    PgVectorText.json(merged));
+                        }
+                    }
+                }
+                return rows;
+            } finally {
+                connection.rollback();
+                connection.setTransactionIsolation(isolation);
+                connection.setAutoCommit(true);
+            }
+        }
+    }
+
+    private Map<String, DocumentText> readDocuments(Connection connection) throws SQLException {
+        Map<String, DocumentText> documents = new HashMap<>();
+        try (PreparedStatement statement = connection.prepareStatement("SELECT document_id::text, text,"
+                + " metadata::text FROM " + SegmentStore.DOCUMENT_TABLE)) {
+            statement.setFetchSize(100);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    documents.put(resultSet.getString(1),
+                            new DocumentText(resultSet.getString(2), PgVectorText.map(resultSet.getString(3))));
+                }
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * One vector per page: the stored page embedding, or for pages ingested without one the
+     * normalized mean of their segment vectors.
+     */
+    private PackedVectors pageVectors(HnswIndex hnsw, String[] pageIds, int[] pageStarts) throws SQLException {
+        Map<String, float[]> pageEmbeddings = readPageEmbeddings();
+        PackedVectors pageVectors = new PackedVectors(dimension, Math.max(1, pageIds.length));
+        for (int page = 0; page < pageIds.length; page++) {
+            float[] vector = pageIds[page] == null ? null : pageEmbeddings.get(pageIds[page]);
+            if (vector == null || vector.length != dimension) {
+                vector = new float[dimension];
+                for (int node = pageStarts[page]; node < pageStarts[page + 1]; node++) {
+                    float[] segment = hnsw.vector(node);
+                    for (int i = 0; i < dimension; i++) {
+                        vector[i] += segment[i];
+                    }
+                }
+                double norm = 0;
+                for (float value : vector) {
+                    norm += value * value;
+                }
+                for (int i = 0; i < dimension && norm > 0; i++) {
+                    vector[i] /= (float) Math.sqrt(norm);
+                }
+            }
+            pageVectors.add(vector);
+        }
+        return pageVectors;
+    }
+
+    private Map<String, float[]> readPageEmbeddings() throws SQLException {
+        Map<String, float[]> pageEmbeddings = new HashMap<>();
+        try (Connection connection = dataSource.getConnection();
+                PreparedStatement statement = connection.prepareStatement(
+                        "SELECT page_id, embedding::text FROM " + PAGE_TABLE);
+                ResultSet resultSet = statement.executeQuery()) {
+            while (resultSet.next()) {
+                pageEmbeddings.put(resultSet.getString(1), PgVectorText.parseVector(resultSet.getString(2), dimension));
+            }
+        }
+        return pageEmbeddings;
+    }
+
+    /**
+     * Segments read for a rebuild, placed by page: page p owns the nodes from pageStarts[p] up
+     * to pageStarts[p + 1], filled in the order its rows arrive.
+     */
+    private static class StoreRows {
+        private final String[] pageIds;
+        private final int[] pageStarts;
+        private final int[] filled;
+        private final String[] ids;
+        private final String[] texts;
+        private final String[] metadata;
+        private final PackedVectors vectors;
+
+        private StoreRows(List<String> pageIds, List<Integer> pageSizes, int dimension) {
+            this.pageIds = pageIds.toArray(new String[0]);
+            this.pageStarts = new int[pageIds.size() + 1];
+            for (int page = 0; page < pageIds.size(); page++) {
+                pageStarts[page + 1] = pageStarts[page] + pageSizes.get(page);
+            }
+            int count = pageStarts[pageIds.size()];
+            this.filled = new int[pageIds.size()];
+            this.ids = new String[count];
+            this.texts = new String[count];
+            this.metadata = new String[count];
+            this.vectors = new PackedVectors(dimension, count);
+        }
+
+        private void add(int page, String id, float[] vector, String text, String metadataJson) {
+            int node = pageStarts[page] + filled[page]++;
+            if (node >= pageStarts[page + 1]) {
+                throw new IllegalStateException("More segments than counted for page " + pageIds[page]);
+            }
+            ids[node] = id;
+            texts[node] = text;
+            metadata[node] = metadataJson;
+            vectors.set(node, vector);
+        }
+    }
+
+    /**
+     * A document's text and metadata. Segment offsets count code points, as Postgres does.
+     */
+    private static class DocumentText {
+        private final String text;
+        private final Map<String, Object> metadata;
+        private final boolean singleCharCodePoints;
+
+        private DocumentText(String text, Map<String, Object> metadata) {
+            this.text = text;
+            this.metadata = metadata;
+            this.singleCharCodePoints = text.length() == text.codePointCount(0, text.length());
+        }
+
+        private String slice(Integer start, Integer end) {
+            if (start == null || end == null) {
+                return null;
+            }
+            return singleCharCodePoints
+                    ? text.substring(start, end)
+                    : text.substring(text.offsetByCodePoints(0, start), text.offsetByCodePoints(0, end));
+        }
+    }
+
+    private static class StoreVersion {
+        private long storeVersion;
+        // -1 until a snapshot has been written
+        private long snapshotVersion;
+        private long changedMillisAgo;
+    }
+
+    @Data
+    public static class IndexStats {
+        private boolean enabled;
+        private boolean ready;
+        private int size;
+        private int dimension;
+        private String searchMode;
+        private String simd;
+        private int pages;
+        private double averageSegmentsScanned;
+        private long heapBytes;
+        private String snapshotPath;
+        private long snapshotBytes;
+        private long snapshotCreatedAt;
+        private long storeVersion;
+        private long lastRefreshMillis;
+        private String lastError;
+    }
+
+    @Data
+    public static class StoreStats {
+        private String table;
+        private String indexQuantization;
+        private long rows;
+        private long tableBytes;
+        private long toastBytes;
+        private long indexBytes;
+        private long totalBytes;
+        private Map<String, Long> indexes = new LinkedHashMap<>();
+        private long offsetSegments; // Segments sliced from their document instead of storing text
+        private long documents;
+        private long documentBytes; // Document table including TOAST and primary key
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary snapshot of the search replica, opened with memory-mapped I/O so a node can serve
+ * searches without reading the vector store or rebuilding the graph, and the vectors, texts
+ * and metadata stay outside the Java heap.
+ * <p>
+ * Layout (little-endian):
+ * <pre>
+ * header   72 bytes: magic, format version, created-at, count, dimension, HNSW m,
+ *          ef-construction, entry point, max level, graph offset, segments offset, CRC32C,
+ *          pages offset, store version
+ * vectors  count x dimension float32
+ * graph    int node offsets [count + 1], then per node: level count, and per level the
+ *          neighbour count followed by the neighbours
+ * segments int record offsets [count + 1], then per segment: id, text and metadata as
+ *          length-prefixed UTF-8 (length -1 for null)
+ * pages    int page count, int first nodes [pages + 1] (the segments of a page are stored
+ *          next to each other), then pages x dimension float32 page vectors
+ * </pre>
+ * The CRC covers everything after the header. The store version is the vector store version
+ * the snapshot was built from (see {@link VectorSearchService}), so a node can tell whether a
+ * snapshot is current without reading the store. Snapshots are written to a temporary file and
+ * moved over the previous one atomically; nodes that still map the old file keep reading it.
+ */
+public class VectorSnapshot {
+
+    private static final int MAGIC = 0x4B485653; // "KHVS"
+    public static final int FORMAT_VERSION = 3;
+    private static final int HEADER_BYTES = 72;
+    private static final int CRC_OFFSET = 56;
+    private static final int PAGES_OFFSET = 60;
+    private static final int STORE_VERSION_OFFSET = 64;
+
+    private final Path file;
+    private final MappedByteBuffer mapped;
+    private final long createdAt;
+    private final long storeVersion;
+    private final HnswIndex index;
+    private final int segmentsOffset;
+    private final int segmentDataOffset;
+    private final PackedVectors pageVectors;
+    private final int[] pageStarts;
+
+    private VectorSnapshot(Path file, MappedByteBuffer mapped, long createdAt, long storeVersion, HnswIndex index,
+            int segmentsOffset, int segmentDataOffset, PackedVectors pageVectors, int[] pageStarts) {
+        this.file = file;
+        this.mapped = mapped;
+        this.createdAt = createdAt;
+        this.storeVersion = storeVersion;
+        this.index = index;
+        this.segmentsOffset = segmentsOffset;
+        this.segmentDataOffset = segmentDataOffset;
+        this.pageVectors = pageVectors;
+        this.pageStarts = pageStarts;
+    }
+
+    /**
+     * Write a snapshot of the index, its segments and its pages and atomically replace the
+     * target file. Page p holds the nodes from pageStarts[p] up to pageStarts[p + 1].
+     */
+    public static void write(Path target, long storeVersion, HnswIndex index, String[] ids, String[] texts,
+            String[] metadata, PackedVectors pageVectors, int[] pageStarts) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeTo(channel, storeVersion, index, ids, texts, metadata, pageVectors, pageStarts);
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeTo(FileChannel channel, long storeVersion, HnswIndex index, String[] ids,
+            String[] texts, String[] metadata, PackedVectors pageVectors, int[] pageStarts) throws IOException {
+        int count = index.size();
+        int dimension = index.dimension();
+        PackedVectors vectors = index.vectors();
+        SectionWriter out = new SectionWriter(channel, HEADER_BYTES);
+
+        for (int node = 0; node < count; node++) {
+            for (float value : vectors.vector(node)) {
+                out.putFloat(value);
+            }
+        }
+
+        long graphOffset = out.position();
+        int offset = 0;
+        for (int node = 0; node < count; node++) {
+            out.putInt(offset);
+            offset += 1;
+            for (int[] level : index.links(node)) {
+                offset += 1 + level[0];
+            }
+        }
+        out.putInt(offset);
+        for (int node = 0; node < count; node++) {
+            int[][] levels = index.links(node);
+            out.putInt(levels.length);
+            for (int[] level : levels) {
+                for (int i = 0; i <= level[0]; i++) {
+                    out.putInt(level[i]);
+                }
+            }
+        }
+
+        long segmentsOffset = out.position();
+        byte[][] encoded = new byte[3][];
+        int recordOffset = 0;
+        for (int node = 0; node < count; node++) {
+            out.putInt(recordOffset);
+            recordOffset += 12 + utf8Length(ids[node]) + utf8Length(texts[node]) + utf8Length(metadata[node]);
+        }
+        out.putInt(recordOffset);
+        for (int node = 0; node < count; node++) {
+            encoded[0] = utf8(ids[node]);
+            encoded[1] = utf8(texts[node]);
+            encoded[2] = utf8(metadata[node]);
+            for (byte[] value : encoded) {
+                out.putInt(value == null ? -1 : value.length);
+                if (value != null) {
+                    out.put(value);
+                }
+            }
+        }
+
+        long pagesOffset = out.position();
+        out.putInt(pageVectors.size());
+        for (int start : pageStarts) {
+            out.putInt(start);
+        }
+        for (int page = 0; page < pageVectors.size(); page++) {
+            for (float value : pageVectors.vector(page)) {
+                out.putFloat(value);
+            }
+        }
+        long crc = out.finish();
+        if (out.position() > Integer.MAX_VALUE) {
+            throw new IOException("Vector snapshot would exceed 2 GB");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC);
+        header.putInt(FORMAT_VERSION);
+        header.putLong(System.currentTimeMillis());
+        header.putInt(count);
+        header.putInt(dimension);
+        header.putInt(index.m());
+        header.putInt(index.efConstruction());
+        header.putInt(index.entryPoint());
+        header.putInt(index.maxLevel());
+        header.putLong(graphOffset);
+        header.putLong(segmentsOffset);
+        header.putInt(CRC_OFFSET, (int) crc);
+        header.putInt(PAGES_OFFSET, (int) pagesOffset);
+        header.putLong(STORE_VERSION_OFFSET, storeVersion);
+        header.rewind();
+        channel.write(header, 0);
+    }
+
+    /**
+     * Map a snapshot file and check its format version and checksum.
+     *
+     * @throws IOException if the file is missing, of another format version or corrupt
+     */
+    public static VectorSnapshot open(Path file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a vector snapshot: " + file);
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a vector snapshot: " + file);
+        }
+        int version = buffer.getInt(4);
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Vector snapshot format " + version + " is not supported (expected "
+                    + FORMAT_VERSION + ")");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().position(HEADER_BYTES));
+        if ((int) crc.getValue() != buffer.getInt(CRC_OFFSET)) {
+            throw new IOException("Vector snapshot checksum mismatch: " + file);
+        }
+
+        long createdAt = buffer.getLong(8);
+        long storeVersion = buffer.getLong(STORE_VERSION_OFFSET);
+        int count = buffer.getInt(16);
+        int dimension = buffer.getInt(20);
+        int m = buffer.getInt(24);
+        int efConstruction = buffer.getInt(28);
+        int entryPoint = buffer.getInt(32);
+        int maxLevel = buffer.getInt(36);
+        int graphOffset = (int) buffer.getLong(40);
+        int segmentsOffset = (int) buffer.getLong(48);
+
+        PackedVectors vectors = new PackedVectors(dimension, count, buffer.duplicate().position(HEADER_BYTES));
+
+        // The graph is small next to the vectors and is walked on every search, so it is read
+        // onto the heap
+        int graphData = graphOffset + (count + 1) * Integer.BYTES;
+        int[][][] links = new int[count][][];
+        for (int node = 0; node < count; node++) {
+            int position = graphData + buffer.getInt(graphOffset + node * Integer.BYTES) * Integer.BYTES;
+            int levelCount = buffer.getInt(position);
+            position += Integer.BYTES;
+            links[node] = new int[levelCount][];
+            for (int level = 0; level < levelCount; level++) {
+                int neighbours = buffer.getInt(position);
+                int[] list = new int[1 + (level == 0 ? m * 2 : m)];
+                for (int i = 0; i <= neighbours; i++) {
+                    list[i] = buffer.getInt(position);
+                    position += Integer.BYTES;
+                }
+                links[node][level] = list;
+            }
+        }
+
+        HnswIndex index = new HnswIndex(vectors, links, entryPoint, maxLevel, m, efConstruction);
+
+        int pagesOffset = buffer.getInt(PAGES_OFFSET);
+        int pageCount = buffer.getInt(pagesOffset);
+        int[] pageStarts = new int[pageCount + 1];
+        for (int page = 0; page <= pageCount; page++) {
+            pageStarts[page] = buffer.getInt(pagesOffset + (page + 1) * Integer.BYTES);
+        }
+        PackedVectors pageVectors = new PackedVectors(dimension, pageCount,
+                buffer.duplicate().position(pagesOffset + (pageCount + 2) * Integer.BYTES));
+
+        return new VectorSnapshot(file, mapped, createdAt, storeVersion, index, segmentsOffset,
+                segmentsOffset + (count + 1) * Integer.BYTES, pageVectors, pageStarts);
+    }
+
+    public HnswIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * One vector per page, searched to pick the pages whose segments are then scored.
+     */
+    public PackedVectors getPageVectors() {
+        return pageVectors;
+    }
+
+    public int pageCount() {
+        return pageVectors.size();
+    }
+
+    public int pageStart(int page) {
+        return pageStarts[page];
+    }
+
+    public int pageEnd(int page) {
+        return pageStarts[page + 1];
+    }
+
+    /**
+     * First node of every page, followed by the node count; shared, not copied.
+     */
+    int[] pageStarts() {
+        return pageStarts;
+    }
+
+    public String id(int node) {
+        return field(node, 0);
+    }
+
+    public String text(int node) {
+        return field(node, 1);
+    }
+
+    public String metadata(int node) {
+        return field(node, 2);
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public long getStoreVersion() {
+        return storeVersion;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getFileBytes() {
+        return mapped.capacity();
+    }
+
+    /**
+     * Decode one field of a segment record straight from the mapped file.
+     */
+    private String field(int node, int field) {
+        ByteBuffer buffer = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = segmentDataOffset + buffer.getInt(segmentsOffset + node * Integer.BYTES);
+        for (int i = 0; i < field; i++) {
+            int length = buffer.getInt(position);
+            position += Integer.BYTES + Math.max(0, length);
+        }
+        int length = buffer.getInt(position);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(position + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int utf8Length(String value) {
+        return value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * Buffered little-endian writer that keeps a running CRC of everything it writes.
+     */
+    private static class SectionWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private final CRC32C crc = new CRC32C();
+        private long position;
+
+        private SectionWriter(FileChannel channel, long start) {
+            this.channel = channel;
+            this.position = start;
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putFloat(float value) throws IOException {
+            ensure(Float.BYTES);
+            buffer.putFloat(value);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        long position() {
+            return position + buffer.position();
+        }
+
+        /**
+         * Flush the remaining bytes and return the CRC of everything written.
+         */
+        long finish() throws IOException {
+            flush();
+            return crc.getValue();
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+}
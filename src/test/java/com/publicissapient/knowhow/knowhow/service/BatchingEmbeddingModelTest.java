@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks BatchingEmbeddingModel against the langchain4j single-text model it replaces, across
+ * session pool sizes, and the recall of the int8 model against fp32.
+ */
+class BatchingEmbeddingModelTest {
+
+    private static final String[] SUBJECTS = {"The release train", "Our sprint velocity", "The build pipeline",
+            "The defect backlog", "Customer onboarding", "The data migration", "Code review turnaround",
+            "The API gateway", "Test coverage", "The on-call rotation"};
+    private static final String[] VERBS = {"improved after", "slowed down because of", "was blocked by",
+            "depends on", "is tracked against", "was reworked for"};
+    private static final String[] OBJECTS = {"the new Jira workflow", "flaky integration tests",
+            "the Confluence migration", "a missing feature toggle", "the quarterly planning session",
+            "a database upgrade", "capacity changes in the team", "the security audit"};
+
+    private static AllMiniLmL6V2EmbeddingModel reference;
+    private static BatchingEmbeddingModel fp32;
+    private static BatchingEmbeddingModel pooled;
+    private static BatchingEmbeddingModel int8;
+    private static List<TextSegment> corpus;
+
+    @BeforeAll
+    static void setUp() {
+        reference = new AllMiniLmL6V2EmbeddingModel();
+        fp32 = model(BatchingEmbeddingModel.MODEL, 1);
+        pooled = model(BatchingEmbeddingModel.MODEL, 3);
+        int8 = model(BatchingEmbeddingModel.QUANTIZED_MODEL, 1);
+        corpus = corpus(200, 42);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        fp32.close();
+        pooled.close();
+        int8.close();
+    }
+
+    @Test
+    void matchesSingleTextModel() {
+        List<TextSegment> texts = new ArrayList<>(corpus.subList(0, 40));
+        texts.add(TextSegment.from("x"));
+        texts.add(TextSegment.from(longText()));
+
+        List<Embedding> expected = reference.embedAll(texts).content();
+        List<Embedding> actual = fp32.embedAll(texts).content();
+
+        for (int i = 0; i < texts.size(); i++) {
+            assertThat(cosine(expected.get(i), actual.get(i))).as("text %d", i).isGreaterThan(0.999);
+        }
+    }
+
+    @Test
+    void sessionPoolMatchesSingleSession() throws Exception {
+        List<Embedding> expected = fp32.embedAll(corpus).content();
+
+        // Concurrent callers so batches are split across sessions and mixed between callers
+        List<List<Embedding>> actual = IntStream.range(0, 4).parallel()
+                .mapToObj(i -> pooled.embedAll(corpus).content())
+                .toList();
+
+        for (List<Embedding> embeddings : actual) {
+            for (int i = 0; i < corpus.size(); i++) {
+                assertThat(cosine(expected.get(i), embeddings.get(i))).isGreaterThan(0.999);
+            }
+        }
+    }
+
+    @Test
+    void quantizedModelKeepsRecall() {
+        assertThat(recall(fp32, int8, corpus, corpus(20, 7), 10)).isGreaterThanOrEqualTo(0.8);
+    }
+
+    private static BatchingEmbeddingModel model(String name, int sessions) {
+        BatchingEmbeddingModel.Settings settings = new BatchingEmbeddingModel.Settings();
+        settings.setModel(name);
+        settings.setSessions(sessions);
+        settings.setIntraOpThreads(1);
+        settings.setBatchSize(8);
+        return new BatchingEmbeddingModel(settings);
+    }
+
+    /**
+     * Share of the exact model's top k documents per query that the approximate model also ranks
+     * in its top k, averaged over the queries.
+     */
+    static double recall(EmbeddingModel exact, EmbeddingModel approximate, List<TextSegment> documents,
+            List<TextSegment> queries, int k) {
+        List<Embedding> exactDocuments = exact.embedAll(documents).content();
+        List<Embedding> approximateDocuments = approximate.embedAll(documents).content();
+        List<Embedding> exactQueries = exact.embedAll(queries).content();
+        List<Embedding> approximateQueries = approximate.embedAll(queries).content();
+
+        double recall = 0;
+        for (int q = 0; q < queries.size(); q++) {
+            Set<Integer> truth = topK(exactQueries.get(q), exactDocuments, k);
+            Set<Integer> found = topK(approximateQueries.get(q), approximateDocuments, k);
+            found.retainAll(truth);
+            recall += (double) found.size() / k;
+        }
+        return recall / queries.size();
+    }
+
+    static List<TextSegment> corpus(int size, long seed) {
+        Random random = new Random(seed);
+        List<TextSegment> texts = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            StringBuilder text = new StringBuilder();
+            int sentences = 1 + random.nextInt(4);
+            for (int s = 0; s < sentences; s++) {
+                text.append(SUBJECTS[random.nextInt(SUBJECTS.length)]).append(' ')
+                        .append(VERBS[random.nextInt(VERBS.length)]).append(' ')
+                        .append(OBJECTS[random.nextInt(OBJECTS.length)]).append(". ");
+            }
+            texts.add(TextSegment.from(text.toString().trim()));
+        }
+        return texts;
+    }
+
+    // Longer than the 512-token model window, so it is split into windows and averaged
+    private static String longText() {
+        StringBuilder text = new StringBuilder();
+        for (TextSegment segment : corpus(120, 3)) {
+            text.append(segment.text()).append(' ');
+        }
+        return text.toString();
+    }
+
+    private static Set<Integer> topK(Embedding query, List<Embedding> documents, int k) {
+        Set<Integer> top = new HashSet<>();
+        IntStream.range(0, documents.size()).boxed()
+                .sorted(Comparator.comparingDouble(i -> -cosine(query, documents.get(i))))
+                .limit(k)
+                .forEach(top::add);
+        return top;
+    }
+
+    private static double cosine(Embedding a, Embedding b) {
+        float[] x = a.vector();
+        float[] y = b.vector();
+        double dot = 0;
+        double nx = 0;
+        double ny = 0;
+        for (int i = 0; i < x.length; i++) {
+            dot += x[i] * y[i];
+            nx += x[i] * x[i];
+            ny += y[i] * y[i];
+        }
+        return dot / Math.sqrt(nx * ny);
+    }
+}
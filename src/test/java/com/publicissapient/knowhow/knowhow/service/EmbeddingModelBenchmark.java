@@ -0,0 +1,108 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import dev.langchain4j.data.embedding.Embedding;
+import dev.langchain4j.data.segment.TextSegment;
+import dev.langchain4j.model.embedding.EmbeddingModel;
+import dev.langchain4j.model.embedding.onnx.allminilml6v2.AllMiniLmL6V2EmbeddingModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-query latency and ingestion-batch throughput of BatchingEmbeddingModel against the
+ * langchain4j single-text model ("reference"), for the fp32 and int8 models and session pool
+ * sizes. The recall of the int8 model against fp32 is printed during setup. Run with:
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=EmbeddingModelBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EmbeddingModelBenchmark {
+
+    @Param({"reference", BatchingEmbeddingModel.MODEL, BatchingEmbeddingModel.QUANTIZED_MODEL})
+    private String model;
+
+    @Param({"1", "2"})
+    private int sessions;
+
+    private EmbeddingModel embeddingModel;
+    private TextSegment query;
+    private List<TextSegment> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        if ("reference".equals(model)) {
+            embeddingModel = new AllMiniLmL6V2EmbeddingModel();
+        } else {
+            BatchingEmbeddingModel.Settings settings = new BatchingEmbeddingModel.Settings();
+            settings.setModel(model);
+            settings.setSessions(sessions);
+            embeddingModel = new BatchingEmbeddingModel(settings);
+        }
+        query = TextSegment.from("Why did the sprint velocity drop after the Confluence migration?");
+        batch = BatchingEmbeddingModelTest.corpus(256, 42);
+
+        if (BatchingEmbeddingModel.QUANTIZED_MODEL.equals(model)) {
+            BatchingEmbeddingModel.Settings settings = new BatchingEmbeddingModel.Settings();
+            settings.setModel(BatchingEmbeddingModel.MODEL);
+            try (BatchingEmbeddingModel fp32 = new BatchingEmbeddingModel(settings)) {
+                double recall = BatchingEmbeddingModelTest.recall(fp32, embeddingModel, batch,
+                        BatchingEmbeddingModelTest.corpus(20, 7), 10);
+                System.out.printf("%nint8 recall@10 against fp32 over %d segments: %.3f%n", batch.size(), recall);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (embeddingModel instanceof AutoCloseable closeable) {
+            try {
+                closeable.close();
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Benchmark
+    public Embedding query() {
+        return embeddingModel.embed(query).content();
+    }
+
+    @Benchmark
+    public List<Embedding> ingestBatch() {
+        return embeddingModel.embedAll(batch).content();
+    }
+}
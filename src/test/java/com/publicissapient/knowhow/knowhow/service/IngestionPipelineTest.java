@@ -0,0 +1,51 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IngestionPipelineTest {
+
+    @Test
+    void slowSourceIsNotMistakenForAFinishedOne() throws Exception {
+        Set<Integer> persisted = ConcurrentHashMap.newKeySet();
+        IngestionPipeline pipeline = new IngestionPipeline();
+        PipelineStage<Integer> sink = pipeline.addStage(new PipelineStage<>("sink", 2, 4, persisted::add));
+        PipelineStage<Integer> source = pipeline.addStage(new PipelineStage<>("source", 2, 4, sink::submit));
+        source.feeds(sink);
+
+        pipeline.start(source);
+        // Longer than a worker's poll interval, so idle source workers check for open producers
+        Thread.sleep(300);
+        try {
+            for (int i = 0; i < 20; i++) {
+                source.submit(i);
+            }
+        } finally {
+            source.producerDone();
+        }
+        pipeline.awaitCompletion();
+
+        assertThat(persisted).hasSize(20);
+        assertThat(pipeline.getStats()).allSatisfy(stats -> assertThat(stats.isFinished()).isTrue());
+    }
+}
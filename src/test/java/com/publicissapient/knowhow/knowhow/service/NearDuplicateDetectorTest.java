@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import com.publicissapient.knowhow.knowhow.vector.SegmentStore;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class NearDuplicateDetectorTest {
+
+    private static final String TEMPLATE = "This page describes the release checklist for the platform team."
+            + " Before every release the owner verifies the build pipeline, runs the regression suite,"
+            + " updates the change log, notifies the support desk and confirms the rollback plan with"
+            + " the operations engineers on call for the deployment window.";
+
+    private static NearDuplicateDetector detector(double threshold) {
+        return new NearDuplicateDetector(128, 16, threshold, 3);
+    }
+
+    @Test
+    void identicalTextIsADuplicateOfTheFirstSegment() {
+        NearDuplicateDetector detector = detector(0.8);
+        assertThat(detector.duplicateOf("a", TEMPLATE, "https://wiki/a", "release", null)).isNull();
+        assertThat(detector.duplicateOf("b", TEMPLATE, "https://wiki/b", "release", null)).isEqualTo("a");
+        // Case and punctuation do not matter, only the words
+        String shouted = TEMPLATE.toUpperCase().replace(",", ";");
+        assertThat(detector.duplicateOf("c", shouted, "https://wiki/c", null, null)).isEqualTo("a");
+    }
+
+    @Test
+    void smallEditIsADuplicateAtTheDefaultThresholdOnly() {
+        // One word changed near the end: 3 of about 50 shingles differ, Jaccard about 0.89
+        String edited = TEMPLATE.replace("deployment window", "maintenance window");
+
+        NearDuplicateDetector lenient = detector(0.8);
+        lenient.duplicateOf("a", TEMPLATE, "https://wiki/a", null, null);
+        assertThat(lenient.duplicateOf("b", edited, "https://wiki/b", null, null)).isEqualTo("a");
+
+        NearDuplicateDetector strict = detector(0.99);
+        strict.duplicateOf("a", TEMPLATE, "https://wiki/a", null, null);
+        assertThat(strict.duplicateOf("b", edited, "https://wiki/b", null, null)).isNull();
+    }
+
+    @Test
+    void unrelatedTextIsKept() {
+        NearDuplicateDetector detector = detector(0.8);
+        detector.duplicateOf("a", TEMPLATE, "https://wiki/a", null, null);
+        String unrelated = "Sprint velocity dropped after the migration of the Jira workflow because stories"
+                + " were re-estimated by the new team members.";
+        assertThat(detector.duplicateOf("b", unrelated, "https://wiki/b", null, null)).isNull();
+        // Half of the text shared is well below the threshold
+        String half = TEMPLATE.substring(0, TEMPLATE.length() / 2) + " The rest of this page lists the owners"
+                + " of each component together with their escalation contacts and review schedule.";
+        assertThat(detector.duplicateOf("c", half, "https://wiki/c", null, null)).isNull();
+    }
+
+    @Test
+    void textWithoutWordsIsNeverADuplicate() {
+        NearDuplicateDetector detector = detector(0.8);
+        assertThat(detector.duplicateOf("a", "--- ***", "https://wiki/a", null, null)).isNull();
+        assertThat(detector.duplicateOf("b", "--- ***", "https://wiki/b", null, null)).isNull();
+    }
+
+    @Test
+    void bandsMustDivideTheHashes() {
+        assertThatThrownBy(() -> new NearDuplicateDetector(100, 16, 0.8, 3))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void sourcesGoWithTheKeptSegmentUntilItIsStored() {
+        NearDuplicateDetector detector = detector(0.8);
+        detector.duplicateOf("a", TEMPLATE, "https://wiki/a", "release, platform", null);
+        // Same page: nothing to record
+        detector.duplicateOf("a2", TEMPLATE, "https://wiki/a", "release, platform", null);
+        detector.duplicateOf("b", TEMPLATE, "https://wiki/b?x=1,2", "release, checklist", null);
+
+        Map<String, SegmentStore.Sources> pending = detector.takePending(List.of("a")).getSources();
+        assertThat(pending).containsOnlyKeys("a");
+        assertThat(pending.get("a").getUrls()).containsExactly("https://wiki/b?x=1,2");
+        assertThat(pending.get("a").getTags()).containsExactly("release", "checklist");
+
+        // Found between writing the segment and marking it stored
+        detector.duplicateOf("c", TEMPLATE, "https://wiki/c", "ops", null);
+        detector.markStored(List.of("a"));
+        detector.duplicateOf("d", TEMPLATE, "https://wiki/d", null, null);
+
+        assertThat(detector.takePending(List.of("a")).isEmpty()).isTrue();
+        Map<String, SegmentStore.Sources> stored = detector.takeStored().getSources();
+        assertThat(stored).containsOnlyKeys("a");
+        assertThat(stored.get("a").getUrls()).containsExactly("https://wiki/c", "https://wiki/d");
+        assertThat(stored.get("a").getTags()).containsExactly("ops");
+        assertThat(detector.takeStored().isEmpty()).isTrue();
+    }
+
+    @Test
+    void duplicateWorkIsHeldUntilItsSourcesAreWritten() {
+        NearDuplicateDetector detector = detector(0.8);
+        AtomicReference<String> duplicatePage = new AtomicReference<>();
+        WorkUnit duplicateWork = WorkUnit.root(error -> {
+            duplicatePage.set(error == null ? "done" : error);
+            return error != null;
+        });
+        detector.duplicateOf("a", TEMPLATE, "https://wiki/a", null, null);
+        detector.duplicateOf("b", TEMPLATE, "https://wiki/b", null, duplicateWork);
+        // The split stage is done with the duplicate page
+        duplicateWork.release();
+        assertThat(duplicatePage).hasValue(null);
+
+        NearDuplicateDetector.Collected collected = detector.takePending(List.of("a"));
+        detector.markStored(List.of("a"));
+        assertThat(duplicatePage).hasValue(null);
+        collected.release();
+        assertThat(duplicatePage).hasValue("done");
+    }
+
+    @Test
+    void failedKeptSegmentFailsItsDuplicatesAndIsNoLongerMatched() {
+        NearDuplicateDetector detector = detector(0.8);
+        AtomicReference<String> duplicatePage = new AtomicReference<>();
+        WorkUnit duplicateWork = WorkUnit.root(error -> {
+            duplicatePage.set(error == null ? "done" : error);
+            return error != null;
+        });
+        detector.duplicateOf("a", TEMPLATE, "https://wiki/a", null, null);
+        detector.duplicateOf("b", TEMPLATE, "https://wiki/b", null, duplicateWork);
+        duplicateWork.release();
+
+        detector.takePending(List.of("a")).fail("a was not stored");
+        detector.failPending(List.of("a"), "a was not stored");
+        assertThat(duplicatePage).hasValue("a was not stored");
+
+        // The same text seen later is kept in its own right instead of being dropped
+        assertThat(detector.duplicateOf("c", TEMPLATE, "https://wiki/c", null, null)).isNull();
+        assertThat(detector.duplicateOf("d", TEMPLATE, "https://wiki/d", null, null)).isEqualTo("c");
+    }
+
+    @Test
+    void unstoredSegmentsFailTheirDuplicatesAtTheEndOfTheRun() {
+        NearDuplicateDetector detector = detector(0.8);
+        AtomicReference<String> duplicatePage = new AtomicReference<>();
+        WorkUnit duplicateWork = WorkUnit.root(error -> {
+            duplicatePage.set(error == null ? "done" : error);
+            return error != null;
+        });
+        detector.duplicateOf("a", TEMPLATE, "https://wiki/a", null, null);
+        detector.duplicateOf("b", TEMPLATE, "https://wiki/b", null, duplicateWork);
+        duplicateWork.release();
+
+        detector.failUnstored("not stored");
+        assertThat(duplicatePage).hasValue("not stored");
+        assertThat(detector.takePending(List.of("a")).isEmpty()).isTrue();
+    }
+}
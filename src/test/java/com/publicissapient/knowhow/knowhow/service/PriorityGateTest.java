@@ -0,0 +1,71 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class PriorityGateTest {
+
+    @Test
+    void ungatedInteractiveCallsDoNotWaitForBackgroundPermits() throws Exception {
+        PriorityGate gate = new PriorityGate("llm", 1, 0.2, false);
+        PriorityGate.Permit background = gate.acquire(WorkPriority.BACKGROUND);
+
+        PriorityGate.Permit interactive = gate.acquire(WorkPriority.INTERACTIVE);
+        assertThat(gate.getStats().getInUse()).isEqualTo(1);
+        assertThat(gate.getStats().getInteractiveUngated()).isEqualTo(1);
+
+        // Background work is still limited to the permits
+        CompletableFuture<PriorityGate.Permit> second = CompletableFuture.supplyAsync(() -> {
+            try {
+                return gate.acquire(WorkPriority.BACKGROUND);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThatThrownBy(() -> second.get(200, TimeUnit.MILLISECONDS)).isInstanceOf(TimeoutException.class);
+
+        interactive.close();
+        background.close();
+        second.get(5, TimeUnit.SECONDS).close();
+
+        PriorityGate.GateStats stats = gate.getStats();
+        assertThat(stats.getInUse()).isZero();
+        assertThat(stats.getInteractiveUngated()).isZero();
+        assertThat(stats.getInteractiveGrants()).isEqualTo(1);
+        assertThat(stats.getBackgroundGrants()).isEqualTo(2);
+    }
+
+    @Test
+    void gatedInteractiveCallsHoldPermits() throws Exception {
+        PriorityGate gate = new PriorityGate("database", 2, 0.2);
+        try (PriorityGate.Permit first = gate.acquire(WorkPriority.INTERACTIVE);
+             PriorityGate.Permit second = gate.acquire(WorkPriority.BACKGROUND)) {
+            assertThat(gate.getStats().getInUse()).isEqualTo(2);
+            assertThat(first).isNotNull();
+            assertThat(second).isNotNull();
+        }
+        assertThat(gate.getStats().getInUse()).isZero();
+    }
+}
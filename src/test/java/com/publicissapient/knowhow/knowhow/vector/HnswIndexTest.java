@@ -0,0 +1,180 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+/**
+ * Recall of HnswIndex against ExactSearch, which is the ground truth, on random unit vectors.
+ */
+class HnswIndexTest {
+
+    private static final int DIMENSION = 384;
+    private static final int SIZE = 5000;
+    private static final int QUERIES = 100;
+    private static final int K = 10;
+
+    private static ForkJoinPool pool;
+    private static ExactSearch exactSearch;
+    private static HnswIndex index;
+    private static float[][] queries;
+
+    @BeforeAll
+    static void setUp() {
+        pool = new ForkJoinPool(4);
+        exactSearch = new ExactSearch(pool);
+        index = build(new Random(42), SIZE, 16, 100);
+        queries = clusteredVectors(new Random(7), QUERIES);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    void recallAtKAgainstExactSearch() {
+        assertThat(recall(index, 100)).isGreaterThanOrEqualTo(0.95);
+    }
+
+    @Test
+    void recallGrowsWithEf() {
+        double low = recall(index, K);
+        double high = recall(index, 400);
+        assertThat(high).isGreaterThanOrEqualTo(low).isGreaterThanOrEqualTo(0.99);
+    }
+
+    @Test
+    void hitsAreSortedBestFirstWithExactScores() {
+        for (float[] query : queries) {
+            Hits hits = index.search(query, K, 100);
+            assertThat(hits.size()).isEqualTo(K);
+            for (int i = 0; i < hits.size(); i++) {
+                assertThat(hits.score(i)).isCloseTo(index.vectors().dot(query, hits.node(i)),
+                        offset(1e-5f));
+                if (i > 0) {
+                    assertThat(hits.score(i)).isLessThanOrEqualTo(hits.score(i - 1));
+                }
+            }
+        }
+    }
+
+    @Test
+    void exactSearchAgreesAcrossTaskSplits() {
+        // The same scan on one task (node ranges) and split across the pool
+        for (float[] query : queries) {
+            Hits parallel = exactSearch.search(index.vectors(), query, K);
+            Hits single = exactSearch.search(index.vectors(), query, K, new int[]{0}, new int[]{SIZE});
+            assertThat(nodes(parallel)).isEqualTo(nodes(single));
+        }
+    }
+
+    @Test
+    void buildsOverVectorsFilledOutOfOrder() {
+        float[][] vectors = clusteredVectors(new Random(42), 2000);
+        PackedVectors packed = new PackedVectors(DIMENSION, vectors.length);
+        // Fill from both ends, as a rebuild fills the node range of each page as rows arrive
+        for (int i = 0; i < vectors.length / 2; i++) {
+            packed.set(vectors.length - 1 - i, vectors[vectors.length - 1 - i]);
+            packed.set(i, vectors[i]);
+        }
+        HnswIndex built = new HnswIndex(packed, 16, 100);
+
+        assertThat(built.size()).isEqualTo(vectors.length);
+        assertThat(built.vector(1234)).containsExactly(vectors[1234]);
+        assertThat(recall(built, 100)).isGreaterThanOrEqualTo(0.95);
+    }
+
+    private static double recall(HnswIndex index, int ef) {
+        double found = 0;
+        for (float[] query : queries) {
+            Set<Integer> truth = nodes(exactSearch.search(index.vectors(), query, K));
+            Set<Integer> approximate = nodes(index.search(query, K, ef));
+            approximate.retainAll(truth);
+            found += approximate.size();
+        }
+        return found / (queries.length * K);
+    }
+
+    static HnswIndex build(Random random, int size, int m, int efConstruction) {
+        HnswIndex index = new HnswIndex(DIMENSION, size, m, efConstruction);
+        for (float[] vector : clusteredVectors(random, size)) {
+            index.add(vector);
+        }
+        return index;
+    }
+
+    /**
+     * Unit vectors scattered around a few dozen centres, closer to sentence embeddings than
+     * uniform noise (which has no neighbourhood structure for a graph to exploit).
+     */
+    static float[][] clusteredVectors(Random random, int count) {
+        Random centreRandom = new Random(1);
+        float[][] centres = new float[50][];
+        for (int c = 0; c < centres.length; c++) {
+            centres[c] = gaussian(centreRandom, 1.0f);
+        }
+        float[][] vectors = new float[count][];
+        for (int i = 0; i < count; i++) {
+            float[] centre = centres[random.nextInt(centres.length)];
+            float[] vector = gaussian(random, 0.6f);
+            for (int d = 0; d < DIMENSION; d++) {
+                vector[d] += centre[d];
+            }
+            vectors[i] = normalize(vector);
+        }
+        return vectors;
+    }
+
+    static float[] gaussian(Random random, float scale) {
+        float[] vector = new float[DIMENSION];
+        for (int d = 0; d < DIMENSION; d++) {
+            vector[d] = (float) random.nextGaussian() * scale;
+        }
+        return vector;
+    }
+
+    static float[] normalize(float[] vector) {
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        float scale = (float) (1.0 / Math.sqrt(norm));
+        for (int d = 0; d < vector.length; d++) {
+            vector[d] *= scale;
+        }
+        return vector;
+    }
+
+    private static Set<Integer> nodes(Hits hits) {
+        Set<Integer> nodes = new HashSet<>();
+        for (int i = 0; i < hits.size(); i++) {
+            nodes.add(hits.node(i));
+        }
+        return nodes;
+    }
+}
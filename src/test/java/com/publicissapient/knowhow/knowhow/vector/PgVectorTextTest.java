@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import dev.langchain4j.data.document.Metadata;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PgVectorTextTest {
+
+    @Test
+    void vectorTextRoundTrip() {
+        float[] vector = {0.1f, -0.25f, 3e-5f};
+        assertThat(PgVectorText.parseVector(PgVectorText.format(vector), 3)).containsExactly(vector);
+    }
+
+    @Test
+    void sourceUrlsSurviveCommas() {
+        Map<String, Object> stored = new LinkedHashMap<>();
+        stored.put("url", "https://wiki/a");
+        stored.put("source_urls", List.of("https://wiki/a", "https://wiki/b?ids=1,2"));
+        stored.put("page_id", 42);
+        stored.put("archived", false);
+
+        Metadata metadata = PgVectorText.metadata(PgVectorText.json(stored));
+
+        assertThat(SegmentStore.sourceUrls(metadata)).containsExactly("https://wiki/a", "https://wiki/b?ids=1,2");
+        assertThat(metadata.getInteger("page_id")).isEqualTo(42);
+        assertThat(metadata.getString("archived")).isEqualTo("false");
+    }
+
+    @Test
+    void sourceUrlsFallBackToTheSegmentUrl() {
+        assertThat(SegmentStore.sourceUrls(Metadata.from("url", "https://wiki/a"))).containsExactly("https://wiki/a");
+        assertThat(SegmentStore.sourceUrls(new Metadata())).isEmpty();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Two-stage page-then-segment search (gravity.vector-index.two-stage.pages) against the flat
+ * exact scan, over a synthetic corpus grouped by page like the search replica: 5 to 155
+ * segments per page (about 23 on average) around a page topic, and one page vector per page, the normalized mean of
+ * its segments. The two-stage recall@10 against the flat scan and the average number of
+ * segments scanned are printed during setup. Run with:
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=TwoStageSearchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class TwoStageSearchBenchmark {
+
+    private static final int DIMENSION = 384;
+    private static final int K = 10;
+    private static final int QUERIES = 64;
+    // Per-dimension noise of a segment around its page topic and of a query around its segment.
+    // Recall is sensitive to these: tighter pages make the page vectors better predictors
+    private static final float SEGMENT_SPREAD = 0.06f;
+    private static final float QUERY_SPREAD = 0.05f;
+
+    @Param({"2000", "10000"})
+    private int pages;
+
+    @Param({"20"})
+    private int topPages;
+
+    private final ExactSearch exactSearch = new ExactSearch(ForkJoinPool.commonPool());
+    private PackedVectors segments;
+    private PackedVectors pageVectors;
+    private int[] pageStarts;
+    private float[][] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        float[][] topics = HnswIndexTest.clusteredVectors(random, pages);
+        segments = new PackedVectors(DIMENSION, pages * 24);
+        pageVectors = new PackedVectors(DIMENSION, pages);
+        pageStarts = new int[pages + 1];
+        for (int page = 0; page < pages; page++) {
+            pageStarts[page] = segments.size();
+            float[] mean = new float[DIMENSION];
+            // Most pages are short, a few run to 155 segments: about 23 per page on average
+            int count = 5 + (int) (150 * Math.pow(random.nextDouble(), 7));
+            for (int s = 0; s < count; s++) {
+                float[] segment = nearby(random, topics[page], SEGMENT_SPREAD);
+                segments.add(segment);
+                for (int d = 0; d < DIMENSION; d++) {
+                    mean[d] += segment[d];
+                }
+            }
+            pageVectors.add(HnswIndexTest.normalize(mean));
+        }
+        pageStarts[pages] = segments.size();
+
+        // Queries close to a random segment, as a question is close to the passage answering it
+        queries = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++) {
+            int node = random.nextInt(segments.size());
+            queries[q] = nearby(random, segments.vector(node), QUERY_SPREAD);
+        }
+
+        double found = 0;
+        long scanned = 0;
+        for (float[] query : queries) {
+            Hits selected = exactSearch.search(pageVectors, query, topPages);
+            for (int i = 0; i < selected.size(); i++) {
+                scanned += pageStarts[selected.node(i) + 1] - pageStarts[selected.node(i)];
+            }
+            Set<Integer> truth = nodes(exactSearch.search(segments, query, K));
+            Set<Integer> twoStage = nodes(exactSearch.searchPages(segments, selected, pageStarts, query, K));
+            twoStage.retainAll(truth);
+            found += twoStage.size();
+        }
+        System.out.printf("%nTwo-stage recall@%d at %d pages / %d segments, top %d pages: %.3f,"
+                + " %d segments scanned per query%n", K, pages, segments.size(), topPages,
+                found / (QUERIES * K), scanned / QUERIES);
+    }
+
+    @Benchmark
+    public Hits flat() {
+        return exactSearch.search(segments, nextQuery(), K);
+    }
+
+    @Benchmark
+    public Hits twoStage() {
+        float[] query = nextQuery();
+        Hits selected = exactSearch.search(pageVectors, query, topPages);
+        return exactSearch.searchPages(segments, selected, pageStarts, query, K);
+    }
+
+    private float[] nextQuery() {
+        next = (next + 1) % QUERIES;
+        return queries[next];
+    }
+
+    private static float[] nearby(Random random, float[] centre, float spread) {
+        float[] vector = HnswIndexTest.gaussian(random, spread);
+        for (int d = 0; d < DIMENSION; d++) {
+            vector[d] += centre[d];
+        }
+        return HnswIndexTest.normalize(vector);
+    }
+
+    private static Set<Integer> nodes(Hits hits) {
+        Set<Integer> nodes = new HashSet<>();
+        for (int i = 0; i < hits.size(); i++) {
+            nodes.add(hits.node(i));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exact-versus-HNSW crossover for gravity.vector-index.exact-max-size: query latency of the
+ * parallel exact scan, the single-threaded exact scan and the HNSW graph at several replica
+ * sizes, with the graph's recall@10 against the exact scan printed during setup. Run with:
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark=VectorSearchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+public class VectorSearchBenchmark {
+
+    private static final int K = 10;
+    private static final int QUERIES = 64;
+
+    @Param({"5000", "20000", "50000", "100000"})
+    private int size;
+
+    @Param({"100"})
+    private int ef;
+
+    private final ExactSearch exactSearch = new ExactSearch(ForkJoinPool.commonPool());
+    private HnswIndex index;
+    private float[][] queries;
+    private int[] allStarts;
+    private int[] allEnds;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        index = HnswIndexTest.build(new Random(42), size, 16, 100);
+        queries = HnswIndexTest.clusteredVectors(new Random(7), QUERIES);
+        allStarts = new int[]{0};
+        allEnds = new int[]{size};
+
+        double found = 0;
+        for (float[] query : queries) {
+            Set<Integer> truth = nodes(exactSearch.search(index.vectors(), query, K));
+            Set<Integer> approximate = nodes(index.search(query, K, ef));
+            approximate.retainAll(truth);
+            found += approximate.size();
+        }
+        System.out.printf("%nHNSW recall@%d at size %d, ef %d: %.3f%n", K, size, ef, found / (QUERIES * K));
+    }
+
+    @Benchmark
+    public Hits exactParallel() {
+        return exactSearch.search(index.vectors(), nextQuery(), K);
+    }
+
+    @Benchmark
+    public Hits exactSingleThread() {
+        return exactSearch.search(index.vectors(), nextQuery(), K, allStarts, allEnds);
+    }
+
+    @Benchmark
+    public Hits hnsw() {
+        return index.search(nextQuery(), K, ef);
+    }
+
+    private float[] nextQuery() {
+        next = (next + 1) % QUERIES;
+        return queries[next];
+    }
+
+    private static Set<Integer> nodes(Hits hits) {
+        Set<Integer> nodes = new HashSet<>();
+        for (int i = 0; i < hits.size(); i++) {
+            nodes.add(hits.node(i));
+        }
+        return nodes;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *  Copyright 2024 <Sapient Corporation>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and limitations under the
+ *  License.
+ */
+
+package com.publicissapient.knowhow.knowhow.vector;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class VectorSnapshotTest {
+
+    private static final int SIZE = 500;
+    private static final int DIMENSION = 384;
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+    private HnswIndex index;
+    private String[] ids;
+    private String[] texts;
+    private String[] metadata;
+    private PackedVectors pageVectors;
+    private int[] pageStarts;
+
+    @BeforeEach
+    void setUp() {
+        file = directory.resolve("vectors.snap");
+        index = HnswIndexTest.build(new Random(42), SIZE, 16, 100);
+        ids = new String[SIZE];
+        texts = new String[SIZE];
+        metadata = new String[SIZE];
+        for (int node = 0; node < SIZE; node++) {
+            ids[node] = "id-" + node;
+            // Nulls and multi-byte characters must survive the round trip
+            texts[node] = node % 50 == 0 ? null : "Segment " + node + " über ✓";
+            metadata[node] = "{\"page_id\":\"" + node / 10 + "\"}";
+        }
+        pageVectors = new PackedVectors(DIMENSION, SIZE / 10);
+        pageStarts = new int[SIZE / 10 + 1];
+        for (int page = 0; page < SIZE / 10; page++) {
+            pageVectors.add(index.vector(page * 10));
+            pageStarts[page] = page * 10;
+        }
+        pageStarts[SIZE / 10] = SIZE;
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        VectorSnapshot.write(file, 7, index, ids, texts, metadata, pageVectors, pageStarts);
+        VectorSnapshot snapshot = VectorSnapshot.open(file);
+
+        assertThat(snapshot.getStoreVersion()).isEqualTo(7);
+        assertThat(snapshot.getIndex().size()).isEqualTo(SIZE);
+        assertThat(snapshot.getIndex().dimension()).isEqualTo(DIMENSION);
+        assertThat(snapshot.getIndex().isMapped()).isTrue();
+        for (int node = 0; node < SIZE; node++) {
+            assertThat(snapshot.id(node)).isEqualTo(ids[node]);
+            assertThat(snapshot.text(node)).isEqualTo(texts[node]);
+            assertThat(snapshot.metadata(node)).isEqualTo(metadata[node]);
+            assertThat(snapshot.getIndex().vector(node)).containsExactly(index.vector(node));
+        }
+        assertThat(snapshot.pageCount()).isEqualTo(SIZE / 10);
+        for (int page = 0; page < SIZE / 10; page++) {
+            assertThat(snapshot.pageStart(page)).isEqualTo(page * 10);
+            assertThat(snapshot.pageEnd(page)).isEqualTo(page * 10 + 10);
+            assertThat(snapshot.getPageVectors().vector(page)).containsExactly(pageVectors.vector(page));
+        }
+
+        // The restored graph answers searches exactly like the one it was written from
+        float[] query = index.vector(123);
+        Hits expected = index.search(query, 10, 100);
+        Hits actual = snapshot.getIndex().search(query, 10, 100);
+        for (int i = 0; i < expected.size(); i++) {
+            assertThat(actual.node(i)).isEqualTo(expected.node(i));
+        }
+    }
+
+    @Test
+    void rewriteReplacesTheFile() throws IOException {
+        VectorSnapshot.write(file, 1, index, ids, texts, metadata, pageVectors, pageStarts);
+        VectorSnapshot first = VectorSnapshot.open(file);
+        VectorSnapshot.write(file, 2, index, ids, texts, metadata, pageVectors, pageStarts);
+
+        assertThat(VectorSnapshot.open(file).getStoreVersion()).isEqualTo(2);
+        // A node that mapped the old file keeps reading it
+        assertThat(first.getStoreVersion()).isEqualTo(1);
+        assertThat(first.text(1)).isEqualTo(texts[1]);
+        try (var files = Files.list(directory)) {
+            assertThat(files).containsExactly(file);
+        }
+    }
+
+    @Test
+    void corruptedByteFailsTheChecksum() throws IOException {
+        VectorSnapshot.write(file, 1, index, ids, texts, metadata, pageVectors, pageStarts);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long position = raf.length() / 2;
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0x01);
+        }
+
+        assertThatThrownBy(() -> VectorSnapshot.open(file))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("checksum");
+    }
+
+    @Test
+    void truncatedFileIsRejected() throws IOException {
+        VectorSnapshot.write(file, 1, index, ids, texts, metadata, pageVectors, pageStarts);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength(raf.length() - 100);
+        }
+
+        assertThatThrownBy(() -> VectorSnapshot.open(file)).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    void otherFilesAndFormatsAreRejected() throws IOException {
+        Files.write(file, new byte[16]);
+        assertThatThrownBy(() -> VectorSnapshot.open(file))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("Not a vector snapshot");
+
+        VectorSnapshot.write(file, 1, index, ids, texts, metadata, pageVectors, pageStarts);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(4);
+            raf.write(VectorSnapshot.FORMAT_VERSION - 1);
+        }
+        assertThatThrownBy(() -> VectorSnapshot.open(file))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("format");
+    }
+}